@@ -4,6 +4,8 @@ version = "1.5.1"
 
 plugins {
     id("java-library")
+    id("java-test-fixtures")  // SPFE simulator shared by benchmarks and load tests
+    id("me.champeau.jmh") version "0.7.3"  // Benchmarks: ./gradlew jmh
     id("com.vanniktech.maven.publish")
     id("com.android.lint") version "8.13.0"  // Provides linting for .kts files
     id("org.owasp.dependencycheck") version "12.1.3"  // Checks dependencies for vulnerabilities
@@ -23,28 +25,97 @@ tasks.withType<JavaCompile> {
     options.compilerArgs.add("-Werror")
 }
 
-tasks.jar {
-    destinationDirectory = file("dist")
+tasks.named<JavaCompile>("jmhCompileGeneratedClasses") {
+    options.compilerArgs.remove("-Werror")  // JMH-generated sources are not lint-clean
 }
 
 sourceSets {
     main {
         java {
             srcDir("src")
-            include("com/wwpass/WWPassConnection.java")
+            include("com/wwpass/*.java")
+            exclude("com/wwpass/wwpass.java")  // Sample servlet, not a part of the library
+        }
+    }
+    create("java11") {  // Classes that need Java 11, packed into the multi-release part of the jar
+        java {
+            setSrcDirs(listOf("src-java11"))
+        }
+        compileClasspath += main.get().output + main.get().compileClasspath
+    }
+    create("java21") {  // Classes that need Java 21 (virtual threads), packed the same way
+        java {
+            setSrcDirs(listOf("src-java21"))
+        }
+        compileClasspath += main.get().output + main.get().compileClasspath
+    }
+    test {
+        java {
+            setSrcDirs(listOf("src-test"))
+        }
+    }
+    named("testFixtures") {
+        java {
+            setSrcDirs(listOf("src-testFixtures"))
+        }
+    }
+    named("jmh") {
+        java {
+            setSrcDirs(listOf("src-jmh"))
         }
     }
 }
 
-dependencies {
-    implementation("com.googlecode.json-simple:json-simple:1.1.1") {
-        exclude("junit", "junit")  // Old vulnerable v4.10 is used and is not needed
+tasks.named<JavaCompile>("compileJava11Java") {
+    options.release = 11
+}
+
+tasks.named<JavaCompile>("compileJava21Java") {
+    javaCompiler = javaToolchains.compilerFor {
+        languageVersion = JavaLanguageVersion.of(21)  // The main toolchain is 17
+    }
+    options.release = 21
+}
+
+tasks.test {
+    useJUnitPlatform()
+}
+
+tasks.jar {
+    destinationDirectory = file("dist")
+    manifest {
+        attributes("Multi-Release" to "true")
     }
+    into("META-INF/versions/11") {
+        from(sourceSets["java11"].output)
+    }
+    into("META-INF/versions/21") {
+        from(sourceSets["java21"].output)
+    }
+}
+
+dependencies {
     implementation("commons-codec:commons-codec:1.19.0")
-    implementation("jakarta.servlet:jakarta.servlet-api:6.1.0")
+    compileOnly("jakarta.servlet:jakarta.servlet-api:6.1.0")  // Provided by the container
+    testImplementation(platform("org.junit:junit-bom:5.13.4"))
+    testImplementation("org.junit.jupiter:junit-jupiter")
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher")
+    testImplementation("com.googlecode.json-simple:json-simple:1.1.1") {  // What SPFE messages were encoded with before
+        exclude("junit", "junit")
+    }
+    testImplementation("org.bouncycastle:bcpkix-jdk18on:1.81")  // Writes keys in the PKCS#1 and SEC 1 forms
+    testFixturesImplementation("org.bouncycastle:bcpkix-jdk18on:1.81")
+    jmhImplementation(testFixtures(project))
     lintChecks("androidx.lint:lint-gradle:1.0.0-alpha05")
 }
 
+jmh {  // Plugin: me.champeau.jmh
+    jmhVersion = "1.37"
+    resultFormat = "JSON"
+    profilers = listOf("gc")  // Allocation rate per operation next to the timings
+    resultsFile = layout.buildDirectory.file("reports/jmh/results.json")
+}
+
 dependencyCheck {  // Plugin: org.owasp.dependencycheck
     format = "ALL"
     outputDirectory = "$rootDir/build/reports/dependency-check"
@@ -0,0 +1,414 @@
+/**
+ * SPFEHttpClientTransport.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.net.ssl.SSLContext;
+
+import com.wwpass.WWPassConnection.WWPassProtocolException;
+
+/**
+ * Sends SPFE calls with {@code java.net.http.HttpClient}.
+ * <p>
+ * One client is built per {@link SSLContext}, i.e. per set of SP credentials, and shared by all calls made with
+ * it. The client of credentials that have been replaced is dropped once they are retired, see
+ * {@link SPFECredentials}; its connections close as it is garbage collected. The client negotiates HTTP/2 when SPFE offers it and then multiplexes concurrent calls over a single
+ * connection per SPFE host; otherwise it keeps a pool of HTTP/1.1 connections. Asynchronous calls are sent
+ * with {@link HttpClient#sendAsync} and don't hold a thread while they wait for the reply.
+ * <p>
+ * The client has no per-request connect timeout: the connect and the read timeout together bound the wait for
+ * the reply head. It has no read timeout for the body either, so the transport fails a reply body that stalls for
+ * the read timeout itself, as a socket read would. Deadlines cancel the exchange as usual.
+ */
+final class SPFEHttpClientTransport extends SPFETransport {
+
+    private static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded";
+
+    private final ConcurrentMap<SPFECredentials, HttpClient> clients = new ConcurrentHashMap<>();
+
+    static boolean isAvailable() {
+        return true;
+    }
+
+    SPFEHttpClientTransport() {
+    }
+
+    private HttpClient client(SPFECredentials credentials) {
+        if (clients.size() > 1) {
+            clients.keySet().removeIf(SPFECredentials::isRetired);  // Several only for several credentials
+        }
+        HttpClient client = clients.get(credentials);
+        return client != null ? client : clients.computeIfAbsent(credentials, key -> {
+            HttpClient.Builder builder = HttpClient.newBuilder()
+                    .sslContext(key.context)
+                    .version(HttpClient.Version.HTTP_2)
+                    .followRedirects(HttpClient.Redirect.NEVER);
+            if (key.parameters != null) {
+                builder.sslParameters(key.parameters);
+            }
+            return builder.build();
+        });
+    }
+
+    @Override
+    <T> T execute(SPFEExchange exchange, ReplyReader<T> reader) throws IOException {
+        AtomicReference<SPFEStreams.CallerStreamException> sourceFailure = new AtomicReference<>();
+        HttpRequest request = request(exchange, sourceFailure);
+        SPFEDeadline deadline = exchange.deadline;
+        SPFECallTimer timer = exchange.timer;
+        CompletableFuture<HttpResponse<InputStream>> sent = client(exchange.credentials)
+                .sendAsync(request, HttpResponse.BodyHandlers.ofInputStream());
+        if (deadline != null) {
+            deadline.attach(() -> sent.cancel(true));
+        }
+        try {
+            HttpResponse<InputStream> response;
+            try {
+                response = await(sent);
+            } catch (IOException | RuntimeException e) {
+                SPFEStreams.CallerStreamException callerFailure = sourceFailure.get();
+                if (callerFailure != null) {
+                    throw callerFailure;
+                }
+                throw e;
+            }
+            if (timer != null) {
+                timer.mark(WWPassMetrics.Phase.FIRST_BYTE);
+            }
+            InputStream input = exchange.readTimeoutMs > 0
+                    ? new TimedBody(response.body(), exchange.readTimeoutMs) : response.body();
+            if (deadline != null) {
+                deadline.attach(() -> closeQuietly(input));
+            }
+            boolean consumed = false;
+            try {
+                if (response.statusCode() < 200 || response.statusCode() >= 300) {
+                    consumed = true;
+                    throw statusFailure(exchange, response.statusCode());
+                }
+                T reply = reader.read(input);
+                consumed = true;
+                if (timer != null) {
+                    timer.mark(WWPassMetrics.Phase.PARSE);
+                }
+                return reply;
+            } catch (WWPassProtocolException e) {
+                consumed = true;
+                throw e;
+            } finally {
+                if (consumed) {
+                    drainQuietly(input);  // Lets an HTTP/1.1 connection be reused
+                } else {
+                    closeQuietly(input);
+                }
+            }
+        } finally {
+            if (deadline != null) {
+                deadline.detach();
+            }
+        }
+    }
+
+    @Override
+    boolean isAsync() {
+        return true;
+    }
+
+    @Override
+    <T> CompletableFuture<T> executeAsync(SPFEExchange exchange, ReplyReader<T> reader) {
+        HttpRequest request = request(exchange, null);
+        SPFEDeadline deadline = exchange.deadline;
+        SPFECallTimer timer = exchange.timer;
+        int readTimeoutMs = exchange.readTimeoutMs;
+        CompletableFuture<HttpResponse<byte[]>> sent = client(exchange.credentials).sendAsync(request, readTimeoutMs > 0
+                ? info -> new TimedBodySubscriber<>(HttpResponse.BodySubscribers.ofByteArray(), readTimeoutMs)
+                : HttpResponse.BodyHandlers.ofByteArray());
+        if (deadline != null) {
+            deadline.attach(() -> sent.cancel(true));
+        }
+        CompletableFuture<T> result = new CompletableFuture<>();
+        sent.whenComplete((response, error) -> {
+            if (deadline != null) {
+                deadline.detach();
+            }
+            try {
+                if (error != null) {
+                    throw failure(error instanceof CompletionException ? error.getCause() : error);
+                }
+                if (timer != null) {
+                    timer.mark(WWPassMetrics.Phase.FIRST_BYTE);  // The whole reply, in fact
+                }
+                if (response.statusCode() < 200 || response.statusCode() >= 300) {
+                    throw statusFailure(exchange, response.statusCode());
+                }
+                T reply = reader.read(new ByteArrayInputStream(response.body()));
+                if (timer != null) {
+                    timer.mark(WWPassMetrics.Phase.PARSE);
+                }
+                result.complete(reply);
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Builds the request out of the exchange, copying what it points to. A streamed body is pulled from the
+     * caller's stream by the client; a failure of that stream is left in {@code sourceFailure}.
+     */
+    private static HttpRequest request(SPFEExchange exchange,
+                                       AtomicReference<SPFEStreams.CallerStreamException> sourceFailure) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(exchange.url()));
+        if (exchange.readTimeoutMs > 0) {
+            builder.timeout(Duration.ofMillis((long) exchange.connectTimeoutMs + exchange.readTimeoutMs));
+        }
+        SPFEFormBody body = exchange.body;
+        if (body == null) {
+            return builder.GET().build();
+        }
+        builder.header("Content-Type", FORM_CONTENT_TYPE);
+        if (body.length() >= 0) {
+            return builder.POST(HttpRequest.BodyPublishers.ofByteArray(body.toByteArray())).build();
+        }
+        InputStream source = new FilterInputStream(body.stream()) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                try {
+                    return in.read(b, off, len);
+                } catch (SPFEStreams.CallerStreamException e) {
+                    sourceFailure.set(e);
+                    throw e.getCause();
+                }
+            }
+        };
+        return builder.POST(HttpRequest.BodyPublishers.ofInputStream(() -> source)).build();
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for SPFE");
+        } catch (CancellationException e) {
+            throw failure(e);
+        } catch (ExecutionException e) {
+            throw failure(e.getCause());
+        }
+    }
+
+    /** What the client failed with, as the other transports would have thrown it. */
+    private static IOException failure(Throwable e) {
+        if (e instanceof HttpTimeoutException) {
+            SocketTimeoutException timeout = new SocketTimeoutException(e.getMessage());
+            timeout.initCause(e);
+            return timeout;
+        }
+        if (e instanceof IOException) {
+            return (IOException) e;
+        }
+        if (e instanceof UncheckedIOException) {
+            return ((UncheckedIOException) e).getCause();
+        }
+        if (e instanceof CancellationException) {
+            return new IOException("SPFE call aborted", e);  // By the deadline, which reports it as a timeout
+        }
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        }
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        return new IOException(e);
+    }
+
+    private static IOException statusFailure(SPFEExchange exchange, int statusCode) {
+        return new IOException("Server returned HTTP response code: " + statusCode + " for URL: " + exchange.target.url);
+    }
+
+    private static void drainQuietly(InputStream input) {
+        try (InputStream stream = input) {
+            byte[] skip = new byte[4096];
+            //noinspection StatementWithEmptyBody
+            while (stream.read(skip) != -1) {
+            }
+        } catch (IOException ignored) {
+            // The connection just won't be reused
+        }
+    }
+
+    private static void closeQuietly(InputStream input) {
+        try {
+            input.close();
+        } catch (IOException ignored) {
+            // Nothing to reuse anyway
+        }
+    }
+
+    /** A reply body that is closed when a read waits for more than {@code readTimeoutMs}, which then times out. */
+    private static final class TimedBody extends FilterInputStream {
+        private final int readTimeoutMs;
+
+        TimedBody(InputStream body, int readTimeoutMs) {
+            super(body);
+            this.readTimeoutMs = readTimeoutMs;
+        }
+
+        @Override
+        public int read() throws IOException {
+            SPFEDeadline watch = watch();
+            try {
+                return in.read();
+            } catch (IOException e) {
+                throw failure(watch, e);
+            } finally {
+                watch.cancel();
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            SPFEDeadline watch = watch();
+            try {
+                return in.read(b, off, len);
+            } catch (IOException e) {
+                throw failure(watch, e);
+            } finally {
+                watch.cancel();
+            }
+        }
+
+        private SPFEDeadline watch() {
+            SPFEDeadline watch = new SPFEDeadline(readTimeoutMs);
+            watch.attach(() -> closeQuietly(in));
+            return watch;
+        }
+
+        private static IOException failure(SPFEDeadline watch, IOException e) {
+            if (watch.detach()) {
+                return e;
+            }
+            SocketTimeoutException timeout = new SocketTimeoutException("Read timed out");
+            timeout.initCause(e);
+            return timeout;
+        }
+    }
+
+    /**
+     * A reply body subscriber that gives up when no part of the body arrives for {@code readTimeoutMs}: it cancels
+     * the body and fails with a {@link SocketTimeoutException}.
+     */
+    private static final class TimedBodySubscriber<T> implements HttpResponse.BodySubscriber<T> {
+        private final HttpResponse.BodySubscriber<T> body;
+        private final int readTimeoutMs;
+        private final AtomicBoolean done = new AtomicBoolean();
+        private volatile Flow.Subscription subscription;
+        private volatile SPFEDeadline watch;
+
+        TimedBodySubscriber(HttpResponse.BodySubscriber<T> body, int readTimeoutMs) {
+            this.body = body;
+            this.readTimeoutMs = readTimeoutMs;
+        }
+
+        @Override
+        public CompletionStage<T> getBody() {
+            return body.getBody();
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            rearm();
+            body.onSubscribe(subscription);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> item) {
+            if (!done.get()) {
+                rearm();
+                body.onNext(item);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            stop();
+            if (done.compareAndSet(false, true)) {
+                body.onError(throwable);
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            stop();
+            if (done.compareAndSet(false, true)) {
+                body.onComplete();
+            }
+        }
+
+        private void rearm() {
+            stop();
+            SPFEDeadline next = new SPFEDeadline(readTimeoutMs);
+            watch = next;
+            next.attach(this::timeOut);
+        }
+
+        private void stop() {
+            SPFEDeadline current = watch;
+            if (current != null) {
+                current.cancel();
+            }
+        }
+
+        private void timeOut() {
+            if (done.compareAndSet(false, true)) {
+                subscription.cancel();
+                body.onError(new SocketTimeoutException("Read timed out"));
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * SPFEThreads.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual threads, Java 21 version: calls the API directly where the Java 8 version looks it up reflectively.
+ */
+final class SPFEThreads {
+
+    private SPFEThreads() {
+    }
+
+    static boolean isVirtualThreadsAvailable() {
+        return true;
+    }
+
+    static boolean isVirtual(Thread thread) {
+        return thread.isVirtual();
+    }
+
+    /** Factory of virtual threads named {@code namePrefix} followed by a counter starting at 1. */
+    static ThreadFactory virtualThreadFactory(String namePrefix) {
+        return Thread.ofVirtual().name(namePrefix, 1).factory();
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * ConnectionSetupBenchmark.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of building a {@link WWPassConnection}: key import, PKCS12 keystore, root CA and {@code SSLContext}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConnectionSetupBenchmark {
+
+    private X509Certificate certificate;
+    private PKCS8EncodedKeySpec key;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException {
+        SPFECertificates certificates = SPFECertificates.generate(SPFESimulator.SP_NAME);
+        certificate = certificates.getClientCertificate();
+        key = certificates.getClientKey();
+    }
+
+    @Benchmark
+    public WWPassConnection construct() throws IOException, GeneralSecurityException {
+        return new WWPassConnection(certificate, key);
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * HandshakeBenchmark.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Full TLS handshakes with client authentication against a local stand-in server, RSA 2048 against EC P-256
+ * keys, with TLS 1.3 and TLS 1.2. The client side is set up by {@link WWPassConnection} from
+ * {@link WWPassTlsOptions}. The stand-in runs in the same process with keys of the same type, so the figures
+ * include its side of the handshake as well; it only handshakes, so nothing else is measured. Sessions are
+ * invalidated after every handshake, so none is resumed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class HandshakeBenchmark {
+
+    @Param({"RSA", "EC"})
+    public String keyAlgorithm;
+
+    @Param({"TLSv1.3", "TLSv1.2"})
+    public String protocol;
+
+    private SSLServerSocket server;
+    private ExecutorService handlers;
+    private SSLSocketFactory socketFactory;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, GeneralSecurityException {
+        SPFECertificates certificates = SPFECertificates.generate(SPFESimulator.SP_NAME, keyAlgorithm);
+        server = (SSLServerSocket) certificates.createServerContext().getServerSocketFactory()
+                .createServerSocket(0, 256, InetAddress.getLoopbackAddress());
+        server.setNeedClientAuth(true);
+        handlers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "Handshake stand-in");
+            thread.setDaemon(true);
+            return thread;
+        });
+        handlers.execute(this::accept);
+
+        WWPassConnection connection = new WWPassConnection(certificates.getClientCertificate(), certificates.getClientKey(),
+                WWPassConnection.DEFAULT_TIMEOUT_SEC, "localhost:" + server.getLocalPort(), certificates.getCACertificate(),
+                new WWPassTlsOptions().withProtocols(protocol));
+        socketFactory = connection.credentials().socketFactory;
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                handlers.execute(() -> handshake(socket));
+            } catch (IOException e) {
+                return;  // Closed
+            }
+        }
+    }
+
+    private static void handshake(Socket socket) {
+        try (Socket closed = socket; InputStream input = closed.getInputStream()) {
+            while (input.read() >= 0) {
+                // The client closes as soon as it is done
+            }
+        } catch (IOException ignored) {
+            // The client went away
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.close();
+        handlers.shutdownNow();
+    }
+
+    @Benchmark
+    public String handshake() throws IOException {
+        try (Socket plain = new Socket()) {
+            plain.setTcpNoDelay(true);
+            plain.connect(new InetSocketAddress(server.getInetAddress(), server.getLocalPort()));
+            try (SSLSocket socket = (SSLSocket) socketFactory.createSocket(plain, "localhost", server.getLocalPort(), true)) {
+                socket.startHandshake();
+                String negotiated = socket.getSession().getProtocol();
+                socket.getSession().invalidate();
+                return negotiated;
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * HedgingBenchmark.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@code getPUID} against a {@link SPFESimulator} that stalls {@code slowPercent} of its replies by
+ * {@code slowMs}, with and without {@link SPFEHedging}. Compare the p99 of the sample time; the report printed at
+ * the end of each trial tells how many calls were hedged.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class HedgingBenchmark {
+
+    @Param({"false", "true"})
+    public boolean hedging;
+
+    @Param({"2"})
+    public double slowPercent;
+
+    @Param({"200"})
+    public long slowMs;
+
+    private SPFESimulator simulator;
+    private WWPassConnection connection;
+    private String ticket;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, GeneralSecurityException {
+        simulator = SPFESimulator.start();
+        simulator.setLatency(5, 2);
+        simulator.setSlowReplies(slowPercent / 100, slowMs);
+        connection = simulator.connect(WWPassConnection.DEFAULT_TIMEOUT_SEC);
+        connection.setConnectionPool(new SPFEConnectionPool());
+        if (hedging) {
+            connection.setHedging(new SPFEHedging());
+        }
+        ticket = connection.getTicket();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (connection.getHedging() != null) {
+            System.out.println("Hedging: " + connection.getHedging());
+        }
+        connection.getConnectionPool().close();
+        simulator.close();
+    }
+
+    @Benchmark
+    public String getPUID() throws IOException {
+        return connection.getPUID(ticket);
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * ReplyParserBenchmark.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.wwpass.WWPassConnection.WWPassReply;
+
+/**
+ * {@code getReplyData} on SPFE replies ranging from a ticket to a large container.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReplyParserBenchmark {
+
+    @Param({"64", "4096", "65536", "524288"})
+    public int payloadSize;
+
+    @Param({"plain", "base64"})
+    public String encoding;
+
+    private byte[] reply;
+
+    @Setup
+    public void setUp() {
+        // Mixed-script text, as stored in user containers
+        String alphabet = "abcdefghijklmnopqrstuvwxyz0123456789 Даниил达尼尔";
+        Random random = new Random(42);
+        StringBuilder data = new StringBuilder(payloadSize);
+        while (data.length() < payloadSize) {
+            data.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        String value = "base64".equals(encoding)
+                ? Base64.getEncoder().encodeToString(data.toString().getBytes(StandardCharsets.UTF_8))
+                : data.toString();
+        reply = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<reply><result>true</result>"
+                + "<data encoding=\"" + encoding + "\">" + value + "</data>"
+                + "<ttl encoding=\"plain\">600</ttl></reply>\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public WWPassReply getReplyData() throws IOException {
+        return WWPassConnection.getReplyData(new ByteArrayInputStream(reply));
+    }
+}
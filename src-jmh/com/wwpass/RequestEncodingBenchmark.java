@@ -0,0 +1,96 @@
+/**
+ * RequestEncodingBenchmark.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Query string and form body building done for every SPFE call, next to the {@link URLEncoder} based encoding
+ * it replaced. Run with the {@code gc} profiler to see the allocation rate per call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestEncodingBenchmark {
+
+    private Map<String, String> puidParameters;
+    private Map<String, String> writeParameters;
+
+    @Setup
+    public void setUp() {
+        puidParameters = WWPassConnection.puidRequest("SPFE Simulator:0123456789abcdef0123456789abcdef@localhost:443", "p").parameters;
+        writeParameters = WWPassConnection.writeSPRequest("0123456789abcdef0123456789abcdef", "{\"name\": \"Даниил\", \"role\": \"admin & owner\"}").parameters;
+    }
+
+    private static int encode(Map<String, String> parameters) {
+        SPFERequestEncoder encoder = SPFERequestEncoder.acquire();
+        try {
+            encoder.parameters(parameters);
+            return encoder.length();
+        } finally {
+            encoder.release();
+        }
+    }
+
+    private static String urlEncoder(Map<String, String> parameters) throws IOException {
+        StringBuilder paramsString = new StringBuilder();
+        for (Map.Entry<String, String> entry : parameters.entrySet()) {
+            paramsString.append(URLEncoder.encode(entry.getKey(), "UTF-8")).append("=").append(URLEncoder.encode(entry.getValue(), "UTF-8")).append("&");
+        }
+        return paramsString.toString();
+    }
+
+    @Benchmark
+    public int puid() {
+        return encode(puidParameters);
+    }
+
+    @Benchmark
+    public int writeSP() {
+        return encode(writeParameters);
+    }
+
+    @Benchmark
+    public String puidURLEncoder() throws IOException {
+        return urlEncoder(puidParameters);
+    }
+
+    @Benchmark
+    public String writeSPURLEncoder() throws IOException {
+        return urlEncoder(writeParameters);
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * RoundTripBenchmark.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Login round trip, {@code putTicket} followed by {@code getPUID}, against a local {@link SPFESimulator}.
+ * Run with {@code -t} to add concurrent callers; {@code latencyMs} stands for the network distance to SPFE.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RoundTripBenchmark {
+
+    @Param({"HttpsURLConnection", "SPFEConnectionPool"})
+    public String transport;
+
+    @Param({"0", "20"})
+    public long latencyMs;
+
+    private SPFESimulator simulator;
+    private WWPassConnection connection;
+    private String ticket;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, GeneralSecurityException {
+        simulator = SPFESimulator.start();
+        simulator.setLatency(latencyMs, 0);
+        connection = simulator.connect(WWPassConnection.DEFAULT_TIMEOUT_SEC);
+        if ("SPFEConnectionPool".equals(transport)) {
+            connection.setConnectionPool(new SPFEConnectionPool());
+        }
+        ticket = connection.getTicket();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        SPFEConnectionPool pool = connection.getConnectionPool();
+        if (pool != null) {
+            pool.close();
+        }
+        simulator.close();
+    }
+
+    @Benchmark
+    public String putTicketAndGetPUID() throws IOException {
+        String newTicket = connection.putTicket(ticket);
+        return connection.getPUID(newTicket);
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * VirtualThreadBenchmark.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@code flows} concurrent logins, each a blocking {@code putTicket} followed by {@code getPUID}, against a local
+ * {@link SPFESimulator} answering after {@code latencyMs}. One operation starts all flows and waits for them.
+ * <p>
+ * The forked JVM schedules virtual threads on {@value #CARRIERS} carriers; {@code platform} runs the flows on
+ * that many platform threads instead. With virtual threads an operation should take about two round trips
+ * however many flows there are, while with platform threads it grows with {@code flows / CARRIERS}. A flow that
+ * pinned its carrier would bring virtual threads down to the platform figures. Needs a Java 21 JVM.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Djdk.virtualThreadScheduler.parallelism=4", "-Djdk.virtualThreadScheduler.maxPoolSize=4"})
+public class VirtualThreadBenchmark {
+
+    static final int CARRIERS = 4;  // As set for the fork
+
+    @Param({"virtual", "platform"})
+    public String threads;
+
+    @Param({"100", "1000"})
+    public int flows;
+
+    @Param({"20"})
+    public long latencyMs;
+
+    private SPFESimulator simulator;
+    private SPFEConnectionPool pool;
+    private WWPassConnection connection;
+    private ExecutorService platformThreads;
+    private Executor executor;
+    private String ticket;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, GeneralSecurityException {
+        if ("virtual".equals(threads)) {
+            executor = WWPassExecutors.virtualThreads();  // Fails fast before Java 21
+        } else {
+            platformThreads = Executors.newFixedThreadPool(CARRIERS);
+            executor = platformThreads;
+        }
+        simulator = SPFESimulator.start();
+        simulator.setLatency(latencyMs, 0);
+        connection = simulator.connect(WWPassConnection.DEFAULT_TIMEOUT_SEC);
+        pool = new SPFEConnectionPool(flows);  // No flow waits for a connection
+        connection.setConnectionPool(pool);
+        ticket = connection.getTicket();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (platformThreads != null) {
+            platformThreads.shutdownNow();
+        }
+        pool.close();
+        simulator.close();
+    }
+
+    @Benchmark
+    public void loginFlows() {
+        CompletableFuture<?>[] done = new CompletableFuture<?>[flows];
+        for (int i = 0; i < flows; i++) {
+            done[i] = CompletableFuture.runAsync(() -> {
+                try {
+                    connection.getPUID(connection.putTicket(ticket));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, executor);
+        }
+        CompletableFuture.allOf(done).join();
+    }
+}
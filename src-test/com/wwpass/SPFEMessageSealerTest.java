@@ -0,0 +1,104 @@
+/**
+ * SPFEMessageSealerTest.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.junit.jupiter.api.Test;
+
+/** {@link SPFEMessageSealer} against the JSON the {@code get} message was built with before, by json-simple. */
+class SPFEMessageSealerTest {
+
+    private static final byte[] NONCE = { 0x7c, 0x0b, (byte) 0xb4, (byte) 0xd6, 0x0d, (byte) 0x8b, (byte) 0xc2, (byte) 0xc9,
+            0x0d, (byte) 0x90, (byte) 0xd9, 0x57, (byte) 0xbd, 0x2d, 0x21, (byte) 0xfd };
+
+    private final SPFEMessageSealer sealer = new SPFEMessageSealer(NONCE);
+
+    @Test
+    void sameAsJsonSimple() throws IOException, GeneralSecurityException {
+        Random random = new Random(1);
+        for (int length = 0; length < 300; length++) {  // Every base64 padding of ciphertext, and '/' in most of them
+            StringBuilder message = new StringBuilder();
+            for (int i = 0; i < length; i++) {
+                message.append((char) (0x20 + random.nextInt(0x400)));
+            }
+            byte[] key = SPFEMessageSealer.newKey();
+            assertEquals(legacySeal(message.toString(), key), sealer.seal(message.toString(), key));
+        }
+    }
+
+    @Test
+    void opensWithTheKey() throws IOException, GeneralSecurityException, ParseException {
+        byte[] key = SPFEMessageSealer.newKey();
+        String message = "Confirm the transfer of 100 € to «Example»";
+        JSONObject sealed = (JSONObject) new JSONParser().parse(sealer.seal(message, key));
+        Base64.Decoder decoder = Base64.getDecoder();
+        byte[] cipherText = decoder.decode((String) sealed.get("ciphertext"));
+        byte[] tag = decoder.decode((String) sealed.get("tag"));
+        byte[] nonce = decoder.decode((String) sealed.get("nonce"));
+        assertEquals(Base64.getEncoder().encodeToString(NONCE), Base64.getEncoder().encodeToString(nonce));
+
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(SPFEMessageSealer.TAG_LENGTH * 8, nonce));
+        cipher.update(cipherText);
+        assertEquals(message, new String(cipher.doFinal(tag), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void largeMessagesDontStickToTheThread() throws IOException, GeneralSecurityException {
+        char[] large = new char[100 * 1024];
+        Arrays.fill(large, 'x');
+        byte[] key = SPFEMessageSealer.newKey();
+        assertEquals(legacySeal(new String(large), key), sealer.seal(new String(large), key));
+        key = SPFEMessageSealer.newKey();  // A cipher refuses the same key and nonce twice
+        assertEquals(legacySeal("small", key), sealer.seal("small", key));
+    }
+
+    /** The sealing code of getTicket before SPFEMessageSealer. */
+    private static String legacySeal(String message, byte[] messageKey) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(messageKey, "AES"), new GCMParameterSpec(SPFEMessageSealer.TAG_LENGTH * 8, NONCE));
+        byte[] result = cipher.doFinal(message.getBytes(StandardCharsets.UTF_8));
+        byte[] cipherText = Arrays.copyOfRange(result, 0, result.length - SPFEMessageSealer.TAG_LENGTH);
+        byte[] tag = Arrays.copyOfRange(result, result.length - SPFEMessageSealer.TAG_LENGTH, result.length);
+        Map<String, String> map = new HashMap<>();
+        Base64.Encoder base64encoder = Base64.getEncoder();
+        map.put("ciphertext", base64encoder.encodeToString(cipherText));
+        map.put("tag", base64encoder.encodeToString(tag));
+        map.put("nonce", base64encoder.encodeToString(NONCE));
+        return new JSONObject(map).toJSONString();
+    }
+}
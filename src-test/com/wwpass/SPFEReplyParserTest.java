@@ -0,0 +1,320 @@
+/**
+ * SPFEReplyParserTest.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import com.wwpass.WWPassConnection.WWPassProtocolException;
+import com.wwpass.WWPassConnection.WWPassReply;
+
+/**
+ * {@link SPFEReplyParser} against the DOM parser it replaced, which is kept here as {@link #legacyParse}, and its
+ * own sink and binary variants.
+ */
+class SPFEReplyParserTest {
+
+    private static final String HEAD = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>";
+
+    @Test
+    void plainData() throws IOException {
+        assertSameAsLegacy(reply("true", plain("some &amp; data &lt;here&gt;")));
+        assertSameAsLegacy(reply("true", plain("")));
+        assertSameAsLegacy(reply("true", plain("Ünïcödé ✓ 😀")));
+    }
+
+    @Test
+    void base64Data() throws IOException {
+        assertSameAsLegacy(reply("true", base64("Ünïcödé ✓ 😀")));
+        assertSameAsLegacy(reply("true", "<data encoding=\"BASE64\">" + encode("upper case encoding") + "</data>"));
+        assertSameAsLegacy(reply("true", base64("")));
+    }
+
+    @Test
+    void base64WrappedInLines() throws IOException {
+        String wrapped = Base64.getMimeEncoder(8, "\n".getBytes(StandardCharsets.US_ASCII))
+                .encodeToString("a value long enough to wrap over several lines".getBytes(StandardCharsets.UTF_8));
+        assertSameAsLegacy(reply("true", "<data encoding=\"base64\">" + wrapped + "</data>"));
+        assertSameAsLegacy(reply("true", "<data encoding=\"base64\">" + wrapped.replace("\n", "\r\n") + "</data>"));
+    }
+
+    @Test
+    void base64Padding() throws IOException {
+        for (String value : new String[] { "a", "ab", "abc", "abcd", "abcde" }) {
+            assertEquals(value, parse(reply("true", base64(value))).getData());
+        }
+        assertEquals("a", parse(reply("true", "<data encoding=\"base64\">YQ</data>")).getData());  // Unpadded
+        assertEquals("ab", parse(reply("true", "<data encoding=\"base64\">YWI</data>")).getData());
+    }
+
+    @Test
+    void illegalBase64() {
+        for (String value : new String[] { "YQ=", "Y", "YWJjZ", "YQ===", "Y=Q=", "YQ==YQ==", "YW J j", "YW$j", "YWJjé" }) {
+            WWPassProtocolException e = assertThrows(WWPassProtocolException.class,
+                    () -> parse(reply("true", "<data encoding=\"base64\">" + value + "</data>")), value);
+            assertEquals("Malformed SPFE reply: illegal base64 data", e.getMessage());
+            // The old parser rejected all of them too, with the decoder's IllegalArgumentException
+            assertThrows(IllegalArgumentException.class,
+                    () -> legacyParse(bytes(reply("true", "<data encoding=\"base64\">" + value + "</data>"))), value);
+        }
+    }
+
+    @Test
+    void randomValues() throws IOException {
+        Random random = new Random(1);
+        for (int i = 0; i < 200; i++) {
+            StringBuilder value = new StringBuilder();
+            for (int n = random.nextInt(100); n > 0; n--) {
+                value.append((char) (0x20 + random.nextInt(random.nextBoolean() ? 0x5f : 0x2000)));
+            }
+            String text = value.toString();
+            assertSameAsLegacy(reply("true", base64(text), "<ttl encoding=\"plain\">" + random.nextInt(1000) + "</ttl>"));
+            assertSameAsLegacy(reply("true", plain(escape(text))));
+        }
+    }
+
+    @Test
+    void ttlAndOriginalTicket() throws IOException {
+        assertSameAsLegacy(reply("true", plain("ticket"), "<ttl encoding=\"plain\">600</ttl>",
+                "<originalTicket encoding=\"plain\">old:ticket</originalTicket>"));
+        assertSameAsLegacy(reply("true", plain("ticket"), "<ttl encoding=\"base64\">" + encode("120") + "</ttl>",
+                "<originalTicket encoding=\"base64\">" + encode("old:ticket") + "</originalTicket>"));
+        WWPassReply reply = parse(reply("true", plain("ticket"), "<ttl encoding=\"plain\">600</ttl>"));
+        assertEquals(600, reply.getTtl());
+        assertNull(reply.getOriginalTicket());
+    }
+
+    @Test
+    void badTtl() throws IOException {
+        String xml = reply("true", plain("ticket"), "<ttl encoding=\"plain\">soon</ttl>");
+        assertEquals("unable to convert ttl to int",
+                assertThrows(WWPassProtocolException.class, () -> parse(xml)).getMessage());
+        assertEquals("unable to convert ttl to int",
+                assertThrows(WWPassProtocolException.class, () -> legacyParse(bytes(xml))).getMessage());
+    }
+
+    @Test
+    void dataBeforeResult() throws IOException {
+        String xml = HEAD + "<reply>" + base64("data first") + "<result>true</result></reply>";
+        assertSameAsLegacy(xml);
+        assertEquals("data first", sink(xml));
+        assertArrayEquals("data first".getBytes(StandardCharsets.UTF_8), SPFEReplyParser.parseBinary(input(xml)).getRawData());
+    }
+
+    @Test
+    void errorReply() throws IOException {
+        assertSameAsLegacy(reply("false", plain("Invalid ticket")));
+        assertSameAsLegacy(reply("FALSE", base64("Ticket ünknown")));
+        WWPassProtocolException e = assertThrows(WWPassProtocolException.class,
+                () -> parse(reply("false", plain("Invalid ticket"))));
+        assertEquals("SPFE returned error: Invalid ticket", e.getMessage());
+    }
+
+    @Test
+    void errorReplyNeverReachesTheSink() {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        WWPassProtocolException e = assertThrows(WWPassProtocolException.class,
+                () -> SPFEReplyParser.parse(input(reply("false", base64("No such container"))), sink));
+        assertEquals("SPFE returned error: No such container", e.getMessage());
+        assertEquals(0, sink.size());
+        e = assertThrows(WWPassProtocolException.class,
+                () -> SPFEReplyParser.parseBinary(input(reply("false", plain("No such container")))));
+        assertEquals("SPFE returned error: No such container", e.getMessage());
+    }
+
+    @Test
+    void missingElements() {
+        assertEquals("Malformed SPFE reply: result is missing", assertThrows(WWPassProtocolException.class,
+                () -> parse(HEAD + "<reply>" + plain("x") + "</reply>")).getMessage());
+        assertEquals("Malformed SPFE reply: data is missing", assertThrows(WWPassProtocolException.class,
+                () -> parse(HEAD + "<reply><result>true</result></reply>")).getMessage());
+        assertThrows(WWPassProtocolException.class, () -> parse(HEAD + "<reply><result>true</result><data>x"));
+        assertThrows(WWPassProtocolException.class, () -> parse("not XML at all"));
+    }
+
+    @Test
+    void doctypeRejected() {
+        String xml = HEAD + "<!DOCTYPE reply [<!ENTITY secret SYSTEM \"file:///etc/passwd\">]>"
+                + "<reply><result>true</result><data encoding=\"plain\">&secret;</data></reply>";
+        WWPassProtocolException e = assertThrows(WWPassProtocolException.class, () -> parse(xml));
+        assertEquals("Malformed SPFE reply: DOCTYPE is not allowed", e.getMessage());
+        assertThrows(WWPassProtocolException.class, () -> legacyParse(bytes(xml)));
+    }
+
+    @Test
+    void sinkGetsTheDataInstead() throws IOException {
+        String value = "Ünïcödé ✓ " + repeat("0123456789", 2000);  // Several decoder buffers
+        for (String data : new String[] { plain(value), base64(value) }) {
+            ByteArrayOutputStream sink = new ByteArrayOutputStream();
+            WWPassReply reply = SPFEReplyParser.parse(input(reply("true", data, "<ttl encoding=\"plain\">5</ttl>")), sink);
+            assertNull(reply.getData());
+            assertEquals(5, reply.getTtl());
+            assertEquals(value, new String(sink.toByteArray(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void binaryKeepsTheBytes() throws IOException {
+        byte[] bytes = new byte[256];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;  // Not valid UTF-8
+        }
+        String data = "<data encoding=\"base64\">" + Base64.getEncoder().encodeToString(bytes) + "</data>";
+        WWPassReply reply = SPFEReplyParser.parseBinary(input(reply("true", data)));
+        assertNull(reply.getData());
+        assertArrayEquals(bytes, reply.getRawData());
+
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        SPFEReplyParser.parse(input(reply("true", data)), sink);
+        assertArrayEquals(bytes, sink.toByteArray());
+
+        assertArrayEquals("plain".getBytes(StandardCharsets.UTF_8),
+                SPFEReplyParser.parseBinary(input(reply("true", plain("plain")))).getRawData());
+    }
+
+    private static void assertSameAsLegacy(String xml) throws IOException {
+        WWPassReply expected;
+        try {
+            expected = legacyParse(bytes(xml));
+        } catch (WWPassProtocolException e) {
+            assertEquals(e.getMessage(), assertThrows(WWPassProtocolException.class, () -> parse(xml)).getMessage());
+            return;
+        }
+        WWPassReply actual = parse(xml);
+        assertEquals(expected.getData(), actual.getData());
+        assertEquals(expected.getTtl(), actual.getTtl());
+        assertEquals(expected.getOriginalTicket(), actual.getOriginalTicket());
+        assertEquals(expected.getData(), sink(xml));
+        assertArrayEquals(expected.getData().getBytes(StandardCharsets.UTF_8), SPFEReplyParser.parseBinary(input(xml)).getRawData());
+    }
+
+    private static WWPassReply parse(String xml) throws IOException {
+        return SPFEReplyParser.parse(input(xml));
+    }
+
+    private static String sink(String xml) throws IOException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        SPFEReplyParser.parse(input(xml), sink);
+        return new String(sink.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static String reply(String result, String... elements) {
+        return HEAD + "<reply><result>" + result + "</result>" + String.join("", elements) + "</reply>";
+    }
+
+    private static String plain(String value) {
+        return "<data encoding=\"plain\">" + value + "</data>";
+    }
+
+    private static String base64(String value) {
+        return "<data encoding=\"base64\">" + encode(value) + "</data>";
+    }
+
+    private static String encode(String value) {
+        return Base64.getEncoder().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private static String repeat(String value, int count) {
+        StringBuilder repeated = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            repeated.append(value);
+        }
+        return repeated.toString();
+    }
+
+    private static byte[] bytes(String xml) {
+        return xml.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static InputStream input(String xml) {
+        return new ByteArrayInputStream(bytes(xml));
+    }
+
+    /** The reply parser SPFEReplyParser replaced, reading the reply line by line into a DOM. */
+    private static WWPassReply legacyParse(byte[] raw) throws IOException {
+        DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+        try {
+            documentBuilderFactory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            DocumentBuilder documentBuilder = documentBuilderFactory.newDocumentBuilder();
+            BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(raw), StandardCharsets.UTF_8));
+            StringBuilder stringBuilder = new StringBuilder();
+            for (String line = bufferedReader.readLine(); line != null; line = bufferedReader.readLine()) {
+                stringBuilder.append(line);
+            }
+            Element element = documentBuilder.parse(new InputSource(new StringReader(stringBuilder.toString()))).getDocumentElement();
+            boolean result = element.getElementsByTagName("result").item(0).getTextContent().equalsIgnoreCase("true");
+            String data = legacyValue((Element) element.getElementsByTagName("data").item(0));
+            if (!result) {
+                throw new WWPassProtocolException("SPFE returned error: " + data);
+            }
+            WWPassReply reply = new WWPassReply(data);
+            NodeList ttl = element.getElementsByTagName("ttl");
+            if (ttl.getLength() > 0) {
+                try {
+                    reply.setTtl(legacyValue((Element) ttl.item(0)));
+                } catch (NumberFormatException e) {
+                    throw new WWPassProtocolException("unable to convert ttl to int");
+                }
+            }
+            NodeList originalTicket = element.getElementsByTagName("originalTicket");
+            if (originalTicket.getLength() > 0) {
+                reply.setOriginalTicket(legacyValue((Element) originalTicket.item(0)));
+            }
+            return reply;
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new WWPassProtocolException("Malformed SPFE reply: " + e.getMessage());
+        }
+    }
+
+    private static String legacyValue(Element element) {
+        String encoding = element.getAttributes().getNamedItem("encoding").getTextContent();
+        if ("base64".equalsIgnoreCase(encoding)) {
+            return new String(Base64.getDecoder().decode(element.getTextContent()), StandardCharsets.UTF_8);
+        }
+        return element.getTextContent();
+    }
+}
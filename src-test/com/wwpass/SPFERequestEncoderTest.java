@@ -0,0 +1,152 @@
+/**
+ * SPFERequestEncoderTest.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/** {@link SPFERequestEncoder} against the {@link URLEncoder} form encoding it replaced. */
+class SPFERequestEncoderTest {
+
+    @Test
+    void everyAsciiCharacter() throws UnsupportedEncodingException {
+        StringBuilder ascii = new StringBuilder();
+        for (char c = 0; c < 0x80; c++) {
+            ascii.append(c);
+        }
+        assertSameAsURLEncoder(Collections.singletonMap("ascii", ascii.toString()));
+    }
+
+    @Test
+    void unicode() throws UnsupportedEncodingException {
+        Map<String, String> parameters = new LinkedHashMap<>();
+        parameters.put("two bytes", "Ünïcödé");
+        parameters.put("three bytes", "✓ €");
+        parameters.put("four bytes", "😀 𝄞");
+        parameters.put("lone high surrogate", "a\ud83d");
+        parameters.put("lone low surrogate", "\ude00b");
+        parameters.put("reversed pair", "\ude00\ud83d");
+        parameters.put("", "");
+        assertSameAsURLEncoder(parameters);
+    }
+
+    @Test
+    void randomParameters() throws UnsupportedEncodingException {
+        Random random = new Random(1);
+        for (int i = 0; i < 500; i++) {
+            Map<String, String> parameters = new LinkedHashMap<>();
+            for (int n = random.nextInt(5); n >= 0; n--) {
+                parameters.put(randomString(random, 10), randomString(random, 200));
+            }
+            assertSameAsURLEncoder(parameters);
+        }
+    }
+
+    @Test
+    void growsForLargeValues() throws UnsupportedEncodingException {
+        StringBuilder large = new StringBuilder();
+        while (large.length() < SPFERequestEncoder.MAX_RETAINED_SIZE) {
+            large.append("✓ value ");
+        }
+        assertSameAsURLEncoder(Collections.singletonMap("data", large.toString()));
+        assertSameAsURLEncoder(Collections.singletonMap("data", "small again"));
+    }
+
+    @Test
+    void binaryData() throws UnsupportedEncodingException {
+        byte[] bytes = new byte[256];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        ByteBuffer data = ByteBuffer.wrap(bytes);
+        data.position(16);
+        String expected = "ticket=t%3A1&data=" + URLEncoder.encode(new String(bytes, 16, 240, StandardCharsets.ISO_8859_1), "ISO-8859-1");
+        SPFERequestEncoder encoder = SPFERequestEncoder.acquire();
+        try {
+            encoder.parameters(Collections.singletonMap("ticket", "t:1"));
+            encoder.data(data);
+            assertEquals(expected, new String(encoder.array(), 0, encoder.length(), StandardCharsets.US_ASCII));
+            assertEquals(16, data.position());  // Left as it was
+        } finally {
+            encoder.release();
+        }
+    }
+
+    @Test
+    void nestedCallsGetTheirOwnEncoder() {
+        SPFERequestEncoder outer = SPFERequestEncoder.acquire();
+        try {
+            SPFERequestEncoder inner = SPFERequestEncoder.acquire();
+            assertNotSame(outer, inner);
+            inner.release();
+        } finally {
+            outer.release();
+        }
+    }
+
+    private static void assertSameAsURLEncoder(Map<String, String> parameters) throws UnsupportedEncodingException {
+        StringBuilder expected = new StringBuilder();
+        for (Map.Entry<String, String> entry : parameters.entrySet()) {
+            if (expected.length() > 0) {
+                expected.append('&');
+            }
+            expected.append(URLEncoder.encode(entry.getKey(), "UTF-8")).append('=').append(URLEncoder.encode(entry.getValue(), "UTF-8"));
+        }
+        SPFERequestEncoder encoder = SPFERequestEncoder.acquire();
+        try {
+            encoder.parameters(parameters);
+            assertEquals(expected.toString(), new String(encoder.array(), 0, encoder.length(), StandardCharsets.US_ASCII));
+        } finally {
+            encoder.release();
+        }
+    }
+
+    private static String randomString(Random random, int maxLength) {
+        StringBuilder value = new StringBuilder();
+        for (int n = random.nextInt(maxLength); n > 0; n--) {
+            switch (random.nextInt(4)) {
+                case 0:
+                    value.append((char) random.nextInt(0x80));
+                    break;
+                case 1:
+                    value.append((char) (0x80 + random.nextInt(0x780)));
+                    break;
+                case 2:
+                    value.append((char) (0x800 + random.nextInt(0xf800)));  // Lone surrogates included
+                    break;
+                default:
+                    value.appendCodePoint(0x10000 + random.nextInt(0x100000));
+                    break;
+            }
+        }
+        return value.toString();
+    }
+}
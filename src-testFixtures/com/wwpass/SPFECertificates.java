@@ -0,0 +1,173 @@
+/**
+ * SPFECertificates.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.ExtendedKeyUsage;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.cert.CertIOException;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+/**
+ * Throwaway PKI for a local SPFE stand-in: a CA, an SPFE server certificate for {@code localhost} and an SP
+ * client certificate, all generated in memory.
+ */
+public final class SPFECertificates {
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final KeyPair caKeys;
+    private final X509Certificate caCertificate;
+    private final KeyPair serverKeys;
+    private final X509Certificate serverCertificate;
+    private final KeyPair clientKeys;
+    private final X509Certificate clientCertificate;
+
+    private SPFECertificates(String spName, String keyAlgorithm) throws GeneralSecurityException {
+        Date notBefore = new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1));
+        Date notAfter = new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(365));
+
+        caKeys = generateKeyPair(keyAlgorithm);
+        X500Name caName = new X500Name("CN=SPFE Simulator Root CA");
+        try {
+            X509v3CertificateBuilder ca = new JcaX509v3CertificateBuilder(caName, serial(), notBefore, notAfter, caName, caKeys.getPublic());
+            ca.addExtension(Extension.basicConstraints, true, new BasicConstraints(true));
+            ca.addExtension(Extension.keyUsage, true, new KeyUsage(KeyUsage.keyCertSign | KeyUsage.cRLSign));
+            caCertificate = sign(ca, caKeys.getPrivate());
+
+            serverKeys = generateKeyPair(keyAlgorithm);
+            X509v3CertificateBuilder server = new JcaX509v3CertificateBuilder(caName, serial(), notBefore, notAfter,
+                    new X500Name("CN=localhost"), serverKeys.getPublic());
+            server.addExtension(Extension.basicConstraints, true, new BasicConstraints(false));
+            server.addExtension(Extension.extendedKeyUsage, false, new ExtendedKeyUsage(KeyPurposeId.id_kp_serverAuth));
+            server.addExtension(Extension.subjectAlternativeName, false, new GeneralNames(new GeneralName[] {
+                    new GeneralName(GeneralName.dNSName, "localhost"),
+                    new GeneralName(GeneralName.iPAddress, "127.0.0.1"),
+            }));
+            serverCertificate = sign(server, caKeys.getPrivate());
+
+            clientKeys = generateKeyPair(keyAlgorithm);
+            X509v3CertificateBuilder client = new JcaX509v3CertificateBuilder(caName, serial(), notBefore, notAfter,
+                    new X500Name("CN=" + spName), clientKeys.getPublic());
+            client.addExtension(Extension.basicConstraints, true, new BasicConstraints(false));
+            client.addExtension(Extension.extendedKeyUsage, false, new ExtendedKeyUsage(KeyPurposeId.id_kp_clientAuth));
+            clientCertificate = sign(client, caKeys.getPrivate());
+        } catch (CertIOException e) {
+            throw new GeneralSecurityException(e);
+        }
+    }
+
+    public static SPFECertificates generate(String spName) throws GeneralSecurityException {
+        return new SPFECertificates(spName, "RSA");
+    }
+
+    /** Keys of {@code keyAlgorithm} throughout: {@code "RSA"} (2048 bits) or {@code "EC"} (P-256). */
+    public static SPFECertificates generate(String spName, String keyAlgorithm) throws GeneralSecurityException {
+        return new SPFECertificates(spName, keyAlgorithm);
+    }
+
+    private static KeyPair generateKeyPair(String algorithm) throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance(algorithm);
+        generator.initialize("EC".equals(algorithm) ? 256 : 2048, RANDOM);
+        return generator.generateKeyPair();
+    }
+
+    private static BigInteger serial() {
+        return new BigInteger(64, RANDOM);
+    }
+
+    private static X509Certificate sign(X509v3CertificateBuilder builder, PrivateKey issuerKey) throws GeneralSecurityException {
+        String algorithm = "EC".equals(issuerKey.getAlgorithm()) ? "SHA256withECDSA" : "SHA256withRSA";
+        try {
+            ContentSigner signer = new JcaContentSignerBuilder(algorithm).build(issuerKey);
+            return new JcaX509CertificateConverter().getCertificate(builder.build(signer));
+        } catch (OperatorCreationException e) {
+            throw new GeneralSecurityException(e);
+        }
+    }
+
+    public X509Certificate getCACertificate() {
+        return caCertificate;
+    }
+
+    public X509Certificate getServerCertificate() {
+        return serverCertificate;
+    }
+
+    public PrivateKey getServerKey() {
+        return serverKeys.getPrivate();
+    }
+
+    public X509Certificate getClientCertificate() {
+        return clientCertificate;
+    }
+
+    /** The SP key in the form {@link WWPassConnection} takes it. */
+    public PKCS8EncodedKeySpec getClientKey() {
+        return new PKCS8EncodedKeySpec(clientKeys.getPrivate().getEncoded());
+    }
+
+    /** The SSL setup of an SPFE stand-in: presents the server certificate and trusts client certificates of the CA. */
+    public SSLContext createServerContext() throws IOException, GeneralSecurityException {
+        char[] password = "simulator".toCharArray();
+        KeyStore keys = KeyStore.getInstance("PKCS12");
+        keys.load(null);
+        keys.setKeyEntry("spfe", getServerKey(), password, new X509Certificate[] { serverCertificate, caCertificate });
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keys, password);
+
+        KeyStore trusted = KeyStore.getInstance("PKCS12");
+        trusted.load(null);
+        trusted.setCertificateEntry("ca", caCertificate);
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(trusted);
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(), RANDOM);
+        return context;
+    }
+}
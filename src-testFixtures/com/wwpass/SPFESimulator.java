@@ -0,0 +1,547 @@
+/**
+ * SPFESimulator.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsParameters;
+import com.sun.net.httpserver.HttpsServer;
+
+/**
+ * In-process HTTPS stand-in for the WWPass SPFE, for benchmarks, load tests and integration tests of the client.
+ * <p>
+ * The simulator generates its own PKI (see {@link SPFECertificates}) and requires the generated SP client
+ * certificate just like the real SPFE does. It answers {@code get}, {@code put}, {@code puid}, {@code read},
+ * {@code write}, {@code lock}, {@code unlock} and the {@code sp/*} commands, keeping user containers, SP-only
+ * containers and locks in memory. Tickets are self-contained: the same user keeps the same PUID across
+ * {@code put}, and a fresh {@code get} is a fresh user.
+ * <p>
+ * SPFE behaviour under load is configured with {@link #setLatency}, {@link #setErrorRate},
+ * {@link #setHttpErrorRate} and {@link #setPayloadSize}. Delayed replies are scheduled rather than slept on,
+ * so added latency does not cost a server thread per outstanding call.
+ */
+public final class SPFESimulator implements Closeable {
+
+    public static final String SP_NAME = "SPFE Simulator";
+    public static final int TICKET_TTL = 600;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    static {
+        // Without it every small reply waits out the client's delayed ACK and the simulator caps at ~25 calls/s per connection
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private final SPFECertificates certificates;
+    private final HttpsServer server;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler;
+
+    private final ConcurrentMap<String, String> userContainers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, String> spContainers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Long> locks = new ConcurrentHashMap<>();  // Lock key to expiry, System.nanoTime()
+    private final ConcurrentMap<String, LongAdder> requestCounts = new ConcurrentHashMap<>();
+
+    private volatile long latencyMs = 0;
+    private volatile long latencyJitterMs = 0;
+    private volatile double slowRate = 0;
+    private volatile long slowMs = 0;
+    private volatile double errorRate = 0;
+    private volatile double httpErrorRate = 0;
+    private volatile String defaultPayload = "";
+
+    private SPFESimulator(SPFECertificates certificates) throws IOException, GeneralSecurityException {
+        this.certificates = certificates;
+        server = HttpsServer.create(new InetSocketAddress("127.0.0.1", 0), 4096);
+        server.setHttpsConfigurator(new HttpsConfigurator(certificates.createServerContext()) {
+            @Override
+            public void configure(HttpsParameters params) {
+                SSLParameters sslParameters = getSSLContext().getDefaultSSLParameters();
+                sslParameters.setNeedClientAuth(true);
+                params.setSSLParameters(sslParameters);
+            }
+        });
+        server.createContext("/", this::handle);
+        AtomicInteger threads = new AtomicInteger();
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "SPFE simulator " + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "SPFE simulator latency");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public static SPFESimulator start() throws IOException, GeneralSecurityException {
+        return start(SPFECertificates.generate(SP_NAME));
+    }
+
+    /** Starts a simulator that presents and trusts the given PKI. */
+    public static SPFESimulator start(SPFECertificates certificates) throws IOException, GeneralSecurityException {
+        return new SPFESimulator(certificates);
+    }
+
+    /** The {@code spfeAddr} to give to {@link WWPassConnection}. */
+    public String getAddress() {
+        return "localhost:" + server.getAddress().getPort();
+    }
+
+    public SPFECertificates getCertificates() {
+        return certificates;
+    }
+
+    /** A connection authenticated with the generated SP certificate and trusting the generated CA. */
+    public WWPassConnection connect(int timeoutSec) throws IOException, GeneralSecurityException {
+        return new WWPassConnection(certificates.getClientCertificate(), certificates.getClientKey(), timeoutSec,
+                getAddress(), certificates.getCACertificate());
+    }
+
+    /** Every reply is held back for {@code latencyMs} plus a uniformly distributed 0 to {@code jitterMs}. */
+    public void setLatency(long latencyMs, long jitterMs) {
+        if (latencyMs < 0 || jitterMs < 0) {
+            throw new IllegalArgumentException("Latency must not be negative");
+        }
+        this.latencyMs = latencyMs;
+        this.latencyJitterMs = jitterMs;
+    }
+
+    /**
+     * Share of calls, 0 to 1, held back for another {@code slowMs} on top of {@link #setLatency}, e.g. for an SPFE
+     * back end that stalls now and then. Sets the tail latency apart from the usual one.
+     */
+    public void setSlowReplies(double rate, long slowMs) {
+        if (slowMs < 0) {
+            throw new IllegalArgumentException("Latency must not be negative");
+        }
+        this.slowRate = checkRate(rate);
+        this.slowMs = slowMs;
+    }
+
+    /** Share of calls, 0 to 1, answered with {@code <result>false</result>}. */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = checkRate(errorRate);
+    }
+
+    /** Share of calls, 0 to 1, answered with HTTP 503 and no SPFE reply at all. */
+    public void setHttpErrorRate(double httpErrorRate) {
+        this.httpErrorRate = checkRate(httpErrorRate);
+    }
+
+    private static double checkRate(double rate) {
+        if (!(rate >= 0 && rate <= 1)) {
+            throw new IllegalArgumentException("Rate must be between 0 and 1");
+        }
+        return rate;
+    }
+
+    /** Size in bytes of what {@code read} and {@code sp/read} return for containers nothing was written to. */
+    public void setPayloadSize(int payloadSize) {
+        if (payloadSize < 0) {
+            throw new IllegalArgumentException("Payload size must not be negative");
+        }
+        char[] payload = new char[payloadSize];
+        for (int i = 0; i < payloadSize; i++) {
+            payload[i] = (char) ('a' + i % 26);
+        }
+        defaultPayload = new String(payload);
+    }
+
+    /** Number of calls received so far, including the ones answered with an injected error. */
+    public long getRequestCount() {
+        long total = 0;
+        for (LongAdder count : requestCounts.values()) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    /** Number of calls of one command, e.g. {@code "puid"} or {@code "sp/read"}. */
+    public long getRequestCount(String command) {
+        LongAdder count = requestCounts.get(command);
+        return count != null ? count.sum() : 0;
+    }
+
+    /** Drops all containers, locks and counters. */
+    public void reset() {
+        userContainers.clear();
+        spContainers.clear();
+        locks.clear();
+        requestCounts.clear();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        int status = 200;
+        String reply;
+        try {
+            String path = exchange.getRequestURI().getPath();
+            Map<String, String> parameters = parseForm(exchange.getRequestURI().getRawQuery());
+            if ("POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+                parameters.putAll(parseForm(new String(readAll(exchange.getRequestBody()), StandardCharsets.US_ASCII)));
+            }
+            String command = path.startsWith("/") && path.endsWith(".xml") ? path.substring(1, path.length() - 4) : path;
+            requestCounts.computeIfAbsent(command, key -> new LongAdder()).increment();
+
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            if (httpErrorRate > 0 && random.nextDouble() < httpErrorRate) {
+                status = 503;
+                reply = null;
+            } else if (errorRate > 0 && random.nextDouble() < errorRate) {
+                reply = failure("Simulated SPFE error");
+            } else {
+                reply = execute(command, parameters);
+            }
+        } catch (IllegalArgumentException e) {
+            reply = failure(e.getMessage());
+        }
+
+        long delayMs = latencyMs;
+        if (latencyJitterMs > 0) {
+            delayMs += ThreadLocalRandom.current().nextLong(latencyJitterMs + 1);
+        }
+        if (slowRate > 0 && ThreadLocalRandom.current().nextDouble() < slowRate) {
+            delayMs += slowMs;
+        }
+        if (delayMs == 0) {
+            respond(exchange, status, reply);
+            return;
+        }
+        int delayedStatus = status;
+        String delayedReply = reply;
+        try {
+            // The exchange stays open after this handler returns and is answered from the executor later
+            scheduler.schedule(() -> executor.execute(() -> respondQuietly(exchange, delayedStatus, delayedReply)),
+                    delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            exchange.close();  // Shutting down
+        }
+    }
+
+    private String execute(String command, Map<String, String> parameters) {
+        switch (command) {
+            case "get":
+                return success(newTicket(randomHex(16)), ttl(parameters), null);
+            case "put": {
+                String ticket = required(parameters, "ticket");
+                return success(newTicket(userOf(ticket)), ttl(parameters), ticket);
+            }
+            case "puid":
+                return success(puidOf(userOf(required(parameters, "ticket"))));
+            case "read": {
+                String user = userOf(required(parameters, "ticket"));
+                String container = optional(parameters, "container");
+                if ("1".equals(parameters.get("lock"))) {
+                    lock(userLock(user, container), parameters);
+                }
+                String data = userContainers.get(user + "/" + container);
+                return successBase64(data != null ? data : defaultPayload);
+            }
+            case "write": {
+                String user = userOf(required(parameters, "ticket"));
+                String container = optional(parameters, "container");
+                userContainers.put(user + "/" + container, required(parameters, "data"));
+                if ("1".equals(parameters.get("unlock"))) {
+                    locks.remove(userLock(user, container));
+                }
+                return success("true");
+            }
+            case "lock":
+                lock(userLock(userOf(required(parameters, "ticket")), optional(parameters, "lockid")), parameters);
+                return success("true");
+            case "unlock":
+                locks.remove(userLock(userOf(required(parameters, "ticket")), optional(parameters, "lockid")));
+                return success("true");
+            case "sp/create": {
+                String pfid = randomHex(16);
+                spContainers.put(pfid, optional(parameters, "data"));
+                return success(pfid);
+            }
+            case "sp/remove":
+                if (spContainers.remove(required(parameters, "pfid")) == null) {
+                    throw new IllegalArgumentException("No such PFID");
+                }
+                return success("true");
+            case "sp/read": {
+                String pfid = required(parameters, "pfid");
+                String data = spContainers.get(pfid);
+                if (data == null) {
+                    throw new IllegalArgumentException("No such PFID");
+                }
+                if ("1".equals(parameters.get("lock"))) {
+                    lock(spLock(pfid), parameters);
+                }
+                return successBase64(data.isEmpty() ? defaultPayload : data);
+            }
+            case "sp/write": {
+                String pfid = required(parameters, "pfid");
+                if (spContainers.replace(pfid, required(parameters, "data")) == null) {
+                    throw new IllegalArgumentException("No such PFID");
+                }
+                if ("1".equals(parameters.get("unlock"))) {
+                    locks.remove(spLock(pfid));
+                }
+                return success("true");
+            }
+            case "sp/lock":
+                lock(spLock(required(parameters, "lockid")), parameters);
+                return success("true");
+            case "sp/unlock":
+                locks.remove(spLock(required(parameters, "lockid")));
+                return success("true");
+            default:
+                throw new IllegalArgumentException("Unknown command: " + command);
+        }
+    }
+
+    private static String userLock(String user, String lockid) {
+        return "user/" + user + "/" + lockid;
+    }
+
+    private static String spLock(String lockid) {
+        return "sp/" + lockid;
+    }
+
+    /** Takes the lock for {@code to} seconds, failing the call if somebody else holds it. */
+    private void lock(String key, Map<String, String> parameters) {
+        long now = System.nanoTime();
+        long expiry = now + TimeUnit.SECONDS.toNanos(Integer.parseInt(required(parameters, "to")));
+        boolean[] acquired = { false };
+        locks.compute(key, (k, current) -> {
+            if (current != null && current - now > 0) {
+                return current;
+            }
+            acquired[0] = true;
+            return expiry;
+        });
+        if (!acquired[0]) {
+            throw new IllegalArgumentException("Already locked");
+        }
+    }
+
+    private static String required(Map<String, String> parameters, String name) {
+        String value = parameters.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Parameter " + name + " is required");
+        }
+        return value;
+    }
+
+    private static String optional(Map<String, String> parameters, String name) {
+        String value = parameters.get(name);
+        return value != null ? value : "";
+    }
+
+    private static int ttl(Map<String, String> parameters) {
+        String ttl = parameters.get("ttl");
+        return ttl != null ? Integer.parseInt(ttl) : TICKET_TTL;
+    }
+
+    private String newTicket(String user) {
+        return SP_NAME + ":" + user + randomHex(8) + "@" + getAddress();
+    }
+
+    /** The user part of a ticket issued by this simulator. */
+    private static String userOf(String ticket) {
+        int colon = ticket.indexOf(':');
+        int at = ticket.indexOf('@', colon);
+        if (colon < 0 || at - colon - 1 != 48) {
+            throw new IllegalArgumentException("Invalid ticket");
+        }
+        return ticket.substring(colon + 1, colon + 33);
+    }
+
+    private static String puidOf(String user) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest((SP_NAME + user).getBytes(StandardCharsets.UTF_8));
+            return hex(digest, 16);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String success(String data) {
+        return success(data, null, null);
+    }
+
+    private static String success(String data, Integer ttl, String originalTicket) {
+        StringBuilder xml = new StringBuilder(160 + data.length());
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?><reply><result>true</result><data encoding=\"plain\">");
+        escape(data, xml);
+        xml.append("</data>");
+        if (ttl != null) {
+            xml.append("<ttl encoding=\"plain\">").append(ttl).append("</ttl>");
+        }
+        if (originalTicket != null) {
+            xml.append("<originalTicket encoding=\"plain\">");
+            escape(originalTicket, xml);
+            xml.append("</originalTicket>");
+        }
+        return xml.append("</reply>").toString();
+    }
+
+    /** Container data goes back base64-encoded, as the SPFE does for anything that is not a ticket or an ID. */
+    private static String successBase64(String data) {
+        String encoded = Base64.getEncoder().encodeToString(data.getBytes(StandardCharsets.ISO_8859_1));
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?><reply><result>true</result><data encoding=\"base64\">"
+                + encoded + "</data></reply>";
+    }
+
+    private static String failure(String message) {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?><reply><result>false</result><data encoding=\"plain\">");
+        escape(message, xml);
+        return xml.append("</data></reply>").toString();
+    }
+
+    private static void escape(String text, StringBuilder xml) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<':
+                    xml.append("&lt;");
+                    break;
+                case '>':
+                    xml.append("&gt;");
+                    break;
+                case '&':
+                    xml.append("&amp;");
+                    break;
+                default:
+                    xml.append(c);
+                    break;
+            }
+        }
+    }
+
+    private static void respondQuietly(HttpExchange exchange, int status, String reply) {
+        try {
+            respond(exchange, status, reply);
+        } catch (IOException ignored) {
+            // Client has gone away while the reply was held back
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String reply) throws IOException {
+        try {
+            if (reply == null) {
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+            byte[] body = reply.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=UTF-8");
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static Map<String, String> parseForm(String form) throws UnsupportedEncodingException {
+        Map<String, String> parameters = new HashMap<>();
+        if (form == null || form.isEmpty()) {
+            return parameters;
+        }
+        for (String pair : form.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int eq = pair.indexOf('=');
+            String name = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            // Decoded byte for byte, so that containers keep whatever bytes were written, as they do at SPFE
+            parameters.put(URLDecoder.decode(name, "ISO-8859-1"), URLDecoder.decode(value, "ISO-8859-1"));
+        }
+        return parameters;
+    }
+
+    private static byte[] readAll(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = input.read(buffer)) != -1) {
+            output.write(buffer, 0, n);
+        }
+        return output.toByteArray();
+    }
+
+    private static String randomHex(int bytes) {
+        byte[] random = new byte[bytes];
+        ThreadLocalRandom.current().nextBytes(random);
+        return hex(random, bytes);
+    }
+
+    private static String hex(byte[] bytes, int length) {
+        char[] chars = new char[length * 2];
+        for (int i = 0; i < length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,193 @@
+/**
+ * AsyncLogin.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.FilterConfig;
+import jakarta.servlet.ServletConfig;
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
+
+import com.wwpass.WWPassConnection.WWPassProtocolException;
+import com.wwpass.WWPassConnection.WWPassRejectedException;
+
+/**
+ * The login step shared by {@link WWPassLoginServlet} and {@link WWPassLoginFilter}.
+ * <p>
+ * Puts the request into asynchronous mode, runs {@link WWPassAsyncConnection#authenticate} on the connection's
+ * executor and finishes the response once the login is done or the deadline has passed, whichever comes first.
+ * The container thread is free again as soon as the calls are handed over.
+ */
+final class AsyncLogin {
+
+    static final long DEFAULT_DEADLINE_MS = 5_000;
+
+    interface Success {
+        void respond(HttpServletRequest request, HttpServletResponse response, WWPassAuthentication login) throws IOException;
+    }
+
+    private interface Parameters {
+        String get(String name);
+    }
+
+    private final WWPassAsyncConnection connection;  // Every call with the deadline
+    private final long deadlineMs;
+    private final ServletContext context;
+
+    AsyncLogin(WWPassAsyncConnection connection, long deadlineMs, ServletContext context) {
+        if (deadlineMs <= 0) {
+            throw new IllegalArgumentException("deadlineMs must be positive");
+        }
+        WWPassConnection base = connection.getConnection();
+        this.connection = new WWPassAsyncConnection(base.withCallOptions(base.getCallOptions().withDeadlineMs(deadlineMs)),
+                connection.getExecutor());
+        this.deadlineMs = deadlineMs;
+        this.context = context;
+    }
+
+    /**
+     * Reads {@code certFile}, {@code keyFile}, {@code spfeAddress}, {@code timeoutSec} and {@code deadlineMs}
+     * and takes the connection from {@link WWPassConnectionRegistry}, so that it is built once per application.
+     */
+    static AsyncLogin configure(Parameters parameters, ServletContext context) throws ServletException {
+        String certFile = parameters.get("certFile");
+        String keyFile = parameters.get("keyFile");
+        if (certFile == null || keyFile == null) {
+            throw new ServletException("certFile and keyFile init parameters are required");
+        }
+        String spfeAddress = parameters.get("spfeAddress");
+        try {
+            int timeoutSec = Math.toIntExact(number(parameters, "timeoutSec", WWPassConnection.DEFAULT_TIMEOUT_SEC));
+            long deadlineMs = number(parameters, "deadlineMs", DEFAULT_DEADLINE_MS);
+            WWPassConnection connection = WWPassConnectionRegistry.get(certFile, keyFile, timeoutSec,
+                    spfeAddress != null ? spfeAddress : WWPassConnection.DEFAULT_SPFE_ADDRESS);
+            return new AsyncLogin(new WWPassAsyncConnection(connection), deadlineMs, context);
+        } catch (IOException | GeneralSecurityException | IllegalArgumentException | ArithmeticException e) {
+            throw new ServletException("Unable to set up WWPass login", e);
+        }
+    }
+
+    static AsyncLogin configure(ServletConfig config) throws ServletException {
+        return configure(config::getInitParameter, config.getServletContext());
+    }
+
+    static AsyncLogin configure(FilterConfig config) throws ServletException {
+        return configure(config::getInitParameter, config.getServletContext());
+    }
+
+    private static long number(Parameters parameters, String name, long defaultValue) {
+        String value = parameters.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be a number: " + value, e);
+        }
+    }
+
+    /**
+     * Logs the user in with {@code ticket} and, on success, stores the PUID and the new ticket in a session with a
+     * fresh id before handing the response to {@code success}. Failures end in an error status: 403 for a ticket
+     * SPFE refused, 504 when the deadline passed, 503 when the call was not admitted and 502 for anything else.
+     */
+    void start(HttpServletRequest request, HttpServletResponse response, String ticket, Success success)
+            throws ServletException {
+        if (!request.isAsyncSupported()) {
+            throw new ServletException("WWPass login needs <async-supported>true</async-supported> on the servlet "
+                    + "and on every filter in front of it");
+        }
+        AsyncContext async = request.startAsync(request, response);
+        async.setTimeout(deadlineMs);
+        AtomicBoolean finished = new AtomicBoolean();
+        async.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                if (finished.compareAndSet(false, true)) {
+                    response.sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+                    async.complete();
+                }
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                finished.set(true);  // The client is gone, nothing left to respond to
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+
+        connection.authenticate(ticket).whenComplete((login, error) -> {
+            if (!finished.compareAndSet(false, true)) {
+                return;  // Timed out meanwhile
+            }
+            try {
+                if (error == null) {
+                    HttpSession session = request.getSession(true);
+                    request.changeSessionId();  // No session fixation: the id known before login is worthless after it
+                    session.setAttribute(WWPassLoginServlet.PUID_ATTRIBUTE, login.getPUID());
+                    session.setAttribute(WWPassLoginServlet.TICKET_ATTRIBUTE, login.getTicket());
+                    success.respond(request, response, login);
+                } else {
+                    response.sendError(status(error));
+                }
+            } catch (IOException | RuntimeException e) {
+                context.log("WWPass login: unable to send the response", e);
+            } finally {
+                async.complete();
+            }
+        });
+    }
+
+    private int status(Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        if (error instanceof WWPassProtocolException) {
+            return HttpServletResponse.SC_FORBIDDEN;
+        }
+        if (error instanceof SocketTimeoutException) {
+            return HttpServletResponse.SC_GATEWAY_TIMEOUT;
+        }
+        if (error instanceof WWPassRejectedException) {
+            return HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+        }
+        context.log("WWPass login failed", error);
+        return HttpServletResponse.SC_BAD_GATEWAY;
+    }
+}
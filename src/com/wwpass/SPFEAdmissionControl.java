@@ -0,0 +1,231 @@
+/**
+ * SPFEAdmissionControl.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.wwpass.WWPassConnection.WWPassRejectedException;
+
+/**
+ * Admission control for SPFE calls: a bulkhead that bounds the number of calls in flight, and a circuit breaker
+ * that stops sending calls to an SPFE that keeps failing.
+ * <p>
+ * A call that finds the bulkhead full waits at most {@code queueTimeoutMs} for a slot, and never past its
+ * deadline. After {@code failureThreshold} consecutive failures (network errors, timeouts, HTTP error statuses;
+ * not SPFE error replies) the breaker opens and calls are rejected at once for {@code openMs}. Then a single trial call is let
+ * through: if it succeeds the breaker closes, otherwise it stays open for another {@code openMs}. Rejected calls
+ * fail with {@link WWPassRejectedException} without touching the network, so callers can shed load right away.
+ * <p>
+ * Limits apply to all calls of the connections this object is set on, or separately to each SPFE endpoint when
+ * created with {@code perEndpoint} set. An instance can be shared by several connections to make them share
+ * the limits.
+ *
+ * @see WWPassConnection#setAdmissionControl(SPFEAdmissionControl)
+ */
+public final class SPFEAdmissionControl {
+
+    public enum CircuitState {
+        CLOSED,
+        OPEN,
+        /** The trial call is in flight. */
+        HALF_OPEN
+    }
+
+    private final int maxConcurrentCalls;
+    private final long queueTimeoutMs;
+    private final int failureThreshold;
+    private final long openNanos;
+    private final boolean perEndpoint;
+
+    private final Gate shared;
+    private final ConcurrentMap<String, Gate> endpoints = new ConcurrentHashMap<>();
+    private final LongAdder rejectedCalls = new LongAdder();
+
+    /**
+     * @param maxConcurrentCalls calls allowed in flight at the same time
+     * @param queueTimeoutMs     how long a call waits for a free slot before it is rejected, 0 to reject at once
+     * @param failureThreshold   consecutive failures that open the circuit, 0 to never open it
+     * @param openMs             how long the circuit stays open before a trial call is let through
+     * @param perEndpoint        whether each SPFE endpoint gets its own limits
+     */
+    public SPFEAdmissionControl(int maxConcurrentCalls, long queueTimeoutMs, int failureThreshold, long openMs, boolean perEndpoint) {
+        if (maxConcurrentCalls < 1) {
+            throw new IllegalArgumentException("maxConcurrentCalls must be positive");
+        }
+        if (queueTimeoutMs < 0 || failureThreshold < 0 || openMs < 0) {
+            throw new IllegalArgumentException("queueTimeoutMs, failureThreshold and openMs must not be negative");
+        }
+        this.maxConcurrentCalls = maxConcurrentCalls;
+        this.queueTimeoutMs = queueTimeoutMs;
+        this.failureThreshold = failureThreshold;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMs);
+        this.perEndpoint = perEndpoint;
+        this.shared = perEndpoint ? null : new Gate();
+    }
+
+    public SPFEAdmissionControl(int maxConcurrentCalls, long queueTimeoutMs, int failureThreshold, long openMs) {
+        this(maxConcurrentCalls, queueTimeoutMs, failureThreshold, openMs, false);
+    }
+
+    /** Bulkhead only, the circuit never opens. */
+    public SPFEAdmissionControl(int maxConcurrentCalls, long queueTimeoutMs) {
+        this(maxConcurrentCalls, queueTimeoutMs, 0, 0, false);
+    }
+
+    public int getMaxConcurrentCalls() {
+        return maxConcurrentCalls;
+    }
+
+    public long getQueueTimeoutMs() {
+        return queueTimeoutMs;
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    public long getOpenMs() {
+        return TimeUnit.NANOSECONDS.toMillis(openNanos);
+    }
+
+    public boolean isPerEndpoint() {
+        return perEndpoint;
+    }
+
+    /** Calls rejected so far, by the bulkhead or by the circuit breaker. */
+    public long getRejectedCalls() {
+        return rejectedCalls.sum();
+    }
+
+    /** State of the circuit guarding {@code spfeAddr}, one of the addresses given to the connection. */
+    public CircuitState getCircuitState(String spfeAddr) {
+        Gate gate = perEndpoint ? endpoints.get(spfeAddr) : shared;
+        return gate != null ? gate.state() : CircuitState.CLOSED;
+    }
+
+    /** Calls in flight through the gate guarding {@code spfeAddr}. */
+    public int getInFlight(String spfeAddr) {
+        Gate gate = perEndpoint ? endpoints.get(spfeAddr) : shared;
+        return gate != null ? maxConcurrentCalls - gate.permits.availablePermits() : 0;
+    }
+
+    Gate gate(String spfeAddr) {
+        if (!perEndpoint) {
+            return shared;
+        }
+        Gate gate = endpoints.get(spfeAddr);
+        return gate != null ? gate : endpoints.computeIfAbsent(spfeAddr, address -> new Gate());
+    }
+
+    /** Bulkhead and breaker of one scope. */
+    final class Gate {
+        private final Semaphore permits = new Semaphore(maxConcurrentCalls);
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private final AtomicReference<CircuitState> state = new AtomicReference<>(CircuitState.CLOSED);
+        private volatile long openedAtNanos;
+
+        CircuitState state() {
+            return state.get();
+        }
+
+        /**
+         * Lets the call through or throws. Every call let through must end with exactly one of
+         * {@link #succeeded}, {@link #failed} or {@link #abandoned}. A call with a {@code deadline} waits for a slot
+         * no longer than the deadline allows, and fails with {@link java.net.SocketTimeoutException} if it passes.
+         */
+        void acquire(SPFEDeadline deadline) throws WWPassRejectedException, InterruptedIOException {
+            boolean trial = false;
+            CircuitState current = state.get();
+            if (current == CircuitState.HALF_OPEN) {
+                throw reject(WWPassRejectedException.Reason.CIRCUIT_OPEN, "SPFE circuit breaker is open");
+            }
+            if (current == CircuitState.OPEN) {
+                if (System.nanoTime() - openedAtNanos < openNanos || !state.compareAndSet(CircuitState.OPEN, CircuitState.HALF_OPEN)) {
+                    throw reject(WWPassRejectedException.Reason.CIRCUIT_OPEN, "SPFE circuit breaker is open");
+                }
+                trial = true;
+            }
+            boolean admitted = false;
+            long waitMs = queueTimeoutMs;
+            boolean deadlineBound = false;
+            try {
+                if (waitMs > 0 && deadline != null) {
+                    int remainingMs = deadline.remainingMs();
+                    deadlineBound = remainingMs < waitMs;
+                    waitMs = Math.min(waitMs, remainingMs);
+                }
+                admitted = waitMs == 0 ? permits.tryAcquire() : permits.tryAcquire(waitMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for an SPFE call slot");
+            } finally {
+                if (!admitted && trial) {
+                    state.set(CircuitState.OPEN);  // Let somebody else try
+                }
+            }
+            if (!admitted && deadlineBound) {
+                throw deadline.exceeded();
+            }
+            if (!admitted) {
+                throw reject(WWPassRejectedException.Reason.BULKHEAD_FULL,
+                        "Too many SPFE calls in flight (" + maxConcurrentCalls + ")");
+            }
+        }
+
+        private WWPassRejectedException reject(WWPassRejectedException.Reason reason, String message) {
+            rejectedCalls.increment();
+            return new WWPassRejectedException(reason, message);
+        }
+
+        /** SPFE answered, with a reply or an SPFE error. */
+        void succeeded() {
+            permits.release();
+            consecutiveFailures.set(0);
+            if (state.get() != CircuitState.CLOSED) {
+                state.set(CircuitState.CLOSED);
+            }
+        }
+
+        void failed() {
+            permits.release();
+            if (failureThreshold == 0) {
+                return;
+            }
+            if (state.get() == CircuitState.HALF_OPEN || consecutiveFailures.incrementAndGet() >= failureThreshold) {
+                openedAtNanos = System.nanoTime();
+                state.set(CircuitState.OPEN);
+                consecutiveFailures.set(0);
+            }
+        }
+
+        /** The call ended for reasons that say nothing about SPFE health. */
+        void abandoned() {
+            permits.release();
+            state.compareAndSet(CircuitState.HALF_OPEN, CircuitState.OPEN);
+        }
+    }
+}
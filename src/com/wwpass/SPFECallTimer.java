@@ -0,0 +1,46 @@
+/**
+ * SPFECallTimer.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+/**
+ * Phase clock of one SPFE call. Each {@link #mark} reports the time since the previous one.
+ */
+final class SPFECallTimer {
+    private final WWPassMetrics metrics;
+    private final String command;
+    private long lastNanos;
+
+    SPFECallTimer(WWPassMetrics metrics, String command, long startNanos) {
+        this.metrics = metrics;
+        this.command = command;
+        this.lastNanos = startNanos;
+    }
+
+    void mark(WWPassMetrics.Phase phase) {
+        long now = System.nanoTime();
+        metrics.phaseCompleted(command, phase, now - lastNanos);
+        lastNanos = now;
+    }
+
+    /** Restarts the clock without reporting, e.g. after a retry. */
+    void skip() {
+        lastNanos = System.nanoTime();
+    }
+}
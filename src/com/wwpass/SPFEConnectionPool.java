@@ -0,0 +1,912 @@
+/**
+ * SPFEConnectionPool.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Keep-alive HTTPS connection pool for SPFE calls, one of the {@link SPFETransport}s.
+ * <p>
+ * Connections are kept per SPFE host and per set of SP credentials, so that TLS sessions are resumed from the
+ * {@code SSLContext} they were negotiated with. When the credentials are replaced (see
+ * {@link WWPassCredentialSource}), connections of the old ones keep serving the calls still sent with them, while
+ * new ones are opened as calls move over; once none is left, the old connections are closed as they come back or
+ * at the next idle sweep. Every reply is read to the end before its connection
+ * goes back to the pool; a connection whose reply could not be consumed is closed instead.
+ * <p>
+ * The two calls of {@link WWPassConnection#authenticate} go out on the same connection: it is kept for the
+ * second call instead of going back to the pool, where another thread could take it.
+ * <p>
+ * A pool is thread-safe and may be shared between several {@link WWPassConnection} instances.
+ */
+public final class SPFEConnectionPool extends SPFETransport implements Closeable {
+
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 16;
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 30_000;
+
+    // A connection idle for longer than this is checked for a server-side close before a POST is sent on it
+    private static final long VALIDATE_AFTER_IDLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int MAX_LINE_LENGTH = 8192;
+    private static final int MAX_HEADER_COUNT = 100;
+    private static final int BUFFER_SIZE = 8192;
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] GET = "GET ".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] POST = "POST ".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] HTTP_1_1 = " HTTP/1.1\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] FORM_CONTENT_TYPE = "Content-Type: application/x-www-form-urlencoded\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] CONTENT_LENGTH = "Content-Length: ".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] CHUNKED = "Transfer-Encoding: chunked\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+
+    private static final ScheduledExecutorService SWEEPER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "WWPass connection pool sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public static final class Stats {
+        private final long requests;
+        private final long connectionsCreated;
+        private final long connectionsReused;
+        private final long connectionsEvicted;
+        private final long connectionsDiscarded;
+        private final int openConnections;
+        private final int idleConnections;
+
+        Stats(long requests, long connectionsCreated, long connectionsReused, long connectionsEvicted,
+              long connectionsDiscarded, int openConnections, int idleConnections) {
+            this.requests = requests;
+            this.connectionsCreated = connectionsCreated;
+            this.connectionsReused = connectionsReused;
+            this.connectionsEvicted = connectionsEvicted;
+            this.connectionsDiscarded = connectionsDiscarded;
+            this.openConnections = openConnections;
+            this.idleConnections = idleConnections;
+        }
+
+        public long getRequests() {
+            return requests;
+        }
+
+        /** Number of new connections, each of them costing a TLS handshake. */
+        public long getConnectionsCreated() {
+            return connectionsCreated;
+        }
+
+        public long getConnectionsReused() {
+            return connectionsReused;
+        }
+
+        /** Number of connections closed after staying idle for too long. */
+        public long getConnectionsEvicted() {
+            return connectionsEvicted;
+        }
+
+        /** Number of connections closed because of an error, a server-side close or an unread reply. */
+        public long getConnectionsDiscarded() {
+            return connectionsDiscarded;
+        }
+
+        public int getOpenConnections() {
+            return openConnections;
+        }
+
+        public int getIdleConnections() {
+            return idleConnections;
+        }
+
+        @Override
+        public String toString() {
+            return "requests=" + requests + ", created=" + connectionsCreated + ", reused=" + connectionsReused
+                    + ", evicted=" + connectionsEvicted + ", discarded=" + connectionsDiscarded
+                    + ", open=" + openConnections + ", idle=" + idleConnections;
+        }
+    }
+
+    private final int maxConnectionsPerHost;
+    private final long idleTimeoutNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private final Map<Route, RoutePool> routes = new HashMap<>();
+    private final ScheduledFuture<?> sweeper;
+    private boolean closed = false;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder connectionsCreated = new LongAdder();
+    private final LongAdder connectionsReused = new LongAdder();
+    private final LongAdder connectionsEvicted = new LongAdder();
+    private final LongAdder connectionsDiscarded = new LongAdder();
+
+    public SPFEConnectionPool(int maxConnectionsPerHost, long idleTimeoutMs) {
+        if (maxConnectionsPerHost < 1) {
+            throw new IllegalArgumentException("maxConnectionsPerHost must be positive");
+        }
+        if (idleTimeoutMs < 1) {
+            throw new IllegalArgumentException("idleTimeoutMs must be positive");
+        }
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMs);
+        long sweepPeriodMs = Math.max(1000, idleTimeoutMs / 2);
+        sweeper = SWEEPER.scheduleWithFixedDelay(this::evictIdle, sweepPeriodMs, sweepPeriodMs, TimeUnit.MILLISECONDS);
+    }
+
+    public SPFEConnectionPool(int maxConnectionsPerHost) {
+        this(maxConnectionsPerHost, DEFAULT_IDLE_TIMEOUT_MS);
+    }
+
+    public SPFEConnectionPool() {
+        this(DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_IDLE_TIMEOUT_MS);
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    public long getIdleTimeoutMs() {
+        return TimeUnit.NANOSECONDS.toMillis(idleTimeoutNanos);
+    }
+
+    public Stats getStats() {
+        int open = 0;
+        int idle = 0;
+        lock.lock();
+        try {
+            for (RoutePool routePool : routes.values()) {
+                open += routePool.open;
+                idle += routePool.idle.size();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return new Stats(requests.sum(), connectionsCreated.sum(), connectionsReused.sum(), connectionsEvicted.sum(),
+                connectionsDiscarded.sum(), open, idle);
+    }
+
+    /**
+     * Closes idle connections and stops pooling. Connections in use are closed as soon as their reply is read.
+     */
+    @Override
+    public void close() {
+        List<PooledConnection> toClose = new ArrayList<>();
+        lock.lock();
+        try {
+            closed = true;
+            for (RoutePool routePool : routes.values()) {
+                toClose.addAll(routePool.idle);
+                routePool.open -= routePool.idle.size();
+                routePool.idle.clear();
+            }
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        sweeper.cancel(false);
+        for (PooledConnection connection : toClose) {
+            connection.closeQuietly();
+        }
+    }
+
+    /**
+     * Sends one request and hands the reply body to {@code reader}. The body is consumed to the end afterwards,
+     * whatever the reader did with it, and the connection is returned to the pool.
+     * <p>
+     * A GET carries {@code query}, a POST carries {@code body}. The request head is written straight into the
+     * connection's buffer. If a reused connection turns out to be closed, an idempotent call is sent once more on
+     * another one; any other call fails, as SPFE may have acted on it already.
+     */
+    @Override
+    <T> T execute(SPFEExchange exchange, ReplyReader<T> reader) throws IOException {
+        requests.increment();
+        SPFEEndpoints.Target target = exchange.target;
+        byte[] query = exchange.query;
+        int queryLength = exchange.queryLength;
+        SPFEFormBody body = exchange.body;
+        int connectTimeoutMs = exchange.connectTimeoutMs;
+        int readTimeoutMs = exchange.readTimeoutMs;
+        SPFECallTimer timer = exchange.timer;
+        SPFEDeadline deadline = exchange.deadline;
+        SPFESession session = exchange.session;
+        boolean post = body != null;
+        boolean idempotent = exchange.idempotent;
+        Route route = new Route(target.host, target.port, exchange.credentials);
+
+        boolean retried = false;
+        while (true) {
+            PooledConnection connection = session != null && !retried ? kept(session, route, post, timer) : null;
+            if (connection == null) {
+                connection = lease(route, connectTimeoutMs, readTimeoutMs, post, timer);
+            }
+            boolean reusable = false;
+            if (deadline != null) {
+                deadline.attach(connection::abort);
+            }
+            try {
+                ResponseBody response;
+                try {
+                    connection.socket.setSoTimeout(readTimeoutMs);
+                    writeHead(connection.output, target, query, queryLength, body);
+                    if (body != null && body.length() >= 0) {
+                        body.writeTo(connection.output);
+                    } else if (body != null) {
+                        ChunkedOutputStream chunked = new ChunkedOutputStream(connection.output);
+                        body.writeTo(chunked);
+                        chunked.finish();
+                    }
+                    connection.output.flush();
+                    if (timer != null) {
+                        timer.mark(WWPassMetrics.Phase.WRITE);
+                    }
+                    response = readResponseHead(connection);
+                    if (timer != null) {
+                        timer.mark(WWPassMetrics.Phase.FIRST_BYTE);
+                    }
+                } catch (EOFException | SocketException e) {
+                    // A reused connection closed by the server, maybe after it got the request: only a call that
+                    // changes nothing on SPFE is safe to resend
+                    if (connection.uses > 0 && idempotent && !retried && (deadline == null || !deadline.isExpired())) {
+                        retried = true;
+                        if (timer != null) {
+                            timer.skip();
+                        }
+                        continue;
+                    }
+                    throw e;
+                }
+                if (response.code < 200 || response.code >= 300) {
+                    reusable = response.drainAfterReader();
+                    throw new IOException("Server returned HTTP response code: " + response.code + " for URL: " + target.url);
+                }
+
+                T result;
+                try {
+                    result = reader.read(response);
+                } catch (IOException | RuntimeException e) {
+                    reusable = response.drainAfterReader();
+                    throw e;
+                }
+                reusable = response.drainAfterReader();
+                if (timer != null) {
+                    timer.mark(WWPassMetrics.Phase.PARSE);
+                }
+                return result;
+            } finally {
+                if (deadline != null && !deadline.detach()) {
+                    reusable = false;  // Closed by the deadline watchdog
+                }
+                if (reusable) {
+                    release(connection, session);
+                } else {
+                    discard(connection);
+                }
+            }
+        }
+    }
+
+    private static void writeHead(OutputStream output, SPFEEndpoints.Target target, byte[] query, int queryLength,
+                                  SPFEFormBody body) throws IOException {
+        output.write(body != null ? POST : GET);
+        output.write(target.path);
+        if (query != null) {
+            output.write('?');
+            output.write(query, 0, queryLength);
+        }
+        output.write(HTTP_1_1);
+        output.write(target.hostHeader);
+        if (body != null) {
+            output.write(FORM_CONTENT_TYPE);
+            if (body.length() >= 0) {
+                output.write(CONTENT_LENGTH);
+                writeDecimal(output, body.length());
+                output.write(CRLF);
+            } else {
+                output.write(CHUNKED);
+            }
+        }
+        output.write(CRLF);
+    }
+
+    private static void writeDecimal(OutputStream output, long value) throws IOException {
+        if (value >= 10) {
+            writeDecimal(output, value / 10);
+        }
+        output.write((int) ('0' + value % 10));
+    }
+
+    private PooledConnection lease(Route route, int connectTimeoutMs, int readTimeoutMs, boolean validate,
+                                   SPFECallTimer timer) throws IOException {
+        long waitNanos = TimeUnit.MILLISECONDS.toNanos(readTimeoutMs);
+        List<PooledConnection> expired = new ArrayList<>();
+        PooledConnection leased = null;
+        lock.lock();
+        try {
+            RoutePool routePool = routes.computeIfAbsent(route, r -> new RoutePool());
+            while (leased == null) {
+                if (closed) {
+                    throw new IOException("SPFE connection pool is closed");
+                }
+                long now = System.nanoTime();
+                while (!routePool.idle.isEmpty()) {
+                    PooledConnection candidate = routePool.idle.pollFirst();
+                    if (now - candidate.idleSinceNanos < candidate.idleTimeoutNanos) {
+                        leased = candidate;
+                        break;
+                    }
+                    routePool.open--;
+                    expired.add(candidate);
+                }
+                if (leased != null) {
+                    break;
+                }
+                if (routePool.open < maxConnectionsPerHost) {
+                    routePool.open++;  // Reserved, the connection is opened below outside of the lock
+                    break;
+                }
+                if (readTimeoutMs <= 0) {
+                    released.await();
+                } else if (waitNanos > 0) {
+                    waitNanos = released.awaitNanos(waitNanos);
+                } else {
+                    throw new SocketTimeoutException("Timed out waiting for a pooled SPFE connection");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a pooled SPFE connection", e);
+        } finally {
+            lock.unlock();
+            connectionsEvicted.add(expired.size());
+            for (PooledConnection connection : expired) {
+                connection.closeQuietly();
+            }
+        }
+
+        if (leased != null) {
+            if (validate && System.nanoTime() - leased.idleSinceNanos > VALIDATE_AFTER_IDLE_NANOS && leased.isStale()) {
+                discard(leased);
+                return lease(route, connectTimeoutMs, readTimeoutMs, validate, timer);
+            }
+            connectionsReused.increment();
+            if (timer != null) {
+                timer.mark(WWPassMetrics.Phase.ACQUIRE);
+            }
+            return leased;
+        }
+
+        if (timer != null) {
+            timer.mark(WWPassMetrics.Phase.ACQUIRE);
+        }
+        try {
+            PooledConnection connection = open(route, connectTimeoutMs, readTimeoutMs, timer);
+            connectionsCreated.increment();
+            return connection;
+        } catch (IOException | RuntimeException e) {
+            lock.lock();
+            try {
+                routes.get(route).open--;
+                released.signal();
+            } finally {
+                lock.unlock();
+            }
+            throw e;
+        }
+    }
+
+    /** The connection {@code session} kept from its previous call, if it is still good for {@code route}. */
+    private PooledConnection kept(SPFESession session, Route route, boolean validate, SPFECallTimer timer) {
+        PooledConnection connection = (PooledConnection) session.takeConnection(this);
+        if (connection == null) {
+            return null;
+        }
+        long idleNanos = System.nanoTime() - connection.idleSinceNanos;
+        if (!connection.route.equals(route) || idleNanos >= connection.idleTimeoutNanos) {
+            giveBack(connection);  // Evicted from there if it has expired
+            return null;
+        }
+        if (validate && idleNanos > VALIDATE_AFTER_IDLE_NANOS && connection.isStale()) {
+            discard(connection);
+            return null;
+        }
+        connectionsReused.increment();
+        if (timer != null) {
+            timer.mark(WWPassMetrics.Phase.ACQUIRE);
+        }
+        return connection;
+    }
+
+    private PooledConnection open(Route route, int connectTimeoutMs, int readTimeoutMs, SPFECallTimer timer) throws IOException {
+        Socket plain = new Socket();
+        try {
+            plain.setTcpNoDelay(true);
+            plain.setKeepAlive(true);
+            plain.connect(new InetSocketAddress(route.host, route.port), connectTimeoutMs);
+            if (timer != null) {
+                timer.mark(WWPassMetrics.Phase.CONNECT);
+            }
+            plain.setSoTimeout(readTimeoutMs);
+            SSLSocket socket = (SSLSocket) route.credentials.socketFactory.createSocket(plain, route.host, route.port, true);
+            SSLParameters parameters = socket.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            socket.setSSLParameters(parameters);
+            socket.startHandshake();
+            if (timer != null) {
+                timer.mark(WWPassMetrics.Phase.HANDSHAKE);
+            }
+            return new PooledConnection(route, socket, plain, idleTimeoutNanos);
+        } catch (IOException | RuntimeException e) {
+            try {
+                plain.close();
+            } catch (IOException ignored) {
+                // Nothing else to do with a socket that failed to connect
+            }
+            throw e;
+        }
+    }
+
+    /** Returns a connection whose reply has been read to the pool, or keeps it for the next call of {@code session}. */
+    private void release(PooledConnection connection, SPFESession session) {
+        connection.uses++;
+        connection.idleSinceNanos = System.nanoTime();
+        if (session == null || !session.keepConnection(this, connection)) {
+            giveBack(connection);
+        }
+    }
+
+    @Override
+    void releaseKept(Object connection) {
+        giveBack((PooledConnection) connection);
+    }
+
+    private void giveBack(PooledConnection connection) {
+        boolean retired = connection.route.credentials.isRetired();
+        lock.lock();
+        try {
+            if (!closed && !retired) {
+                routes.get(connection.route).idle.addFirst(connection);
+                released.signal();
+                return;
+            }
+            routes.get(connection.route).open--;
+            released.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (retired) {
+            connectionsEvicted.increment();
+        }
+        connection.closeQuietly();
+    }
+
+    private void discard(PooledConnection connection) {
+        connectionsDiscarded.increment();
+        lock.lock();
+        try {
+            routes.get(connection.route).open--;
+            released.signal();
+        } finally {
+            lock.unlock();
+        }
+        connection.abort();  // A graceful close would wait out the read timeout for the server's close_notify
+    }
+
+    private void evictIdle() {
+        List<PooledConnection> expired = new ArrayList<>();
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            Iterator<Map.Entry<Route, RoutePool>> routeIterator = routes.entrySet().iterator();
+            while (routeIterator.hasNext()) {
+                Map.Entry<Route, RoutePool> entry = routeIterator.next();
+                boolean retired = entry.getKey().credentials.isRetired();
+                RoutePool routePool = entry.getValue();
+                Iterator<PooledConnection> iterator = routePool.idle.iterator();
+                while (iterator.hasNext()) {
+                    PooledConnection connection = iterator.next();
+                    if (retired || now - connection.idleSinceNanos >= connection.idleTimeoutNanos) {
+                        iterator.remove();
+                        routePool.open--;
+                        expired.add(connection);
+                    }
+                }
+                if (retired && routePool.open == 0) {
+                    routeIterator.remove();
+                }
+            }
+            if (!expired.isEmpty()) {
+                released.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+        connectionsEvicted.add(expired.size());
+        for (PooledConnection connection : expired) {
+            connection.closeQuietly();
+        }
+    }
+
+    private ResponseBody readResponseHead(PooledConnection connection) throws IOException {
+        InputStream input = connection.input;
+        while (true) {
+            String statusLine = readLine(input);
+            if (statusLine == null) {
+                throw new EOFException("SPFE closed the connection without a reply");
+            }
+            String[] status = statusLine.split(" ", 3);
+            if (status.length < 2 || !status[0].startsWith("HTTP/1.")) {
+                throw new IOException("Malformed HTTP status line from SPFE: " + statusLine);
+            }
+            int code;
+            try {
+                code = Integer.parseInt(status[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed HTTP status line from SPFE: " + statusLine);
+            }
+            boolean keepAlive = !"HTTP/1.0".equals(status[0]);
+            long contentLength = -1;
+            boolean chunked = false;
+            long keepAliveNanos = -1;
+
+            for (int headers = 0; ; headers++) {
+                String line = readLine(input);
+                if (line == null) {
+                    throw new EOFException("SPFE closed the connection in the middle of a reply");
+                }
+                if (line.isEmpty()) {
+                    break;
+                }
+                if (headers >= MAX_HEADER_COUNT) {
+                    throw new IOException("Too many HTTP headers in SPFE reply");
+                }
+                int colon = line.indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if ("Content-Length".equalsIgnoreCase(name)) {
+                    try {
+                        contentLength = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Malformed Content-Length in SPFE reply: " + value);
+                    }
+                } else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+                    chunked = value.toLowerCase().contains("chunked");
+                } else if ("Connection".equalsIgnoreCase(name)) {
+                    String lower = value.toLowerCase();
+                    if (lower.contains("close")) {
+                        keepAlive = false;
+                    } else if (lower.contains("keep-alive")) {
+                        keepAlive = true;
+                    }
+                } else if ("Keep-Alive".equalsIgnoreCase(name)) {
+                    keepAliveNanos = parseKeepAliveTimeout(value);
+                }
+            }
+
+            if (code >= 100 && code < 200) {
+                continue;  // Interim reply, the real one follows
+            }
+            if (keepAliveNanos > 0) {
+                connection.idleTimeoutNanos = Math.min(idleTimeoutNanos, keepAliveNanos);
+            }
+            return new ResponseBody(input, code, chunked ? -1 : contentLength, chunked, keepAlive);
+        }
+    }
+
+    private static long parseKeepAliveTimeout(String value) {
+        for (String part : value.split(",")) {
+            String[] pair = part.trim().split("=", 2);
+            if (pair.length == 2 && "timeout".equalsIgnoreCase(pair[0].trim())) {
+                try {
+                    return TimeUnit.SECONDS.toNanos(Long.parseLong(pair[1].trim()));
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static String readLine(InputStream input) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = input.read()) != -1) {
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            if (line.length() >= MAX_LINE_LENGTH) {
+                throw new IOException("HTTP line too long in SPFE reply");
+            }
+            line.append((char) c);
+        }
+        if (line.length() == 0) {
+            return null;
+        }
+        throw new EOFException("SPFE closed the connection in the middle of a line");
+    }
+
+    private static final class Route {
+        final String host;
+        final int port;
+        final SPFECredentials credentials;
+
+        Route(String host, int port, SPFECredentials credentials) {
+            this.host = host;
+            this.port = port;
+            this.credentials = credentials;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Route)) {
+                return false;
+            }
+            Route other = (Route) o;
+            return port == other.port && host.equals(other.host) && credentials == other.credentials;
+        }
+
+        @Override
+        public int hashCode() {
+            return (host.hashCode() * 31 + port) * 31 + System.identityHashCode(credentials);
+        }
+    }
+
+    private static final class RoutePool {
+        final ArrayDeque<PooledConnection> idle = new ArrayDeque<>();  // Most recently used first
+        int open = 0;
+    }
+
+    private static final class PooledConnection {
+        final Route route;
+        final SSLSocket socket;
+        final Socket plain;
+        final InputStream input;
+        final OutputStream output;
+        volatile long idleSinceNanos;
+        volatile long idleTimeoutNanos;
+        volatile int uses = 0;
+
+        PooledConnection(Route route, SSLSocket socket, Socket plain, long idleTimeoutNanos) throws IOException {
+            this.route = route;
+            this.socket = socket;
+            this.plain = plain;
+            this.input = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+            this.output = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+            this.idleSinceNanos = System.nanoTime();
+            this.idleTimeoutNanos = idleTimeoutNanos;
+        }
+
+        /**
+         * Nothing may arrive on an idle connection: end of stream means the server has closed it, and unexpected
+         * bytes leave it unusable as well.
+         */
+        boolean isStale() {
+            try {
+                socket.setSoTimeout(1);
+                //noinspection ResultOfMethodCallIgnored
+                input.read();
+                return true;
+            } catch (SocketTimeoutException e) {
+                return false;
+            } catch (IOException e) {
+                return true;
+            }
+        }
+
+        void closeQuietly() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // The connection is dropped either way
+            }
+        }
+
+        /**
+         * Drops the TCP connection without a TLS close_notify. Unlike {@link #closeQuietly()} it neither waits for
+         * the peer nor for a read blocked in another thread, so it is what a broken or overdue connection gets.
+         */
+        void abort() {
+            try {
+                plain.close();
+            } catch (IOException ignored) {
+                // The connection is dropped either way
+            }
+        }
+    }
+
+    /**
+     * Request body in chunked framing, for streamed bodies whose length is not known up front.
+     */
+    private static final class ChunkedOutputStream extends OutputStream {
+        private final OutputStream output;
+
+        ChunkedOutputStream(OutputStream output) {
+            this.output = output;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;  // A zero-length chunk would end the body
+            }
+            output.write((Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            output.write(b, off, len);
+            output.write(CRLF);
+        }
+
+        void finish() throws IOException {
+            output.write(LAST_CHUNK);
+        }
+    }
+
+    /**
+     * Reply body limited to the current response, either by Content-Length or by chunked framing.
+     */
+    private static final class ResponseBody extends InputStream {
+        final int code;
+        private final InputStream input;
+        private final boolean chunked;
+        private final boolean keepAlive;
+        private final byte[] single = new byte[1];
+        private long remaining;  // Bytes left in the body or in the current chunk, -1 if read until close
+        private boolean chunkSeen = false;
+        private boolean finished = false;
+        private boolean failed = false;
+
+        ResponseBody(InputStream input, int code, long contentLength, boolean chunked, boolean keepAlive) {
+            this.code = code;
+            this.input = input;
+            this.chunked = chunked;
+            this.keepAlive = keepAlive && (chunked || contentLength >= 0);
+            this.remaining = chunked ? 0 : contentLength;
+            if (!chunked && contentLength == 0) {
+                finished = true;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            int n = read(single, 0, 1);
+            return n == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (finished) {
+                return -1;
+            }
+            if (length == 0) {
+                return 0;
+            }
+            try {
+                if (chunked && remaining == 0 && !nextChunk()) {
+                    return -1;
+                }
+                int toRead = remaining < 0 ? length : (int) Math.min(length, remaining);
+                int n = input.read(buffer, offset, toRead);
+                if (n == -1) {
+                    if (remaining < 0) {
+                        finished = true;
+                        return -1;
+                    }
+                    throw new EOFException("SPFE closed the connection in the middle of a reply");
+                }
+                if (remaining > 0) {
+                    remaining -= n;
+                    if (remaining == 0 && !chunked) {
+                        finished = true;
+                    }
+                }
+                return n;
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        private boolean nextChunk() throws IOException {
+            if (remaining == 0 && chunkSeen) {
+                String crlf = readLine(input);
+                if (crlf == null || !crlf.isEmpty()) {
+                    throw new IOException("Malformed chunked SPFE reply");
+                }
+            }
+            String sizeLine = readLine(input);
+            if (sizeLine == null) {
+                throw new EOFException("SPFE closed the connection in the middle of a reply");
+            }
+            int extension = sizeLine.indexOf(';');
+            String size = (extension >= 0 ? sizeLine.substring(0, extension) : sizeLine).trim();
+            try {
+                remaining = Long.parseLong(size, 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed chunk size in SPFE reply: " + sizeLine);
+            }
+            chunkSeen = true;
+            if (remaining == 0) {
+                String trailer;
+                do {
+                    trailer = readLine(input);
+                } while (trailer != null && !trailer.isEmpty());
+                finished = true;
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Reads whatever the reader left behind. Returns whether the connection may carry another request.
+         */
+        boolean drainAfterReader() {
+            if (!failed) {
+                try {
+                    byte[] skip = new byte[BUFFER_SIZE];
+                    //noinspection StatementWithEmptyBody
+                    while (read(skip, 0, skip.length) != -1) {
+                    }
+                } catch (IOException e) {
+                    failed = true;
+                }
+            }
+            return !failed && finished && keepAlive;
+        }
+
+        @Override
+        public void close() {
+            // The connection is managed by the pool
+        }
+    }
+}
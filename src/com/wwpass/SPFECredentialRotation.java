@@ -0,0 +1,114 @@
+/**
+ * SPFECredentialRotation.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The credentials calls of a {@link WWPassConnection} are sent with when they come from a
+ * {@link WWPassCredentialSource}.
+ * <p>
+ * When the source has new credentials, the first call to see them sets them up; calls that come meanwhile go on
+ * with the current ones rather than wait. The replaced credentials are then still handed out for the drain time,
+ * to a share of the calls that falls linearly to none, and retired afterwards. A rotation that comes before the
+ * previous one has drained retires the older credentials right away.
+ */
+final class SPFECredentialRotation {
+
+    private final WWPassCredentialSource source;
+    private final X509Certificate spfeCA;
+    private final WWPassTlsOptions tlsOptions;
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile SPFECredentials current;
+    private final AtomicReference<SPFECredentials> previous = new AtomicReference<>();  // Draining, if any
+    private volatile long switchedAtNanos;
+    private volatile long failedGeneration = -1;  // Not retried until the source has newer credentials
+
+    SPFECredentialRotation(WWPassCredentialSource source, X509Certificate spfeCA, WWPassTlsOptions tlsOptions)
+            throws IOException, GeneralSecurityException {
+        this.source = source;
+        this.spfeCA = spfeCA;
+        this.tlsOptions = tlsOptions;
+        WWPassCredentialSource.Credentials credentials = source.current();
+        current = SPFECredentials.build(credentials.certificate, credentials.key, spfeCA, tlsOptions, credentials.generation);
+    }
+
+    WWPassCredentialSource getSource() {
+        return source;
+    }
+
+    /** The credentials the connection was built with. */
+    SPFECredentials initial() {
+        return current;
+    }
+
+    /** The credentials for the next call. */
+    SPFECredentials select() {
+        WWPassCredentialSource.Credentials latest = source.current();
+        SPFECredentials selected = current;
+        if (latest.generation != selected.generation && latest.generation != failedGeneration && lock.tryLock()) {
+            try {
+                selected = switchTo(latest);
+            } finally {
+                lock.unlock();
+            }
+        }
+        SPFECredentials draining = previous.get();
+        if (draining == null) {
+            return selected;
+        }
+        long elapsed = System.nanoTime() - switchedAtNanos;
+        long drainNanos = source.getDrainNanos();
+        if (elapsed >= drainNanos) {
+            if (previous.compareAndSet(draining, null)) {
+                draining.retire();
+            }
+            return selected;
+        }
+        return ThreadLocalRandom.current().nextLong(drainNanos) >= elapsed ? draining : selected;
+    }
+
+    private SPFECredentials switchTo(WWPassCredentialSource.Credentials latest) {
+        SPFECredentials replaced = current;
+        if (replaced.generation == latest.generation) {
+            return replaced;  // Switched by another thread meanwhile
+        }
+        SPFECredentials next;
+        try {
+            next = SPFECredentials.build(latest.certificate, latest.key, spfeCA, tlsOptions, latest.generation);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            failedGeneration = latest.generation;
+            source.failed(e);
+            return replaced;
+        }
+        switchedAtNanos = System.nanoTime();
+        SPFECredentials older = previous.getAndSet(replaced);
+        if (older != null) {
+            older.retire();
+        }
+        current = next;
+        return next;
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * SPFECredentials.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Base64;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * The SSL setup of one set of SP credentials: what a call is sent with.
+ * <p>
+ * The key may be of any type the JDK can sign TLS handshakes with; its algorithm is taken from the certificate.
+ * An EC key (P-256 or P-384) makes the client's handshake signature far cheaper than an RSA key does.
+ * <p>
+ * Transports keep their connections per instance (by identity), so that connections and TLS sessions are
+ * never shared between credentials. Once credentials have been replaced and no new call takes them any more,
+ * they are {@linkplain #isRetired() retired}: calls still holding them finish as usual, but the connections
+ * they leave behind are closed rather than pooled.
+ */
+final class SPFECredentials {
+
+    final long generation;  // See WWPassCredentialSource
+    final SSLContext context;
+    // Taken once: the JDK only reuses kept-alive HTTPS connections opened with the very same factory instance
+    final SSLSocketFactory socketFactory;
+    final SSLParameters parameters;  // With the enabled protocols, null for the defaults
+    private volatile boolean retired = false;
+
+    private SPFECredentials(long generation, SSLContext context, String[] protocols) {
+        this.generation = generation;
+        this.context = context;
+        if (protocols == null) {
+            this.socketFactory = context.getSocketFactory();
+            this.parameters = null;
+        } else {
+            this.socketFactory = new SPFESocketFactory(context.getSocketFactory(), protocols);
+            this.parameters = context.getDefaultSSLParameters();
+            this.parameters.setProtocols(protocols);
+        }
+    }
+
+    static SPFECredentials build(X509Certificate cert, PKCS8EncodedKeySpec key, X509Certificate spfeCA,
+                                 WWPassTlsOptions tlsOptions, long generation) throws IOException, GeneralSecurityException {
+        // Setting up client certificate and key
+        X509Certificate[] chain = { cert };
+        PrivateKey privateKey = privateKey(cert, key);
+        KeyStore.PrivateKeyEntry privateKeyEntry = new KeyStore.PrivateKeyEntry(privateKey, chain);
+
+        // This provides no additional security, but Java requires to password-protect the key
+        byte[] passwordBytes = new byte[16];
+        new SecureRandom().nextBytes(passwordBytes);
+        String password = Base64.getEncoder().encodeToString(passwordBytes);
+
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance("SunX509");
+        KeyStore pkcs12 = KeyStore.getInstance("PKCS12");
+        pkcs12.load(null);
+        pkcs12.setEntry("WWPass client key", privateKeyEntry, new KeyStore.PasswordProtection(password.toCharArray()));
+        keyManagerFactory.init(pkcs12, password.toCharArray());
+
+        // Creating TrustManager for this CA
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+
+        KeyStore jks = KeyStore.getInstance("JKS");
+        jks.load(null);
+        jks.setCertificateEntry("WWPass Root CA", spfeCA);
+
+        trustManagerFactory.init(jks);
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(), new SecureRandom());
+        SSLSessionContext sessions = context.getClientSessionContext();
+        if (tlsOptions.getSessionCacheSize() >= 0) {
+            sessions.setSessionCacheSize(tlsOptions.getSessionCacheSize());
+        }
+        if (tlsOptions.getSessionTimeoutSec() >= 0) {
+            sessions.setSessionTimeout(tlsOptions.getSessionTimeoutSec());
+        }
+        String[] protocols = tlsOptions.enabledProtocols(context.getSupportedSSLParameters().getProtocols());
+        if (protocols != null) {
+            context.createSSLEngine().setEnabledProtocols(protocols);  // Fails here rather than on the first call
+        }
+        return new SPFECredentials(generation, context, protocols);
+    }
+
+    /** {@code key} as a key of the type of {@code cert}'s public key. */
+    static PrivateKey privateKey(X509Certificate cert, PKCS8EncodedKeySpec key) throws GeneralSecurityException {
+        return KeyFactory.getInstance(cert.getPublicKey().getAlgorithm()).generatePrivate(key);
+    }
+
+    /** A signature algorithm keys of {@code keyAlgorithm} sign with, {@code null} if there is no obvious one. */
+    static String signatureAlgorithm(String keyAlgorithm) {
+        switch (keyAlgorithm) {
+            case "RSA":
+                return "SHA256withRSA";
+            case "EC":
+                return "SHA256withECDSA";
+            case "DSA":
+                return "SHA256withDSA";
+            case "EdDSA":
+            case "Ed25519":
+            case "Ed448":
+                return keyAlgorithm;
+            default:
+                return null;
+        }
+    }
+
+    boolean isRetired() {
+        return retired;
+    }
+
+    void retire() {
+        retired = true;
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * SPFEDeadline.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Deadline of one SPFE call. When it passes, a watchdog aborts whatever the call is blocked on, e.g. closes the
+ * socket a slow reply is trickling in on; the call then fails with {@link SocketTimeoutException}.
+ * <p>
+ * Each of the two attempts of a hedged call has a deadline of its own, see {@link #attemptOf}, which also ends
+ * when the other attempt answers first.
+ */
+final class SPFEDeadline {
+
+    interface Abort {
+        void abort();
+    }
+
+    /** The timeout a call fails with because its own deadline passed, as opposed to a slow SPFE reply. */
+    static final class Exceeded extends SocketTimeoutException {
+        private static final long serialVersionUID = 1L;
+
+        Exceeded(String message) {
+            super(message);
+        }
+    }
+
+    private static final ScheduledThreadPoolExecutor WATCHDOG = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "WWPass deadline watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        WATCHDOG.setRemoveOnCancelPolicy(true);  // Almost every deadline is cancelled, don't keep them queued
+    }
+
+    private final long deadlineMs;
+    private final long deadlineNanos;
+    private final boolean bounded;  // false for an attempt of a call without a deadline
+    private final ScheduledFuture<?> watchdog;  // null if unbounded
+    private volatile boolean expired = false;
+    private final AtomicReference<Abort> abort = new AtomicReference<>();
+
+    SPFEDeadline(long deadlineMs) {
+        this.deadlineMs = deadlineMs;
+        this.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMs);
+        this.bounded = true;
+        watchdog = WATCHDOG.schedule(this::expire, deadlineMs, TimeUnit.MILLISECONDS);
+    }
+
+    private SPFEDeadline(SPFEDeadline call) {
+        this.bounded = call != null;
+        this.deadlineMs = bounded ? call.deadlineMs : 0;
+        this.deadlineNanos = bounded ? call.deadlineNanos : 0;
+        watchdog = bounded ? WATCHDOG.schedule(this::expire, deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS) : null;
+    }
+
+    /**
+     * The deadline of one attempt of a hedged call: it passes with {@code call}'s, never if {@code call} is
+     * {@code null}, and at once on {@link #abort()}. Cancelled separately from {@code call}.
+     */
+    static SPFEDeadline attemptOf(SPFEDeadline call) {
+        return new SPFEDeadline(call);
+    }
+
+    private void expire() {
+        expired = true;
+        Abort current = abort.getAndSet(null);
+        if (current != null) {
+            current.abort();
+        }
+    }
+
+    /** Ends the deadline now, aborting what is attached. */
+    void abort() {
+        expire();
+    }
+
+    /** What to abort when the deadline passes. Aborts at once if it already has. */
+    void attach(Abort abort) {
+        this.abort.set(abort);
+        if (expired) {
+            expire();
+        }
+    }
+
+    /**
+     * Stops watching what was attached. Returns {@code false} if the watchdog got to it first, in which case it is
+     * being or has been aborted and must not be reused.
+     */
+    boolean detach() {
+        return abort.getAndSet(null) != null || !expired;
+    }
+
+    boolean isExpired() {
+        return expired;
+    }
+
+    /** Whether the deadline has passed, even if the watchdog has not got to it yet. */
+    boolean hasPassed() {
+        return expired || bounded && deadlineNanos - System.nanoTime() <= 0;
+    }
+
+    /** Milliseconds left, at least 1 so that it can be used as a timeout where 0 means infinite. */
+    int remainingMs() throws SocketTimeoutException {
+        if (!bounded) {
+            if (expired) {
+                throw exceeded();
+            }
+            return Integer.MAX_VALUE;
+        }
+        long remaining = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+        if (remaining <= 0 || expired) {
+            throw exceeded();
+        }
+        return (int) Math.min(Integer.MAX_VALUE, remaining);
+    }
+
+    /** The tighter of {@code timeoutMs} (0 for none) and the time left. */
+    int limit(int timeoutMs) throws SocketTimeoutException {
+        int remaining = remainingMs();
+        if (!bounded) {
+            return timeoutMs;
+        }
+        return timeoutMs == 0 ? remaining : Math.min(timeoutMs, remaining);
+    }
+
+    /**
+     * {@code e} as seen by the caller: {@link Exceeded} if the call failed because the deadline aborted it, or
+     * timed out on a read limited to the time that was left.
+     */
+    IOException translate(IOException e) {
+        if (e instanceof Exceeded || !(expired || e instanceof SocketTimeoutException && hasPassed())) {
+            return e;
+        }
+        SocketTimeoutException timeout = exceeded();
+        timeout.initCause(e);
+        return timeout;
+    }
+
+    SocketTimeoutException exceeded() {
+        if (!bounded) {
+            return new Exceeded("SPFE call attempt abandoned");
+        }
+        return new Exceeded("SPFE call deadline of " + deadlineMs + " ms exceeded");
+    }
+
+    void cancel() {
+        if (watchdog != null) {
+            watchdog.cancel(false);
+        }
+    }
+}
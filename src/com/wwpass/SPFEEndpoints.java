@@ -0,0 +1,297 @@
+/**
+ * SPFEEndpoints.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The SPFE front ends a {@link WWPassConnection} talks to, and the choice between them.
+ * <p>
+ * Each call goes to the better of two randomly picked healthy endpoints ("power of two choices"), scored by
+ * the moving average of their recent latency times the number of calls they already have in flight. The average
+ * fades as it gets older, so an endpoint that lost every comparison for a while gets another chance. An endpoint
+ * that fails {@link #EJECT_AFTER_FAILURES} calls in a row is ejected; once its back-off runs out, a single call
+ * is let through as a probe, and the endpoint is back in rotation if that call succeeds. The back-off doubles
+ * with every failed probe, up to {@link #MAX_EJECTION_MS}.
+ * <p>
+ * With a single endpoint there is nothing to choose from, and none of this bookkeeping is done.
+ */
+final class SPFEEndpoints {
+
+    static final int EJECT_AFTER_FAILURES = 3;
+    static final long MIN_EJECTION_MS = 1_000;
+    static final long MAX_EJECTION_MS = 30_000;
+    private static final double EWMA_WEIGHT = 0.3;  // Weight of the newest sample
+    // An estimate fades with age, so an endpoint that was slow once is tried again eventually
+    private static final double DECAY_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    /**
+     * Where one command of one endpoint goes, worked out once instead of on every call.
+     */
+    static final class Target {
+        final String url;  // Without query
+        final String host;  // IPv6 addresses without brackets
+        final int port;
+        final byte[] path;  // Raw path, e.g. "/sp/read.xml"
+        final byte[] hostHeader;  // Complete "Host" header line
+
+        Target(String url) {
+            URI uri = URI.create(url);
+            String uriHost = uri.getHost();
+            this.url = url;
+            this.host = uriHost.startsWith("[") ? uriHost.substring(1, uriHost.length() - 1) : uriHost;
+            this.port = uri.getPort() != -1 ? uri.getPort() : 443;
+            this.path = uri.getRawPath().getBytes(StandardCharsets.US_ASCII);
+            String header = "Host: " + (uri.getPort() != -1 ? uriHost + ":" + port : uriHost) + "\r\n";
+            this.hostHeader = header.getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    static final class Endpoint {
+        final String address;
+        final String url;
+        private final ConcurrentMap<String, Target> targets = new ConcurrentHashMap<>();
+
+        // Updated without locking: a lost update under contention only makes the estimate slightly staler
+        private volatile double latencyNanos = 0;  // Zero until measured, so new endpoints get tried first
+        private volatile long measuredAtNanos = System.nanoTime();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private volatile long ejectedUntilNanos = 0;
+        private volatile long ejectionNanos = TimeUnit.MILLISECONDS.toNanos(MIN_EJECTION_MS);
+        private volatile boolean ejected = false;
+        private final AtomicBoolean probing = new AtomicBoolean();
+
+        Endpoint(String address) {
+            this.address = address;
+            this.url = "https://" + address + "/";
+        }
+
+        Target target(String command) {
+            Target target = targets.get(command);
+            if (target == null) {
+                target = new Target(url + command + ".xml");
+                Target existing = targets.putIfAbsent(command, target);
+                if (existing != null) {
+                    target = existing;
+                }
+            }
+            return target;
+        }
+
+        private double score(long now) {
+            return latencyNanos * Math.exp(-(now - measuredAtNanos) / DECAY_NANOS) * (inFlight.get() + 1);
+        }
+
+        void started() {
+            inFlight.incrementAndGet();
+        }
+
+        /** The endpoint answered, with a reply or with an SPFE error. */
+        void succeeded(long nanos) {
+            inFlight.decrementAndGet();
+            double latency = latencyNanos;
+            latencyNanos = latency == 0 ? nanos : latency + EWMA_WEIGHT * (nanos - latency);
+            measuredAtNanos = System.nanoTime();
+            consecutiveFailures.set(0);
+            if (ejected) {
+                ejectionNanos = TimeUnit.MILLISECONDS.toNanos(MIN_EJECTION_MS);
+                ejected = false;
+                probing.set(false);
+            }
+        }
+
+        /** The call failed before the endpoint answered: connect error, timeout, HTTP error status. */
+        void failed(long nanos) {
+            inFlight.decrementAndGet();
+            double latency = latencyNanos;
+            latencyNanos = Math.max(latency, nanos);  // Slow failures must not make an endpoint look fast
+            measuredAtNanos = System.nanoTime();
+            if (ejected) {
+                // Failed probe
+                long backOff = ejectionNanos;
+                ejectionNanos = Math.min(backOff * 2, TimeUnit.MILLISECONDS.toNanos(MAX_EJECTION_MS));
+                ejectedUntilNanos = System.nanoTime() + backOff;
+                probing.set(false);
+            } else if (consecutiveFailures.incrementAndGet() >= EJECT_AFTER_FAILURES) {
+                ejectedUntilNanos = System.nanoTime() + ejectionNanos;
+                ejected = true;
+            }
+        }
+
+        /** The call neither succeeded nor failed on the endpoint's account, e.g. a bug on our side. */
+        void abandoned() {
+            inFlight.decrementAndGet();
+            if (ejected) {
+                probing.set(false);
+            }
+        }
+
+        private boolean isAvailable() {
+            return !ejected;
+        }
+
+        /** Claims the right to send the one probe call to an ejected endpoint whose back-off is over. */
+        private boolean tryProbe(long now) {
+            return ejected && now - ejectedUntilNanos >= 0 && probing.compareAndSet(false, true);
+        }
+
+        @Override
+        public String toString() {
+            return address + (ejected ? " (ejected)" : "") + ", latency="
+                    + String.format("%.3fms", latencyNanos / TimeUnit.MILLISECONDS.toNanos(1)) + ", inFlight=" + inFlight.get();
+        }
+    }
+
+    private final List<Endpoint> endpoints;
+
+    private SPFEEndpoints(List<Endpoint> endpoints) {
+        this.endpoints = endpoints;
+    }
+
+    /**
+     * @param spfeAddr one SPFE address, or several separated by commas
+     */
+    static SPFEEndpoints parse(String spfeAddr) {
+        List<Endpoint> endpoints = new ArrayList<>();
+        for (String address : spfeAddr.split(",")) {
+            address = address.trim();
+            if (!address.isEmpty()) {
+                endpoints.add(new Endpoint(address));
+            }
+        }
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("No SPFE address given");
+        }
+        return new SPFEEndpoints(Collections.unmodifiableList(endpoints));
+    }
+
+    int size() {
+        return endpoints.size();
+    }
+
+    Endpoint first() {
+        return endpoints.get(0);
+    }
+
+    List<Endpoint> all() {
+        return endpoints;
+    }
+
+    /** Like {@link #select(List)}, but keeps to {@code preferred} as long as it is neither ejected nor excluded. */
+    Endpoint select(List<Endpoint> exclude, Endpoint preferred) {
+        if (preferred != null && preferred.isAvailable() && (exclude == null || !exclude.contains(preferred))) {
+            return preferred;
+        }
+        return select(exclude);
+    }
+
+    /**
+     * Picks the endpoint for the next call, avoiding the ones in {@code exclude} (endpoints a retried call has
+     * already failed on) as long as there is anything else.
+     */
+    Endpoint select(List<Endpoint> exclude) {
+        long now = System.nanoTime();
+        Endpoint first = null;
+        Endpoint second = null;
+        int candidates = 0;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (Endpoint endpoint : endpoints) {
+            if (exclude != null && exclude.contains(endpoint)) {
+                continue;
+            }
+            if (endpoint.tryProbe(now)) {
+                return endpoint;
+            }
+            if (!endpoint.isAvailable()) {
+                continue;
+            }
+            // Reservoir sampling of two distinct candidates in one pass
+            candidates++;
+            if (candidates == 1) {
+                first = endpoint;
+            } else if (candidates == 2) {
+                second = endpoint;
+            } else {
+                int slot = random.nextInt(candidates);
+                if (slot == 0) {
+                    first = endpoint;
+                } else if (slot == 1) {
+                    second = endpoint;
+                }
+            }
+        }
+        if (first == null) {
+            return fallback(exclude);
+        }
+        if (second == null) {
+            return first;
+        }
+        return second.score(now) < first.score(now) ? second : first;
+    }
+
+    /**
+     * Picks the endpoint for the duplicate of a hedged call in flight on {@code busy}: the healthy endpoint with the
+     * best score other than {@code busy}, or {@code busy} itself if there is none. Ejected endpoints are not probed
+     * with duplicates.
+     */
+    Endpoint selectOther(Endpoint busy) {
+        long now = System.nanoTime();
+        Endpoint best = null;
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint != busy && endpoint.isAvailable() && (best == null || endpoint.score(now) < best.score(now))) {
+                best = endpoint;
+            }
+        }
+        if (best != null) {
+            return best;
+        }
+        return busy != null ? busy : select(null);
+    }
+
+    /** Everything is ejected or excluded: the endpoint that is due to come back first is the best bet. */
+    private Endpoint fallback(List<Endpoint> exclude) {
+        Endpoint best = null;
+        for (Endpoint endpoint : endpoints) {
+            if (exclude != null && exclude.contains(endpoint) && exclude.size() < endpoints.size()) {
+                continue;
+            }
+            if (best == null || endpoint.ejectedUntilNanos - best.ejectedUntilNanos < 0) {
+                best = endpoint;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public String toString() {
+        return endpoints.toString();
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * SPFEExchange.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One HTTP round trip of an SPFE call, as handed to a {@link SPFETransport}.
+ * <p>
+ * {@code query} and the body may point into a buffer that is reused once the transport returns, so a transport
+ * that sends later must copy them first.
+ */
+final class SPFEExchange {
+    final SPFEEndpoints.Target target;
+    final byte[] query;  // Encoded parameters of a GET, null for a POST
+    final int queryLength;
+    final SPFEFormBody body;  // Body of a POST, null for a GET
+    final SPFECredentials credentials;  // Kept by the call to the end, even if they are replaced meanwhile
+    final int connectTimeoutMs;  // 0 for none
+    final int readTimeoutMs;  // 0 for none
+    final SPFECallTimer timer;  // null when metrics are off
+    final SPFEDeadline deadline;  // null when the call has none
+    final SPFESession session;  // null unless the call is a step of authenticate()
+    final boolean idempotent;  // May be sent again if it fails, see WWPassConnection.isIdempotent
+
+    SPFEExchange(SPFEEndpoints.Target target, byte[] query, int queryLength, SPFEFormBody body,
+                 SPFECredentials credentials, int connectTimeoutMs, int readTimeoutMs, SPFECallTimer timer,
+                 SPFEDeadline deadline, SPFESession session, boolean idempotent) {
+        this.target = target;
+        this.query = query;
+        this.queryLength = queryLength;
+        this.body = body;
+        this.credentials = credentials;
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+        this.timer = timer;
+        this.deadline = deadline;
+        this.session = session;
+        this.idempotent = idempotent;
+    }
+
+    boolean isPost() {
+        return body != null;
+    }
+
+    /** The URL with the query of a GET. */
+    String url() {
+        if (query == null) {
+            return target.url;
+        }
+        return target.url + "?" + new String(query, 0, queryLength, StandardCharsets.US_ASCII);
+    }
+}
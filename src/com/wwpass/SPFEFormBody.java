@@ -0,0 +1,132 @@
+/**
+ * SPFEFormBody.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Body of a POST call as built by {@link SPFERequestEncoder}, optionally followed by the value of a {@code data}
+ * parameter that is read from a stream and percent-encoded while it is sent.
+ * <p>
+ * A streamed value is encoded byte for byte exactly as {@link java.net.URLEncoder} encodes the UTF-8 bytes of a
+ * string, so SPFE cannot tell a streamed write from a regular one.
+ */
+final class SPFEFormBody {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final byte[] encoded;
+    private final int encodedLength;
+    private final InputStream data;
+
+    /**
+     * @param encoded the encoded parameters; when {@code data} is set, they end with {@code data=}
+     * @param data streamed value of the {@code data} parameter, {@code null} if there is none
+     */
+    SPFEFormBody(byte[] encoded, int encodedLength, InputStream data) {
+        this.encoded = encoded;
+        this.encodedLength = encodedLength;
+        this.data = data;
+    }
+
+    /** Length in bytes, -1 if it is only known once the stream has been sent. */
+    long length() {
+        return data == null ? encodedLength : -1;
+    }
+
+    /** Copy of a body whose length is known. */
+    byte[] toByteArray() {
+        if (data != null) {
+            throw new IllegalStateException("Streamed body");
+        }
+        return Arrays.copyOf(encoded, encodedLength);
+    }
+
+    /** The body as a stream, for HTTP clients that pull the body rather than have it written. */
+    InputStream stream() {
+        return new InputStream() {
+            private byte[] chunk = encoded;
+            private int position = 0;
+            private int limit = encodedLength;
+            private byte[] input = null;
+            private ByteBuffer wrapped = null;
+            private byte[] percentEncoded = null;
+
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                while (position == limit) {
+                    if (!fill()) {
+                        return -1;
+                    }
+                }
+                int count = Math.min(len, limit - position);
+                System.arraycopy(chunk, position, b, off, count);
+                position += count;
+                return count;
+            }
+
+            private boolean fill() throws IOException {
+                if (data == null) {
+                    return false;
+                }
+                if (input == null) {
+                    input = new byte[BUFFER_SIZE];
+                    wrapped = ByteBuffer.wrap(input);
+                    percentEncoded = new byte[BUFFER_SIZE * 3];
+                }
+                int read = data.read(input);
+                if (read == -1) {
+                    return false;
+                }
+                chunk = percentEncoded;
+                position = 0;
+                limit = SPFERequestEncoder.encode(wrapped, 0, read, percentEncoded, 0);
+                return true;
+            }
+        };
+    }
+
+    void writeTo(OutputStream output) throws IOException {
+        output.write(encoded, 0, encodedLength);
+        if (data == null) {
+            return;
+        }
+        byte[] input = new byte[BUFFER_SIZE];
+        ByteBuffer wrapped = ByteBuffer.wrap(input);
+        byte[] percentEncoded = new byte[BUFFER_SIZE * 3];
+        int read;
+        while ((read = data.read(input)) != -1) {
+            output.write(percentEncoded, 0, SPFERequestEncoder.encode(wrapped, 0, read, percentEncoded, 0));
+        }
+    }
+}
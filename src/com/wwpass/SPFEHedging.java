@@ -0,0 +1,370 @@
+/**
+ * SPFEHedging.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.wwpass.WWPassConnection.WWPassReply;
+
+/**
+ * Hedged reads: a call that has no reply after the usual time is sent a second time, and the first answer wins.
+ * <p>
+ * Only calls that are safe to repeat are hedged: {@code puid}, {@code get} and reads that take no lock. Lock
+ * operations, reads that take a lock, {@code put}, writes, every POST and streamed calls never are. The duplicate
+ * goes to another healthy SPFE endpoint if there is one, to the same one otherwise, except that the calls of a login
+ * stay on the endpoint of the login. Whichever attempt replies first answers the call and the other one is
+ * aborted. An attempt that fails, with an SPFE error or otherwise, only fails the call once the other attempt has
+ * failed too; the call then fails with the error of the primary attempt.
+ * <p>
+ * The delay is the {@code percentile} of the recent latency of the same command, and at least {@code minDelayMs}.
+ * It is measured over windows of 1,000 successful calls; commands are not hedged until the first 100 of
+ * them have been measured. The budget caps duplicates at {@code maxExtraLoadPercent} of the calls that could be
+ * hedged, with bursts of up to 10 duplicates,
+ * so that an SPFE that is slow for everyone is not sent twice the load. With the defaults, the 5% slowest calls
+ * are hedged at the cost of at most 5% more calls.
+ * <p>
+ * An instance can be shared by several connections to make them share the budget and the delays.
+ *
+ * @see WWPassConnection#setHedging(SPFEHedging)
+ */
+public final class SPFEHedging {
+
+    public static final double DEFAULT_PERCENTILE = 95;
+    public static final double DEFAULT_MAX_EXTRA_LOAD_PERCENT = 5;
+    static final int WINDOW_CALLS = 1_000;
+    static final int FIRST_WINDOW_CALLS = 100;
+    static final int BURST = 10;
+    private static final long TOKEN = 1_000;  // The budget is kept in thousandths of a duplicate
+
+    private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "WWPass hedging timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        TIMER.setRemoveOnCancelPolicy(true);  // Most calls answer before their duplicate is due
+    }
+
+    private static final class DuplicatesHolder {
+        static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactoryImpl());
+    }
+
+    private static final class ThreadFactoryImpl implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "WWPass hedged call " + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /** Latency of one command over the current window, and the delay worked out from the previous one. */
+    private final class Estimate {
+        final AtomicReference<LatencyHistogram> window = new AtomicReference<>(new LatencyHistogram());
+        volatile long delayNanos = -1;  // Not measured yet
+
+        void record(long nanos) {
+            LatencyHistogram current = window.get();
+            current.record(nanos);
+            if (current.getCount() >= (delayNanos < 0 ? FIRST_WINDOW_CALLS : WINDOW_CALLS)
+                    && window.compareAndSet(current, new LatencyHistogram())) {
+                delayNanos = Math.max(minDelayNanos, current.getValueAtPercentile(percentile));
+            }
+        }
+    }
+
+    private final double percentile;
+    private final long minDelayNanos;
+    private final double maxExtraLoadPercent;
+    private final long deposit;  // Added to the budget by every call that could be hedged
+
+    private final ConcurrentMap<String, Estimate> estimates = new ConcurrentHashMap<>();
+    private final AtomicLong budget = new AtomicLong();
+    private final LongAdder hedgedCalls = new LongAdder();
+    private final LongAdder duplicateWins = new LongAdder();
+    private final LongAdder overBudget = new LongAdder();
+
+    /**
+     * @param percentile          latency percentile of the command after which a call is hedged, e.g. 95
+     * @param minDelayMs          shortest delay, whatever the percentile
+     * @param maxExtraLoadPercent duplicates allowed per hundred calls that could be hedged
+     */
+    public SPFEHedging(double percentile, long minDelayMs, double maxExtraLoadPercent) {
+        if (!(percentile > 0 && percentile < 100)) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100");
+        }
+        if (minDelayMs < 0) {
+            throw new IllegalArgumentException("minDelayMs must not be negative");
+        }
+        if (!(maxExtraLoadPercent > 0 && maxExtraLoadPercent <= 100)) {
+            throw new IllegalArgumentException("maxExtraLoadPercent must be positive and at most 100");
+        }
+        this.percentile = percentile;
+        this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(minDelayMs);
+        this.maxExtraLoadPercent = maxExtraLoadPercent;
+        this.deposit = Math.max(1, Math.round(maxExtraLoadPercent / 100 * TOKEN));
+    }
+
+    /** Hedges after the 95th percentile, for at most 5% more calls. */
+    public SPFEHedging() {
+        this(DEFAULT_PERCENTILE, 0, DEFAULT_MAX_EXTRA_LOAD_PERCENT);
+    }
+
+    public double getPercentile() {
+        return percentile;
+    }
+
+    public long getMinDelayMs() {
+        return TimeUnit.NANOSECONDS.toMillis(minDelayNanos);
+    }
+
+    public double getMaxExtraLoadPercent() {
+        return maxExtraLoadPercent;
+    }
+
+    /** Calls a duplicate was sent for. */
+    public long getHedgedCalls() {
+        return hedgedCalls.sum();
+    }
+
+    /** Hedged calls the duplicate answered first. */
+    public long getDuplicateWins() {
+        return duplicateWins.sum();
+    }
+
+    /** Calls that were due for a duplicate, but the budget was used up. */
+    public long getOverBudgetCalls() {
+        return overBudget.sum();
+    }
+
+    /** The current delay for {@code command} in milliseconds, -1 while it is not measured yet. */
+    public long getDelayMs(String command) {
+        Estimate estimate = estimates.get(command);
+        long delayNanos = estimate != null ? estimate.delayNanos : -1;
+        return delayNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(delayNanos);
+    }
+
+    private Estimate estimate(String command) {
+        Estimate estimate = estimates.get(command);
+        if (estimate == null) {
+            estimate = new Estimate();
+            Estimate existing = estimates.putIfAbsent(command, estimate);
+            if (existing != null) {
+                estimate = existing;
+            }
+        }
+        return estimate;
+    }
+
+    /** Latency of a successful call of {@code command} that was not hedged for lack of a delay. */
+    void record(String command, long nanos) {
+        estimate(command).record(nanos);
+    }
+
+    /**
+     * Starts a hedged call of {@code command} with the call's {@code deadline}, if any. Returns {@code null} when
+     * the command's delay is not known yet; the call is then sent as usual and reported to {@link #record}.
+     */
+    Race race(String command, SPFEDeadline deadline) {
+        long balance = budget.get();
+        long cap = BURST * TOKEN;
+        while (balance < cap && !budget.compareAndSet(balance, Math.min(cap, balance + deposit))) {
+            balance = budget.get();
+        }
+        Estimate estimate = estimate(command);
+        long delayNanos = estimate.delayNanos;
+        return delayNanos < 0 ? null : new Race(estimate, delayNanos, deadline);
+    }
+
+    private boolean withdraw() {
+        long balance = budget.get();
+        while (balance >= TOKEN) {
+            if (budget.compareAndSet(balance, balance - TOKEN)) {
+                return true;
+            }
+            balance = budget.get();
+        }
+        overBudget.increment();
+        return false;
+    }
+
+    /** Runs a duplicate that blocks on its own thread. */
+    static void execute(Runnable duplicate) {
+        DuplicatesHolder.EXECUTOR.execute(duplicate);
+    }
+
+    @Override
+    public String toString() {
+        return "percentile=" + percentile + ", minDelayMs=" + getMinDelayMs()
+                + ", maxExtraLoadPercent=" + maxExtraLoadPercent + ", hedgedCalls=" + getHedgedCalls()
+                + ", duplicateWins=" + getDuplicateWins() + ", overBudgetCalls=" + getOverBudgetCalls();
+    }
+
+    /**
+     * The two attempts of one hedged call. Each has a deadline of its own, which the other one ends by replying
+     * first. The primary attempt is sent by the caller as usual; {@link #schedule} sends the duplicate once the
+     * delay has passed, unless the primary attempt is done by then or the budget is used up.
+     */
+    final class Race {
+        private static final int RACING = 0;
+        private static final int HEDGED = 1;
+        private static final int FINISHED = 2;
+
+        final SPFEDeadline primaryDeadline;
+        final SPFEDeadline duplicateDeadline;
+        // Where the primary attempt went: the duplicate avoids it, or follows it in a session
+        volatile SPFEEndpoints.Endpoint primaryEndpoint;
+        private final CompletableFuture<WWPassReply> reply = new CompletableFuture<>();
+        private final CompletableFuture<WWPassReply> duplicate = new CompletableFuture<>();
+        private final AtomicInteger state = new AtomicInteger(RACING);
+        private final AtomicBoolean decided = new AtomicBoolean();
+        private final Estimate estimate;
+        private final long delayNanos;
+        private final long start = System.nanoTime();
+        private volatile ScheduledFuture<?> trigger;
+
+        private Race(Estimate estimate, long delayNanos, SPFEDeadline deadline) {
+            this.estimate = estimate;
+            this.delayNanos = delayNanos;
+            this.primaryDeadline = SPFEDeadline.attemptOf(deadline);
+            this.duplicateDeadline = SPFEDeadline.attemptOf(deadline);
+            reply.whenComplete((result, error) -> finish(error));
+        }
+
+        /** Runs {@code sendDuplicate} on the timer thread when the duplicate is due; it must not block. */
+        void schedule(Runnable sendDuplicate) {
+            trigger = TIMER.schedule(() -> {
+                if (claim()) {
+                    sendDuplicate.run();
+                }
+            }, delayNanos, TimeUnit.NANOSECONDS);
+        }
+
+        private boolean claim() {
+            if (state.get() != RACING || !withdraw()) {
+                return false;
+            }
+            if (!state.compareAndSet(RACING, HEDGED)) {
+                budget.addAndGet(TOKEN);  // Not spent after all
+                return false;
+            }
+            hedgedCalls.increment();
+            return true;
+        }
+
+        /** The outcome of the primary attempt, {@code error} unwrapped. */
+        void primaryCompleted(WWPassReply result, Throwable error) {
+            if (state.compareAndSet(RACING, FINISHED)) {
+                complete(reply, result, error);  // No duplicate was sent, and none will be
+            } else if (error == null) {
+                if (decided.compareAndSet(false, true)) {
+                    duplicateDeadline.abort();
+                    reply.complete(result);
+                }
+            } else {
+                duplicate.whenComplete((duplicateResult, duplicateError) -> {
+                    if (duplicateError != null && decided.compareAndSet(false, true)) {
+                        error.addSuppressed(duplicateError);
+                        reply.completeExceptionally(error);
+                    }
+                });
+            }
+        }
+
+        /** The outcome of the duplicate, {@code error} unwrapped. */
+        void duplicateCompleted(WWPassReply result, Throwable error) {
+            if (error == null && decided.compareAndSet(false, true)) {
+                duplicateWins.increment();
+                primaryDeadline.abort();
+                reply.complete(result);
+            }
+            complete(duplicate, result, error);
+        }
+
+        /** The call's reply, the first of the two, or the primary attempt's failure if neither replied. */
+        CompletableFuture<WWPassReply> reply() {
+            return reply;
+        }
+
+        /** Waits for {@link #reply()}. */
+        WWPassReply await() throws IOException {
+            try {
+                return reply.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                duplicateDeadline.abort();
+                throw new InterruptedIOException("Interrupted while waiting for a hedged SPFE call");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException(cause);
+            }
+        }
+
+        private void finish(Throwable error) {
+            ScheduledFuture<?> current = trigger;
+            if (current != null) {
+                current.cancel(false);
+            }
+            if (error == null) {
+                // A call the duplicate answered counts as the delay plus the duplicate's time, which is above the
+                // percentile just as the primary attempt's own time would have been
+                estimate.record(System.nanoTime() - start);
+            }
+            primaryDeadline.cancel();
+            duplicateDeadline.cancel();
+        }
+
+        private void complete(CompletableFuture<WWPassReply> future, WWPassReply result, Throwable error) {
+            if (error == null) {
+                future.complete(result);
+            } else {
+                future.completeExceptionally(error);
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/**
+ * SPFEHttpClientTransport.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+/**
+ * Stand-in for the {@code java.net.http.HttpClient} transport on Java 8.
+ * <p>
+ * The transport itself is in {@code src-java11} and is packed into the Java 11 part of the multi-release jar,
+ * where it replaces this class.
+ */
+final class SPFEHttpClientTransport extends SPFETransport {
+
+    static boolean isAvailable() {
+        return false;
+    }
+
+    SPFEHttpClientTransport() {
+        throw new UnsupportedOperationException("The HttpClient transport needs Java 11 or newer");
+    }
+
+    @Override
+    <T> T execute(SPFEExchange exchange, ReplyReader<T> reader) {
+        throw new UnsupportedOperationException();
+    }
+}
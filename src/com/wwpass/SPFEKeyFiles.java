@@ -0,0 +1,293 @@
+/**
+ * SPFEKeyFiles.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Enumeration;
+
+/**
+ * Reads SP keys and certificates from files.
+ * <p>
+ * Keys may be PEM ({@code PRIVATE KEY}, {@code RSA PRIVATE KEY} in either PKCS#1 or PKCS#8 form, or
+ * {@code EC PRIVATE KEY} as OpenSSL writes it, also after {@code EC PARAMETERS}) or PKCS#8 DER, certificates PEM or
+ * DER, and both may come together in a PKCS#12 file. Files are read as bytes, whatever the platform charset.
+ * Anything that doesn't parse fails with an {@link IOException} naming the file and the problem, instead of a
+ * base64 or ASN.1 error further down: text and blocks other than the key are skipped as RFC 7468 allows, but the
+ * key block itself must be complete and its body pure base64.
+ */
+final class SPFEKeyFiles {
+
+    private static final byte[] BEGIN = "-----BEGIN ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DASHES = "-----".getBytes(StandardCharsets.US_ASCII);
+
+    // AlgorithmIdentifier of rsaEncryption with NULL parameters, see RFC 8017
+    private static final byte[] RSA_ALGORITHM = {
+            0x30, 0x0d, 0x06, 0x09, 0x2a, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xf7, 0x0d, 0x01, 0x01, 0x01, 0x05, 0x00 };
+    // OID of id-ecPublicKey, see RFC 5480; the curve OID follows it in the AlgorithmIdentifier
+    private static final byte[] EC_PUBLIC_KEY = { 0x06, 0x07, 0x2a, (byte) 0x86, 0x48, (byte) 0xce, 0x3d, 0x02, 0x01 };
+
+    private static final byte SEQUENCE = 0x30;
+    private static final byte INTEGER = 0x02;
+    private static final byte OCTET_STRING = 0x04;
+    private static final byte OBJECT_IDENTIFIER = 0x06;
+    private static final byte PARAMETERS = (byte) 0xa0;  // [0] of the SEC 1 ECPrivateKey
+
+    private SPFEKeyFiles() {
+    }
+
+    static PKCS8EncodedKeySpec readKey(String path) throws IOException {
+        return parseKey(Files.readAllBytes(Paths.get(path)), path);
+    }
+
+    static X509Certificate readCertificate(String path) throws IOException, GeneralSecurityException {
+        try (InputStream input = new ByteArrayInputStream(Files.readAllBytes(Paths.get(path)))) {
+            return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(input);
+        }
+    }
+
+    /** The only key of a PKCS#12 file, with its certificate chain. */
+    static KeyStore.PrivateKeyEntry readPKCS12(String path, char[] password) throws IOException, GeneralSecurityException {
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        try (InputStream input = new ByteArrayInputStream(Files.readAllBytes(Paths.get(path)))) {
+            store.load(input, password);
+        }
+        KeyStore.PrivateKeyEntry entry = null;
+        for (Enumeration<String> aliases = store.aliases(); aliases.hasMoreElements(); ) {
+            String alias = aliases.nextElement();
+            if (!store.isKeyEntry(alias)) {
+                continue;
+            }
+            if (entry != null) {
+                throw new IOException(path + ": more than one key");
+            }
+            Key key = store.getKey(alias, password);
+            Certificate[] chain = store.getCertificateChain(alias);
+            if (!(key instanceof PrivateKey) || chain == null || chain.length == 0 || !(chain[0] instanceof X509Certificate)) {
+                throw new IOException(path + ": the key of \"" + alias + "\" has no X.509 certificate");
+            }
+            entry = new KeyStore.PrivateKeyEntry((PrivateKey) key, chain);
+        }
+        if (entry == null) {
+            throw new IOException(path + ": no key");
+        }
+        return entry;
+    }
+
+    /**
+     * A PKCS#8 key out of {@code data}, PEM or DER. Of PEM, the first private key block: blocks before it that hold
+     * no key, e.g. the {@code EC PARAMETERS} that {@code openssl ecparam -genkey} writes first, are skipped.
+     * {@code name} is only used in error messages.
+     */
+    static PKCS8EncodedKeySpec parseKey(byte[] data, String name) throws IOException {
+        int begin = indexOf(data, BEGIN, 0);
+        if (begin < 0) {
+            return new PKCS8EncodedKeySpec(checkSequence(data, name));  // DER
+        }
+        String firstLabel = null;
+        while (begin >= 0) {
+            int labelStart = begin + BEGIN.length;
+            int labelEnd = indexOf(data, DASHES, labelStart);
+            if (labelEnd < 0) {
+                throw new IOException(name + ": malformed PEM header");
+            }
+            String label = new String(data, labelStart, labelEnd - labelStart, StandardCharsets.US_ASCII);
+            byte[] endLine = ("-----END " + label + "-----").getBytes(StandardCharsets.US_ASCII);
+            int bodyStart = labelEnd + DASHES.length;
+            int bodyEnd = indexOf(data, endLine, bodyStart);
+            if (bodyEnd < 0) {
+                throw new IOException(name + ": no \"-----END " + label + "-----\" line");
+            }
+            if (label.endsWith("PRIVATE KEY")) {
+                return decodeKey(label, decodeBody(data, bodyStart, bodyEnd, name), name);
+            }
+            if (firstLabel == null) {
+                firstLabel = label;
+            }
+            begin = indexOf(data, BEGIN, bodyEnd + endLine.length);
+        }
+        throw new IOException(name + ": \"" + firstLabel + "\" is not a private key");
+    }
+
+    private static PKCS8EncodedKeySpec decodeKey(String label, byte[] der, String name) throws IOException {
+        switch (label) {
+            case "PRIVATE KEY":
+                return new PKCS8EncodedKeySpec(checkSequence(der, name));
+            case "RSA PRIVATE KEY":
+                checkSequence(der, name);
+                return new PKCS8EncodedKeySpec(isPKCS8(der) ? der : wrap(RSA_ALGORITHM, der));
+            case "EC PRIVATE KEY":
+                checkSequence(der, name);
+                return new PKCS8EncodedKeySpec(isPKCS8(der) ? der : wrap(ecAlgorithm(der, name), der));
+            case "ENCRYPTED PRIVATE KEY":
+                throw new IOException(name + ": encrypted keys are not supported, decrypt it with openssl pkcs8");
+            default:
+                throw new IOException(name + ": \"" + label + "\" keys are not supported");
+        }
+    }
+
+    /** The base64 body of a PEM block, with line breaks and spaces dropped and nothing else allowed. */
+    private static byte[] decodeBody(byte[] data, int start, int end, String name) throws IOException {
+        byte[] base64 = new byte[end - start];
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            byte b = data[i];
+            if (b == '\n' || b == '\r' || b == ' ' || b == '\t') {
+                continue;
+            }
+            if (b == ':') {
+                throw new IOException(name + ": PEM headers are not supported (a legacy encrypted key?)");
+            }
+            base64[length++] = b;
+        }
+        try {
+            return Base64.getDecoder().decode(length == base64.length ? base64 : Arrays.copyOf(base64, length));
+        } catch (IllegalArgumentException e) {
+            throw new IOException(name + ": bad base64 in the PEM body", e);
+        }
+    }
+
+    private static byte[] checkSequence(byte[] der, String name) throws IOException {
+        if (der.length < 2 || der[0] != SEQUENCE || contentStart(der, 0) + contentLength(der, 0) != der.length) {
+            throw new IOException(name + ": not a DER-encoded key");
+        }
+        return der;
+    }
+
+    /**
+     * Whether an {@code RSA PRIVATE KEY} or {@code EC PRIVATE KEY} block actually holds PKCS#8: there the version is
+     * followed by the algorithm SEQUENCE, in PKCS#1 by the modulus INTEGER and in SEC 1 by the key OCTET STRING.
+     */
+    private static boolean isPKCS8(byte[] der) throws IOException {
+        int version = contentStart(der, 0);
+        if (version >= der.length || der[version] != INTEGER) {
+            throw new IOException("Malformed private key");
+        }
+        int next = contentStart(der, version) + contentLength(der, version);
+        return next < der.length && der[next] == SEQUENCE;
+    }
+
+    /** The AlgorithmIdentifier for a SEC 1 ECPrivateKey, naming the curve given in its parameters. */
+    private static byte[] ecAlgorithm(byte[] sec1, String name) throws IOException {
+        int end = contentStart(sec1, 0) + contentLength(sec1, 0);
+        int element = contentStart(sec1, 0);
+        while (element < end && sec1[element] != PARAMETERS) {
+            element = contentStart(sec1, element) + contentLength(sec1, element);
+        }
+        int curve = element < end ? contentStart(sec1, element) : end;
+        if (curve < end && sec1[curve] == OBJECT_IDENTIFIER) {  // Not explicit curve parameters
+            int curveLength = contentStart(sec1, curve) + contentLength(sec1, curve) - curve;
+            byte[] sequence = header(SEQUENCE, EC_PUBLIC_KEY.length + curveLength);
+            byte[] algorithm = new byte[sequence.length + EC_PUBLIC_KEY.length + curveLength];
+            System.arraycopy(sequence, 0, algorithm, 0, sequence.length);
+            System.arraycopy(EC_PUBLIC_KEY, 0, algorithm, sequence.length, EC_PUBLIC_KEY.length);
+            System.arraycopy(sec1, curve, algorithm, sequence.length + EC_PUBLIC_KEY.length, curveLength);
+            return algorithm;
+        }
+        throw new IOException(name + ": the EC key does not name its curve");
+    }
+
+    /** PKCS#8 PrivateKeyInfo around a PKCS#1 or SEC 1 private key. */
+    private static byte[] wrap(byte[] algorithm, byte[] privateKey) {
+        byte[] octets = header(OCTET_STRING, privateKey.length);
+        int contentLength = 3 + algorithm.length + octets.length + privateKey.length;
+        byte[] sequence = header(SEQUENCE, contentLength);
+        byte[] out = new byte[sequence.length + contentLength];
+        int at = 0;
+        System.arraycopy(sequence, 0, out, at, sequence.length);
+        at += sequence.length;
+        out[at++] = INTEGER;
+        out[at++] = 1;
+        out[at++] = 0;  // Version 0
+        System.arraycopy(algorithm, 0, out, at, algorithm.length);
+        at += algorithm.length;
+        System.arraycopy(octets, 0, out, at, octets.length);
+        at += octets.length;
+        System.arraycopy(privateKey, 0, out, at, privateKey.length);
+        return out;
+    }
+
+    private static byte[] header(byte tag, int length) {
+        if (length < 0x80) {
+            return new byte[] { tag, (byte) length };
+        }
+        int bytes = length < 0x100 ? 1 : length < 0x10000 ? 2 : length < 0x1000000 ? 3 : 4;
+        byte[] header = new byte[2 + bytes];
+        header[0] = tag;
+        header[1] = (byte) (0x80 | bytes);
+        for (int i = 0; i < bytes; i++) {
+            header[2 + i] = (byte) (length >>> (8 * (bytes - 1 - i)));
+        }
+        return header;
+    }
+
+    /** Offset of the content of the DER element at {@code offset}. */
+    private static int contentStart(byte[] der, int offset) throws IOException {
+        if (offset + 1 >= der.length) {
+            throw new IOException("Truncated DER");
+        }
+        int first = der[offset + 1] & 0xff;
+        return first < 0x80 ? offset + 2 : offset + 2 + (first & 0x7f);
+    }
+
+    /** Length of the content of the DER element at {@code offset}. */
+    private static int contentLength(byte[] der, int offset) throws IOException {
+        int first = der[offset + 1] & 0xff;
+        if (first < 0x80) {
+            return first;
+        }
+        int bytes = first & 0x7f;
+        if (bytes == 0 || bytes > 3 || offset + 2 + bytes > der.length) {
+            throw new IOException("Unsupported DER length");
+        }
+        int length = 0;
+        for (int i = 0; i < bytes; i++) {
+            length = length << 8 | (der[offset + 2 + i] & 0xff);
+        }
+        return length;
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern, int from) {
+        outer:
+        for (int i = from; i <= data.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
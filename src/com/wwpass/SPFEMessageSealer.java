@@ -0,0 +1,143 @@
+/**
+ * SPFEMessageSealer.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES-GCM sealing of the transaction message passed to {@code get}.
+ * <p>
+ * The message goes to SPFE as {@code {"ciphertext":"...","tag":"...","nonce":"..."}} with base64 values and
+ * {@code /} escaped as {@code \/}, in exactly the form the JSON library used before produced. The random key is
+ * taken from one shared {@link SecureRandom}; the {@link Cipher} and its output buffer are reused from call to call
+ * (see {@link SPFEThreadCache}), and ciphertext and tag are base64-encoded straight from that buffer.
+ */
+final class SPFEMessageSealer {
+
+    static final int KEY_LENGTH = 16;
+    static final int TAG_LENGTH = 16;
+    private static final int MAX_RETAINED_SIZE = 64 * 1024;
+
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    // SecureRandom is thread-safe
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final class CipherHolder {
+        final Cipher cipher;
+        byte[] output = new byte[1024];
+
+        CipherHolder() {
+            try {
+                cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("AES/GCM is not available", e);
+            }
+        }
+    }
+
+    private static final SPFEThreadCache<CipherHolder> CIPHER = new SPFEThreadCache<>(CipherHolder::new);
+
+    private final GCMParameterSpec parameterSpec;
+    private final String nonceMember;  // ,"nonce":"..."} closing every message
+
+    SPFEMessageSealer(byte[] nonce) {
+        this.parameterSpec = new GCMParameterSpec(TAG_LENGTH * 8, nonce);  // Copies the nonce
+        StringBuilder member = new StringBuilder(",\"nonce\":\"");
+        base64(nonce, 0, nonce.length, member);
+        nonceMember = member.append("\"}").toString();
+    }
+
+    static byte[] newKey() {
+        byte[] key = new byte[KEY_LENGTH];
+        RANDOM.nextBytes(key);
+        return key;
+    }
+
+    /** The sealed {@code message} parameter for {@code message}, encrypted with {@code key}. */
+    String seal(String message, byte[] key) throws IOException {
+        byte[] plainText = message.getBytes(StandardCharsets.UTF_8);
+        CipherHolder holder = CIPHER.take();  // Given back only on success
+        int length;
+        try {
+            holder.cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), parameterSpec);
+            int size = holder.cipher.getOutputSize(plainText.length);
+            if (holder.output.length < size) {
+                holder.output = new byte[size];
+            }
+            length = holder.cipher.doFinal(plainText, 0, plainText.length, holder.output, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+        byte[] output = holder.output;
+        if (output.length > MAX_RETAINED_SIZE) {
+            holder.output = new byte[1024];
+        }
+
+        int cipherTextLength = length - TAG_LENGTH;
+        StringBuilder json = new StringBuilder(48 + (cipherTextLength + TAG_LENGTH) * 3 / 2 + nonceMember.length());
+        json.append("{\"ciphertext\":\"");
+        base64(output, 0, cipherTextLength, json);
+        json.append("\",\"tag\":\"");
+        base64(output, cipherTextLength, TAG_LENGTH, json);
+        json.append('"').append(nonceMember);
+        CIPHER.give(holder);  // Only now, the output buffer is read up to here
+        return json.toString();
+    }
+
+    /** Appends standard padded base64 of the given bytes, with {@code /} escaped for JSON. */
+    private static void base64(byte[] bytes, int offset, int length, StringBuilder out) {
+        int end = offset + length;
+        int i = offset;
+        for (; i + 3 <= end; i += 3) {
+            int bits = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | (bytes[i + 2] & 0xff);
+            append(BASE64[bits >> 18], out);
+            append(BASE64[(bits >> 12) & 0x3f], out);
+            append(BASE64[(bits >> 6) & 0x3f], out);
+            append(BASE64[bits & 0x3f], out);
+        }
+        if (end - i == 1) {
+            int bits = (bytes[i] & 0xff) << 16;
+            append(BASE64[bits >> 18], out);
+            append(BASE64[(bits >> 12) & 0x3f], out);
+            out.append("==");
+        } else if (end - i == 2) {
+            int bits = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8;
+            append(BASE64[bits >> 18], out);
+            append(BASE64[(bits >> 12) & 0x3f], out);
+            append(BASE64[(bits >> 6) & 0x3f], out);
+            out.append('=');
+        }
+    }
+
+    private static void append(char c, StringBuilder out) {
+        if (c == '/') {
+            out.append('\\');
+        }
+        out.append(c);
+    }
+}
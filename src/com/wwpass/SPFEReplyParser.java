@@ -0,0 +1,347 @@
+/**
+ * SPFEReplyParser.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.wwpass.WWPassConnection.WWPassProtocolException;
+import com.wwpass.WWPassConnection.WWPassReply;
+
+/**
+ * Single-pass StAX decoder for SPFE replies.
+ * <p>
+ * Reads {@code result}, {@code data}, {@code ttl} and {@code originalTicket} straight off the stream
+ * and decodes base64 values into UTF-8 without building a DOM or an intermediate copy of the reply.
+ * Container data can also be decoded straight into an {@link OutputStream}, see {@link #parse(InputStream, OutputStream)}.
+ */
+final class SPFEReplyParser {
+
+    // Configured once and never changed afterwards, so creating readers from it is safe from any thread
+    private static final XMLInputFactory XML_INPUT_FACTORY = createInputFactory();
+
+    private static final byte[] BASE64_VALUES = new byte[128];
+
+    static {
+        Arrays.fill(BASE64_VALUES, (byte) -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            BASE64_VALUES[alphabet.charAt(i)] = (byte) i;
+        }
+    }
+
+    private SPFEReplyParser() {
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);  // To prevent XXE
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    static WWPassReply parse(InputStream rawXMLInput) throws IOException {
+        return parse(rawXMLInput, null);
+    }
+
+    /**
+     * Parses a reply, writing the decoded {@code data} of a successful one to {@code sink} rather than into the
+     * returned reply, whose data is then {@code null}. When {@code result} precedes {@code data}, as it does in
+     * SPFE replies, the data goes to the sink as it is decoded without being held in memory; otherwise it is
+     * written once the reply has been read. Data of error replies never reaches the sink.
+     */
+    static WWPassReply parse(InputStream rawXMLInput, OutputStream sink) throws IOException {
+        return parse(rawXMLInput, sink, false);
+    }
+
+    /**
+     * Parses a reply, keeping the decoded {@code data} of a successful one as bytes, see
+     * {@link WWPassReply#getRawData()}. Its data string is then {@code null}.
+     */
+    static WWPassReply parseBinary(InputStream rawXMLInput) throws IOException {
+        return parse(rawXMLInput, null, true);
+    }
+
+    private static WWPassReply parse(InputStream rawXMLInput, OutputStream sink, boolean binary) throws IOException {
+        XMLStreamReader reader = null;
+        try {
+            reader = XML_INPUT_FACTORY.createXMLStreamReader(rawXMLInput);
+            String result = null;
+            String data = null;
+            byte[] dataBytes = null;  // Binary data, or data for the sink that arrived before the result
+            boolean streamed = false;
+            String ttl = null;
+            String originalTicket = null;
+
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.DTD) {
+                    throw new WWPassProtocolException("Malformed SPFE reply: DOCTYPE is not allowed");
+                }
+                if (event != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                String name = reader.getLocalName();
+                if (result == null && "result".equals(name)) {
+                    result = readText(reader, false);
+                } else if (data == null && dataBytes == null && !streamed && "data".equals(name)) {
+                    if (sink == null && !binary) {
+                        data = readValue(reader);
+                    } else if (sink != null && result != null && result.equalsIgnoreCase("true")) {
+                        readValue(reader, sink);
+                        streamed = true;
+                    } else {
+                        dataBytes = readBytes(reader);
+                    }
+                } else if (ttl == null && "ttl".equals(name)) {
+                    ttl = readValue(reader);
+                } else if (originalTicket == null && "originalTicket".equals(name)) {
+                    originalTicket = readValue(reader);
+                }
+            }
+
+            boolean success = result != null && result.equalsIgnoreCase("true");
+            if (dataBytes != null && !success) {
+                data = new String(dataBytes, StandardCharsets.UTF_8);  // The error message
+            } else if (dataBytes != null && sink != null) {
+                sink.write(dataBytes);
+                streamed = true;
+            }
+            if (result == null || (data == null && dataBytes == null && !streamed)) {
+                throw new WWPassProtocolException("Malformed SPFE reply: " + (result == null ? "result" : "data") + " is missing");
+            }
+            if (!success) {
+                throw new WWPassProtocolException("SPFE returned error: " + data);
+            }
+
+            WWPassReply replyObject = new WWPassReply(data);
+            if (binary) {
+                replyObject.setRawData(dataBytes);
+            }
+            if (ttl != null) {
+                try {
+                    replyObject.setTtl(ttl);
+                } catch (NumberFormatException e) {
+                    throw new WWPassProtocolException("unable to convert ttl to int");
+                }
+            }
+            if (originalTicket != null) {
+                replyObject.setOriginalTicket(originalTicket);
+            }
+            return replyObject;
+        } catch (XMLStreamException e) {
+            if (e.getNestedException() instanceof IOException) {
+                throw (IOException) e.getNestedException();
+            }
+            throw new WWPassProtocolException("Malformed SPFE reply: " + e.getMessage());
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException ignored) {
+                    // Closing the reader does not touch the underlying stream
+                }
+            }
+        }
+    }
+
+    private static boolean isBase64(XMLStreamReader reader) {
+        return "base64".equalsIgnoreCase(reader.getAttributeValue(null, "encoding"));
+    }
+
+    private static String readValue(XMLStreamReader reader) throws XMLStreamException, IOException {
+        return readText(reader, isBase64(reader));
+    }
+
+    /** Like {@link #readValue(XMLStreamReader)}, but writes the value to {@code sink} as it is decoded. */
+    private static void readValue(XMLStreamReader reader, OutputStream sink) throws XMLStreamException, IOException {
+        if (isBase64(reader)) {
+            Base64Decoder decoder = new Base64Decoder(sink);
+            readText(reader, decoder, null);
+            decoder.finishTo();
+        } else {
+            Writer text = new OutputStreamWriter(sink, StandardCharsets.UTF_8);
+            readText(reader, null, text);
+            text.flush();  // Not closed, the sink belongs to the caller
+        }
+    }
+
+    /** Like {@link #readValue(XMLStreamReader)}, but returns the value as bytes: base64 decoded, text in UTF-8. */
+    private static byte[] readBytes(XMLStreamReader reader) throws XMLStreamException, IOException {
+        if (isBase64(reader)) {
+            Base64Decoder decoder = new Base64Decoder();
+            readText(reader, decoder, null);
+            return decoder.finishBytes();
+        }
+        return readText(reader, false).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String readText(XMLStreamReader reader, boolean base64) throws XMLStreamException, IOException {
+        if (base64) {
+            Base64Decoder decoder = new Base64Decoder();
+            readText(reader, decoder, null);
+            return decoder.finish();
+        }
+        StringBuilder text = new StringBuilder();
+        readText(reader, null, text);
+        return text.toString();
+    }
+
+    /**
+     * Collects the text of the current element up to its end tag, feeding it to {@code decoder} when it is base64
+     * and appending it to {@code text} otherwise.
+     * Line breaks are skipped: they never reached the parser back when the reply was read line by line.
+     */
+    private static void readText(XMLStreamReader reader, Base64Decoder decoder, Appendable text) throws XMLStreamException, IOException {
+        int depth = 1;
+        while (depth > 0) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    depth--;
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    char[] chars = reader.getTextCharacters();
+                    int start = reader.getTextStart();
+                    int end = start + reader.getTextLength();
+                    for (int i = start; i < end; i++) {
+                        char c = chars[i];
+                        if (c == '\r' || c == '\n') {
+                            continue;
+                        }
+                        if (decoder != null) {
+                            decoder.accept(c);
+                        } else {
+                            text.append(c);
+                        }
+                    }
+                    break;
+                case XMLStreamConstants.END_DOCUMENT:
+                    throw new XMLStreamException("unexpected end of document");
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Incremental base64 decoder with the same acceptance rules as {@link java.util.Base64#getDecoder()}.
+     */
+    private static final class Base64Decoder {
+        private static final int SINK_BUFFER_SIZE = 8192;
+
+        private final OutputStream sink;  // Decoded bytes are flushed here instead of piling up, if set
+        private byte[] buffer;
+        private int length = 0;
+        private int bits = 0;
+        private int sextets = 0;
+        private int padding = 0;
+
+        Base64Decoder() {
+            this.sink = null;
+            this.buffer = new byte[64];
+        }
+
+        Base64Decoder(OutputStream sink) {
+            this.sink = sink;
+            this.buffer = new byte[SINK_BUFFER_SIZE];
+        }
+
+        void accept(char c) throws IOException {
+            if (c == '=') {
+                if (sextets < 2 || padding >= 4 - sextets) {
+                    throw malformed();
+                }
+                padding++;
+                return;
+            }
+            if (padding > 0 || c >= 128 || BASE64_VALUES[c] < 0) {
+                throw malformed();
+            }
+            bits = (bits << 6) | BASE64_VALUES[c];
+            if (++sextets == 4) {
+                ensureCapacity(3);
+                buffer[length++] = (byte) (bits >> 16);
+                buffer[length++] = (byte) (bits >> 8);
+                buffer[length++] = (byte) bits;
+                bits = 0;
+                sextets = 0;
+            }
+        }
+
+        String finish() throws IOException {
+            finishBits();
+            return new String(buffer, 0, length, StandardCharsets.UTF_8);
+        }
+
+        byte[] finishBytes() throws IOException {
+            finishBits();
+            return length == buffer.length ? buffer : Arrays.copyOf(buffer, length);
+        }
+
+        void finishTo() throws IOException {
+            finishBits();
+            sink.write(buffer, 0, length);
+            length = 0;
+        }
+
+        private void finishBits() throws IOException {
+            if (sextets == 1 || (padding > 0 && padding != 4 - sextets)) {
+                throw malformed();
+            }
+            if (sextets == 2) {
+                ensureCapacity(1);
+                buffer[length++] = (byte) (bits >> 4);
+            } else if (sextets == 3) {
+                ensureCapacity(2);
+                buffer[length++] = (byte) (bits >> 10);
+                buffer[length++] = (byte) (bits >> 2);
+            }
+        }
+
+        private void ensureCapacity(int extra) throws IOException {
+            if (sink != null && length + extra > buffer.length) {
+                sink.write(buffer, 0, length);
+                length = 0;
+            }
+            if (length + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+            }
+        }
+
+        private static WWPassProtocolException malformed() {
+            return new WWPassProtocolException("Malformed SPFE reply: illegal base64 data");
+        }
+    }
+}
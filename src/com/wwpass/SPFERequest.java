@@ -0,0 +1,51 @@
+/**
+ * SPFERequest.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * One SPFE call as built by the {@link WWPassConnection} API methods, before it is sent.
+ */
+final class SPFERequest {
+    final String method;
+    final String command;
+    final Map<String, String> parameters;
+    byte[] messageKey = null;  // Set for "get" with an encrypted message, handed back in the reply
+    InputStream dataStream = null;  // Streamed "data" parameter, sent after the others
+    OutputStream dataSink = null;  // Receives the reply data instead of the reply object
+    ByteBuffer dataBuffer = null;  // Binary "data" parameter, sent after the others
+    boolean binaryReply = false;  // Reply data is kept as bytes, see WWPassReply.getRawData()
+    SPFESession session = null;  // Set for the steps of authenticate(), sent on the same endpoint and connection
+
+    SPFERequest(String method, String command, Map<String, String> parameters) {
+        this.method = method;
+        this.command = command;
+        this.parameters = parameters;
+    }
+
+    /** Whether the call is fully described by its method, command and parameters. */
+    boolean isPlain() {
+        return dataStream == null && dataSink == null && dataBuffer == null && !binaryReply;
+    }
+}
@@ -0,0 +1,201 @@
+/**
+ * SPFERequestEncoder.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Form encoder for SPFE calls that writes straight into a reusable byte buffer, see {@link SPFEThreadCache}.
+ * <p>
+ * Parameters are percent-encoded from their UTF-8 bytes exactly as {@link java.net.URLEncoder} encodes them,
+ * without intermediate strings. The buffer is reused by later calls, so encoding a call
+ * produces no garbage once the buffer has grown to fit. Buffers that grew beyond {@link #MAX_RETAINED_SIZE} for
+ * an unusually large call are dropped afterwards rather than kept around.
+ * <p>
+ * An encoder is taken with {@link #acquire()} and must be given back with {@link #release()} once its bytes
+ * have been sent.
+ */
+final class SPFERequestEncoder {
+
+    static final int MAX_RETAINED_SIZE = 64 * 1024;
+    private static final int INITIAL_SIZE = 1024;
+
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+    private static final boolean[] UNRESERVED = new boolean[256];
+    private static final byte[] DATA = "data=".getBytes(StandardCharsets.US_ASCII);
+
+    static {
+        for (int c = 'a'; c <= 'z'; c++) {
+            UNRESERVED[c] = true;
+        }
+        for (int c = 'A'; c <= 'Z'; c++) {
+            UNRESERVED[c] = true;
+        }
+        for (int c = '0'; c <= '9'; c++) {
+            UNRESERVED[c] = true;
+        }
+        UNRESERVED['.'] = true;
+        UNRESERVED['-'] = true;
+        UNRESERVED['*'] = true;
+        UNRESERVED['_'] = true;
+    }
+
+    private static final SPFEThreadCache<SPFERequestEncoder> CACHED = new SPFEThreadCache<>(SPFERequestEncoder::new);
+
+    private byte[] buffer = new byte[INITIAL_SIZE];
+    private int length = 0;
+    private boolean inUse = false;
+
+    private SPFERequestEncoder() {
+    }
+
+    /**
+     * The encoder of the current thread, or a fresh one if the thread's encoder is still busy with a call that
+     * started another one, e.g. from a stream callback.
+     */
+    static SPFERequestEncoder acquire() {
+        SPFERequestEncoder encoder = CACHED.take();
+        if (encoder.inUse) {
+            encoder = new SPFERequestEncoder();
+        }
+        encoder.inUse = true;
+        encoder.length = 0;
+        return encoder;
+    }
+
+    void release() {
+        inUse = false;
+        if (buffer.length > MAX_RETAINED_SIZE) {
+            buffer = new byte[INITIAL_SIZE];
+        }
+        CACHED.give(this);
+    }
+
+    byte[] array() {
+        return buffer;
+    }
+
+    int length() {
+        return length;
+    }
+
+    /** Appends {@code name=value} pairs separated by {@code &}. */
+    void parameters(Map<String, String> parameters) {
+        for (Map.Entry<String, String> entry : parameters.entrySet()) {
+            if (length > 0) {
+                append('&');
+            }
+            encode(entry.getKey());
+            append('=');
+            encode(entry.getValue());
+        }
+    }
+
+    /** Appends a {@code data} parameter holding the remaining bytes of {@code data}, leaving its position as it is. */
+    void data(ByteBuffer data) {
+        dataPrefix();
+        int end = data.limit();
+        ensureCapacity((end - data.position()) * 3);
+        length = encode(data, data.position(), end, buffer, length);
+    }
+
+    /** Appends the start of a {@code data} parameter whose value follows separately. */
+    void dataPrefix() {
+        if (length > 0) {
+            append('&');
+        }
+        ensureCapacity(DATA.length);
+        System.arraycopy(DATA, 0, buffer, length, DATA.length);
+        length += DATA.length;
+    }
+
+    private void append(char c) {
+        ensureCapacity(1);
+        buffer[length++] = (byte) c;
+    }
+
+    private void encode(String value) {
+        int n = value.length();
+        for (int i = 0; i < n; i++) {
+            ensureCapacity(12);  // Four percent-encoded bytes
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                if (UNRESERVED[c]) {
+                    buffer[length++] = (byte) c;
+                } else if (c == ' ') {
+                    buffer[length++] = '+';
+                } else {
+                    percent(c);
+                }
+            } else if (c < 0x800) {
+                percent(0xc0 | (c >> 6));
+                percent(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                percent(0xf0 | (codePoint >> 18));
+                percent(0x80 | ((codePoint >> 12) & 0x3f));
+                percent(0x80 | ((codePoint >> 6) & 0x3f));
+                percent(0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                percent('?');  // What String.getBytes() makes of a lone surrogate
+            } else {
+                percent(0xe0 | (c >> 12));
+                percent(0x80 | ((c >> 6) & 0x3f));
+                percent(0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    private void percent(int b) {
+        buffer[length++] = '%';
+        buffer[length++] = HEX[(b >> 4) & 0xf];
+        buffer[length++] = HEX[b & 0xf];
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+        }
+    }
+
+    /**
+     * Percent-encodes bytes {@code start} to {@code end} of {@code input} into {@code output} at {@code offset},
+     * which must have room for three bytes per input byte. Returns the offset after the last byte written.
+     */
+    static int encode(ByteBuffer input, int start, int end, byte[] output, int offset) {
+        int length = offset;
+        for (int i = start; i < end; i++) {
+            int b = input.get(i) & 0xff;
+            if (UNRESERVED[b]) {
+                output[length++] = (byte) b;
+            } else if (b == ' ') {
+                output[length++] = '+';
+            } else {
+                output[length++] = '%';
+                output[length++] = HEX[b >> 4];
+                output[length++] = HEX[b & 0xf];
+            }
+        }
+        return length;
+    }
+}
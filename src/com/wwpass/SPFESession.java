@@ -0,0 +1,103 @@
+/**
+ * SPFESession.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Affinity between the consecutive calls of one login, see {@link WWPassConnection#authenticate}.
+ * <p>
+ * A call made with a session goes to the SPFE endpoint that answered the previous one, as long as it is not
+ * ejected, and with the same credentials while they are being replaced. {@link SPFEConnectionPool} also sends it
+ * on the connection the previous call used rather than on whichever one is free; other transports keep no
+ * connection. The calls of a session run one after another, and
+ * the session must be closed afterwards to give a kept connection back to its pool.
+ */
+final class SPFESession implements Closeable {
+
+    private static final class Kept {
+        final SPFETransport transport;
+        final Object connection;
+
+        Kept(SPFETransport transport, Object connection) {
+            this.transport = transport;
+            this.connection = connection;
+        }
+    }
+
+    private volatile SPFEEndpoints.Endpoint endpoint;
+    private volatile SPFECredentials credentials;
+    private final AtomicReference<Kept> kept = new AtomicReference<>();
+    private volatile boolean closed = false;
+
+    /** The endpoint that answered the previous call, {@code null} before the first one. */
+    SPFEEndpoints.Endpoint getEndpoint() {
+        return endpoint;
+    }
+
+    void answeredBy(SPFEEndpoints.Endpoint endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    /** The credentials of the first call: {@code selected} for it, and the same ones for the calls after it. */
+    SPFECredentials credentials(SPFECredentials selected) {
+        SPFECredentials first = credentials;
+        if (first != null) {
+            return first;
+        }
+        credentials = selected;
+        return selected;
+    }
+
+    /** The connection {@code transport} kept after the previous call, if any. The session no longer holds it. */
+    Object takeConnection(SPFETransport transport) {
+        Kept current = kept.get();
+        if (current == null || current.transport != transport || !kept.compareAndSet(current, null)) {
+            return null;
+        }
+        return current.connection;
+    }
+
+    /**
+     * Holds {@code connection} for the next call. Returns {@code false} if the session is closed or already holds
+     * one, in which case the transport keeps its connection.
+     */
+    boolean keepConnection(SPFETransport transport, Object connection) {
+        Kept current = new Kept(transport, connection);
+        if (closed || !kept.compareAndSet(null, current)) {
+            return false;
+        }
+        if (closed && kept.compareAndSet(current, null)) {
+            return false;  // Closed meanwhile, and close() didn't see it
+        }
+        return true;
+    }
+
+    /** Gives the kept connection, if any, back to its transport. */
+    @Override
+    public void close() {
+        closed = true;
+        Kept current = kept.getAndSet(null);
+        if (current != null) {
+            current.transport.releaseKept(current.connection);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * SPFEStreams.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Wrappers for the caller's streams of a streamed call.
+ * <p>
+ * A failure of the caller's stream says nothing about the SPFE, so it must not count against the endpoint, the
+ * circuit breaker or the connection. The wrappers turn such failures into {@link CallerStreamException}, which
+ * the call path treats like any other non-I/O failure and unwraps before it reaches the caller.
+ */
+final class SPFEStreams {
+
+    static final class CallerStreamException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        CallerStreamException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    private SPFEStreams() {
+    }
+
+    static InputStream source(InputStream input) {
+        return new FilterInputStream(input) {
+            @Override
+            public int read() {
+                try {
+                    return in.read();
+                } catch (IOException e) {
+                    throw new CallerStreamException(e);
+                }
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                try {
+                    return in.read(b, off, len);
+                } catch (IOException e) {
+                    throw new CallerStreamException(e);
+                }
+            }
+
+            @Override
+            public void close() {
+                // The stream belongs to the caller
+            }
+        };
+    }
+
+    static OutputStream sink(OutputStream output) {
+        return new FilterOutputStream(output) {
+            @Override
+            public void write(int b) {
+                try {
+                    out.write(b);
+                } catch (IOException e) {
+                    throw new CallerStreamException(e);
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                try {
+                    out.write(b, off, len);
+                } catch (IOException e) {
+                    throw new CallerStreamException(e);
+                }
+            }
+
+            @Override
+            public void flush() {
+                try {
+                    out.flush();
+                } catch (IOException e) {
+                    throw new CallerStreamException(e);
+                }
+            }
+
+            @Override
+            public void close() {
+                // The stream belongs to the caller
+            }
+        };
+    }
+}
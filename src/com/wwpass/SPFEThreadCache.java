@@ -0,0 +1,71 @@
+/**
+ * SPFEThreadCache.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Reusable per-call objects, e.g. encode buffers, for platform and virtual threads alike.
+ * <p>
+ * A platform thread keeps its own object in a {@link ThreadLocal}. Virtual threads are many and usually run a
+ * single call each, so a thread local would build a new object for nearly every call and keep one alive per
+ * parked thread; they borrow from a small shared stack instead. Objects are taken with {@link #take()} and given
+ * back with {@link #give(Object)} on the same thread once the caller is done with them.
+ */
+final class SPFEThreadCache<T> {
+
+    private static final int SHARED_LIMIT = 4 * Runtime.getRuntime().availableProcessors();
+
+    private final Supplier<T> factory;
+    private final ThreadLocal<T> local;
+    private final ConcurrentLinkedDeque<T> shared = new ConcurrentLinkedDeque<>();  // Most recently given first
+    private final AtomicInteger sharedSize = new AtomicInteger();
+
+    SPFEThreadCache(Supplier<T> factory) {
+        this.factory = factory;
+        this.local = ThreadLocal.withInitial(factory);
+    }
+
+    /** The object of the current platform thread, or one borrowed for the current virtual thread. */
+    T take() {
+        if (!SPFEThreads.isVirtual(Thread.currentThread())) {
+            return local.get();
+        }
+        T value = shared.pollFirst();
+        if (value == null) {
+            return factory.get();
+        }
+        sharedSize.decrementAndGet();
+        return value;
+    }
+
+    void give(T value) {
+        if (!SPFEThreads.isVirtual(Thread.currentThread())) {
+            return;  // Stays with the thread
+        }
+        if (sharedSize.incrementAndGet() <= SHARED_LIMIT) {
+            shared.offerFirst(value);
+        } else {
+            sharedSize.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * SPFEThreads.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual threads, where the JVM has them.
+ * <p>
+ * This version runs on Java 8 and finds the Java 21 API reflectively, so that virtual threads also work when the
+ * library is used from its classes rather than its jar, e.g. in benchmarks. The jar's Java 21 layer replaces it
+ * with a version that calls the API directly, see {@code src-java21}.
+ */
+final class SPFEThreads {
+
+    private static final MethodHandle IS_VIRTUAL = findIsVirtual();
+
+    private SPFEThreads() {
+    }
+
+    private static MethodHandle findIsVirtual() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        } catch (ReflectiveOperationException e) {
+            return null;  // Before Java 21
+        }
+    }
+
+    static boolean isVirtualThreadsAvailable() {
+        return IS_VIRTUAL != null;
+    }
+
+    static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(thread);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);  // Thread.isVirtual() throws nothing
+        }
+    }
+
+    /** Factory of virtual threads named {@code namePrefix} followed by a counter starting at 1. */
+    static ThreadFactory virtualThreadFactory(String namePrefix) {
+        if (IS_VIRTUAL == null) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or newer");
+        }
+        try {
+            // Through the public builder interfaces: the builder class itself is not accessible
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = Class.forName("java.lang.Thread$Builder$OfVirtual").getMethod("name", String.class, long.class)
+                    .invoke(builder, namePrefix, 1L);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Unable to create virtual threads", e);
+        }
+    }
+}
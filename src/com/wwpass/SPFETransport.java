@@ -0,0 +1,104 @@
+/**
+ * SPFETransport.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The HTTP client SPFE calls are sent with.
+ * <p>
+ * Everything above the HTTP round trip (endpoint selection and retries, admission control, deadlines, metrics,
+ * request encoding and reply parsing) is done by {@link WWPassConnection} the same way whatever the transport.
+ * The transports are:
+ * <ul>
+ * <li>{@link #urlConnection()}, the JDK's {@code HttpsURLConnection} and its keep-alive cache. The default.</li>
+ * <li>{@link SPFEConnectionPool}, a keep-alive pool with its own limits and statistics.</li>
+ * <li>{@link #httpClient()}, the {@code java.net.http.HttpClient} of Java 11 and newer. It speaks HTTP/2 when
+ * SPFE does, multiplexing concurrent calls over a few connections, and serves {@link WWPassAsyncConnection}
+ * without holding a thread per call in flight.</li>
+ * </ul>
+ * Transports are thread-safe and may be shared by several connections.
+ *
+ * @see WWPassConnection#setTransport(SPFETransport)
+ */
+public abstract class SPFETransport {
+
+    interface ReplyReader<T> {
+        T read(InputStream body) throws IOException;
+    }
+
+    SPFETransport() {
+        // Implemented in this package only
+    }
+
+    /** The JDK's {@code HttpsURLConnection}, the transport a connection starts with. */
+    public static SPFETransport urlConnection() {
+        return SPFEURLConnectionTransport.INSTANCE;
+    }
+
+    /**
+     * A transport of its own built on {@code java.net.http.HttpClient}. Each SSL setup it is used with gets one
+     * client, so connections made from the same certificate and key share one.
+     *
+     * @throws UnsupportedOperationException before Java 11, see {@link #isHttpClientAvailable()}
+     */
+    public static SPFETransport httpClient() {
+        return new SPFEHttpClientTransport();
+    }
+
+    /**
+     * Whether {@link #httpClient()} can be used: the library jar is run on Java 11 or newer. The HttpClient
+     * transport lives in the Java 11 part of the multi-release jar.
+     */
+    public static boolean isHttpClientAvailable() {
+        return SPFEHttpClientTransport.isAvailable();
+    }
+
+    /**
+     * Sends one request and hands the reply body to {@code reader}. Replies with an HTTP error status fail with
+     * an {@link IOException} without reaching the reader.
+     */
+    abstract <T> T execute(SPFEExchange exchange, ReplyReader<T> reader) throws IOException;
+
+    /**
+     * Whether {@link #executeAsync} completes without a thread waiting for the reply. Transports that would only
+     * block on another thread don't, and asynchronous calls run {@link #execute} on the caller's executor instead.
+     */
+    boolean isAsync() {
+        return false;
+    }
+
+    /**
+     * Like {@link #execute}, but returns at once. Whatever the exchange points to is copied before this returns.
+     * Only called when {@link #isAsync()}, and never for streamed calls.
+     */
+    <T> CompletableFuture<T> executeAsync(SPFEExchange exchange, ReplyReader<T> reader) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Takes back a connection an {@link SPFESession} kept for its next call, see
+     * {@link SPFESession#keepConnection}. Transports that keep none have nothing to do.
+     */
+    void releaseKept(Object connection) {
+    }
+}
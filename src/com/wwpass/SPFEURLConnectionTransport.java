@@ -0,0 +1,135 @@
+/**
+ * SPFEURLConnectionTransport.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+
+import javax.net.ssl.HttpsURLConnection;
+
+import com.wwpass.WWPassConnection.WWPassProtocolException;
+
+/**
+ * Sends SPFE calls with the JDK's {@code HttpsURLConnection}, which keeps connections alive in a cache of its own.
+ */
+final class SPFEURLConnectionTransport extends SPFETransport {
+
+    static final SPFEURLConnectionTransport INSTANCE = new SPFEURLConnectionTransport();
+
+    private static final int STREAMING_CHUNK_SIZE = 16 * 1024;
+
+    private SPFEURLConnectionTransport() {
+    }
+
+    @Override
+    <T> T execute(SPFEExchange exchange, ReplyReader<T> reader) throws IOException {
+        SPFEFormBody body = exchange.body;
+        HttpsURLConnection connection = (HttpsURLConnection) new URL(exchange.url()).openConnection();
+        connection.setConnectTimeout(exchange.connectTimeoutMs);
+        connection.setReadTimeout(exchange.readTimeoutMs);
+        // The JDK only reuses kept-alive connections opened with the very same factory instance
+        connection.setSSLSocketFactory(exchange.credentials.socketFactory);
+        connection.setDoOutput(body != null);
+        if (body != null && body.length() >= 0) {
+            // Sent as it is instead of being copied into the connection's own buffer first
+            connection.setFixedLengthStreamingMode(body.length());
+        } else if (body != null) {
+            connection.setChunkedStreamingMode(STREAMING_CHUNK_SIZE);
+        }
+        SPFEDeadline deadline = exchange.deadline;
+        if (deadline != null) {
+            deadline.attach(connection::disconnect);
+        }
+        try {
+            return exchange(connection, body, exchange.timer, reader);
+        } finally {
+            if (deadline != null) {
+                deadline.detach();
+            }
+        }
+    }
+
+    private static <T> T exchange(HttpsURLConnection connection, SPFEFormBody body, SPFECallTimer timer,
+                                  ReplyReader<T> reader) throws IOException {
+        if (timer != null) {
+            connection.connect();  // Picks a kept-alive connection if there is one, so this may take no time at all
+            timer.mark(WWPassMetrics.Phase.CONNECT);
+        }
+        if (body != null) {
+            OutputStream output = connection.getOutputStream();
+            try {
+                body.writeTo(output);
+            } catch (IOException | RuntimeException e) {
+                connection.disconnect();  // Closing the stream would end a streamed body and commit what was sent so far
+                throw e;
+            }
+            output.close();
+            if (timer != null) {
+                timer.mark(WWPassMetrics.Phase.WRITE);
+            }
+        }
+
+        // Reading each reply to the end and closing it lets the JDK put the connection back to its keep-alive cache
+        InputStream input;
+        try {
+            input = connection.getInputStream();
+        } catch (IOException e) {
+            drainQuietly(connection.getErrorStream());
+            throw e;
+        }
+        if (timer != null) {
+            timer.mark(WWPassMetrics.Phase.FIRST_BYTE);
+        }
+        boolean parsed = false;
+        try {
+            T reply = reader.read(input);
+            parsed = true;
+            if (timer != null) {
+                timer.mark(WWPassMetrics.Phase.PARSE);
+            }
+            return reply;
+        } catch (WWPassProtocolException e) {
+            parsed = true;
+            throw e;
+        } finally {
+            if (parsed) {
+                drainQuietly(input);
+            } else {
+                connection.disconnect();  // The stream is broken, there is nothing to reuse
+            }
+        }
+    }
+
+    private static void drainQuietly(InputStream input) {
+        if (input == null) {
+            return;
+        }
+        try (InputStream stream = input) {
+            byte[] skip = new byte[4096];
+            //noinspection StatementWithEmptyBody
+            while (stream.read(skip) != -1) {
+            }
+        } catch (IOException ignored) {
+            // The connection just won't be reused
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/**
+ * SingleFlight.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Collapses concurrent loads of the same key into one: the first caller runs the load, callers arriving while it
+ * is in flight wait for its result instead of starting their own. Nothing is kept once the load completes.
+ * <p>
+ * A load that fails fails every caller waiting for it, each with an exception of its own that has the loader's as
+ * its cause, except when the load failed for reasons of the caller that ran it: its deadline passed, see
+ * {@link SPFEDeadline.Exceeded}, or it was interrupted. A caller that still has time then loads again.
+ */
+final class SingleFlight<K, V> {
+
+    interface Loader<V> {
+        V load() throws IOException;
+    }
+
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    V execute(K key, Loader<V> loader) throws IOException {
+        return execute(key, loader, null);
+    }
+
+    /** Like {@link #execute(Object, Loader)}, but waits for a load in flight no longer than {@code deadline}. */
+    V execute(K key, Loader<V> loader, SPFEDeadline deadline) throws IOException {
+        while (true) {
+            CompletableFuture<V> created = new CompletableFuture<>();
+            CompletableFuture<V> existing = inFlight.putIfAbsent(key, created);
+            if (existing == null) {
+                return lead(key, created, loader);
+            }
+            Throwable failure;
+            try {
+                return await(existing, deadline);
+            } catch (ExecutionException e) {
+                failure = e.getCause();
+            }
+            if (!isLoadersOwn(failure)) {
+                Throwable own = joinerFailure(failure);
+                if (own instanceof IOException) {
+                    throw (IOException) own;
+                }
+                if (own instanceof RuntimeException) {
+                    throw (RuntimeException) own;
+                }
+                throw (Error) own;
+            }
+            if (deadline != null && deadline.hasPassed()) {
+                SocketTimeoutException timeout = deadline.exceeded();
+                timeout.initCause(failure);
+                throw timeout;
+            }
+        }
+    }
+
+    private V lead(K key, CompletableFuture<V> created, Loader<V> loader) throws IOException {
+        V value;
+        try {
+            value = loader.load();
+        } catch (IOException | RuntimeException | Error e) {
+            inFlight.remove(key, created);  // Before failing the joiners: those that load again must not find it
+            created.completeExceptionally(e);
+            throw e;
+        }
+        inFlight.remove(key, created);
+        created.complete(value);
+        return value;
+    }
+
+    /**
+     * Asynchronous {@link #execute(Object, Loader)}: the first caller starts the load, later ones get a future
+     * that completes with it. The load is forgotten just before its future completes.
+     */
+    CompletableFuture<V> executeAsync(K key, Supplier<CompletableFuture<V>> loader) {
+        CompletableFuture<V> created = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, created);
+        if (existing != null) {
+            CompletableFuture<V> joined = new CompletableFuture<>();
+            existing.whenComplete((value, error) -> {
+                if (error == null) {
+                    joined.complete(value);
+                } else if (!isLoadersOwn(error)) {
+                    joined.completeExceptionally(joinerFailure(error));
+                } else if (!joined.isDone()) {  // Not failed by the caller's own deadline meanwhile
+                    executeAsync(key, loader).whenComplete((again, failure) -> {
+                        if (failure == null) {
+                            joined.complete(again);
+                        } else {
+                            joined.completeExceptionally(failure);
+                        }
+                    });
+                }
+            });
+            return joined;
+        }
+        CompletableFuture<V> loading;
+        try {
+            loading = loader.get();
+        } catch (RuntimeException | Error e) {
+            inFlight.remove(key, created);
+            created.completeExceptionally(e);
+            return created;
+        }
+        loading.whenComplete((value, error) -> {
+            inFlight.remove(key, created);
+            if (error == null) {
+                created.complete(value);
+            } else {
+                created.completeExceptionally(error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error);
+            }
+        });
+        return created;
+    }
+
+    /** Forgets every load in flight: they still complete, but no later caller waits for them. */
+    void forgetAll() {
+        if (!inFlight.isEmpty()) {
+            inFlight.clear();
+        }
+    }
+
+    /** Forgets the loads in flight whose keys match, like {@link #forgetAll()}. */
+    void forget(Predicate<? super K> matching) {
+        if (!inFlight.isEmpty()) {
+            inFlight.keySet().removeIf(matching);
+        }
+    }
+
+    /** Number of loads in flight, for tests and monitoring. */
+    int size() {
+        return inFlight.size();
+    }
+
+    private static <V> V await(CompletableFuture<V> future, SPFEDeadline deadline)
+            throws IOException, ExecutionException {
+        try {
+            return deadline == null ? future.get() : future.get(deadline.remainingMs(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw deadline.exceeded();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a concurrent SPFE call");
+        }
+    }
+
+    /** Whether the load failed because of the caller that ran it rather than because of what it loads. */
+    private static boolean isLoadersOwn(Throwable failure) {
+        return failure instanceof SPFEDeadline.Exceeded
+                || failure instanceof InterruptedIOException && !(failure instanceof SocketTimeoutException);
+    }
+
+    /**
+     * The failure of the load as a joiner sees it: an exception of its own, so that it can add to it or throw it
+     * without touching the one of the loader or of other joiners. It is of the same class as the loader's, with
+     * that as its cause, unless the class can't be made with just a message; then it is a plain
+     * {@link IOException} or {@link RuntimeException}.
+     */
+    private static Throwable joinerFailure(Throwable failure) {
+        if (failure instanceof Error) {
+            return failure;  // Not worth recovering from, whoever sees it
+        }
+        if (failure instanceof WWPassConnection.WWPassRejectedException) {
+            WWPassConnection.WWPassRejectedException rejected = (WWPassConnection.WWPassRejectedException) failure;
+            Throwable own = new WWPassConnection.WWPassRejectedException(rejected.getReason(), rejected.getMessage());
+            return own.initCause(failure);
+        }
+        if (failure instanceof SPFEStreams.CallerStreamException) {
+            Throwable cause = joinerFailure(failure.getCause());
+            if (cause instanceof IOException) {
+                return new SPFEStreams.CallerStreamException((IOException) cause);
+            }
+        }
+        if (failure instanceof IOException || failure instanceof RuntimeException) {
+            try {
+                return failure.getClass().getConstructor(String.class).newInstance(failure.getMessage())
+                        .initCause(failure);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // No public constructor taking a message, or it sets a cause of its own
+            }
+        }
+        return failure instanceof RuntimeException
+                ? new RuntimeException(failure.getMessage(), failure) : new IOException(failure.getMessage(), failure);
+    }
+}
@@ -0,0 +1,422 @@
+/**
+ * WWPassAsyncConnection.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.wwpass.WWPassConnection.WWPassReply;
+
+/**
+ * Non-blocking facade over {@link WWPassConnection}.
+ * <p>
+ * Every operation of {@link WWPassConnection} is mirrored here and returns a {@link CompletableFuture} instead of
+ * blocking the calling thread. Requests are built and replies are parsed exactly as in the blocking API; the
+ * SPFE round trip runs on the executor given to the constructor. Futures fail with the same exceptions
+ * ({@link IOException}, {@link WWPassConnection.WWPassProtocolException}) the blocking calls throw.
+ * <p>
+ * With the {@link SPFETransport#httpClient() HttpClient transport} no thread waits for the reply: calls are sent
+ * right away and only their futures are completed on the executor. Streamed calls block a thread of the executor
+ * whatever the transport; on Java 21, {@link WWPassExecutors#virtualThreads()} makes those cheap.
+ */
+public class WWPassAsyncConnection {
+
+    private static final class DefaultExecutorHolder {
+        static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactoryImpl());
+    }
+
+    private static final class ThreadFactoryImpl implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "WWPass async " + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    protected final WWPassConnection connection;
+    protected final Executor executor;
+
+    public WWPassAsyncConnection(WWPassConnection connection, Executor executor) {
+        if (connection == null || executor == null) {
+            throw new NullPointerException("connection and executor are required");
+        }
+        this.connection = connection;
+        this.executor = executor;
+    }
+
+    /**
+     * Uses a shared pool of daemon threads that grows with the number of calls waiting on SPFE.
+     */
+    public WWPassAsyncConnection(WWPassConnection connection) {
+        this(connection, DefaultExecutorHolder.EXECUTOR);
+    }
+
+    public WWPassConnection getConnection() {
+        return connection;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    CompletableFuture<WWPassReply> request(SPFERequest request) {
+        return connection.makeRequestAsync(request, executor);
+    }
+
+    private CompletableFuture<String> data(SPFERequest request) {
+        return request(request).thenApply(WWPassReply::getData);
+    }
+
+    private CompletableFuture<byte[]> rawData(SPFERequest request) {
+        return request(request).thenApply(WWPassReply::getRawData);
+    }
+
+    private CompletableFuture<Void> streamed(SPFERequest request) {
+        return request(request).thenApply(reply -> null);
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable e) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+
+    // API
+
+    // Functions to work with user containers
+
+    public CompletableFuture<String> getPUID(String ticket, String auth_type) {
+        WWPassPUIDCache cache = connection.getPUIDCache();
+        if (cache == null) {
+            return data(WWPassConnection.puidRequest(ticket, auth_type));
+        }
+        String cached = cache.getIfPresent(ticket, auth_type);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        // The blocking call joins a lookup already in flight instead of starting another one
+        CompletableFuture<String> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(connection.getPUID(ticket, auth_type));
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    public CompletableFuture<String> getPUID(String ticket) {
+        return getPUID(ticket, null);
+    }
+
+    public CompletableFuture<WWPassReply> getTicket(String auth_type, int ttl, String message, String qas_uri) {
+        SPFERequest request;
+        try {
+            request = WWPassConnection.getTicketRequest(auth_type, ttl, message, qas_uri);
+        } catch (IOException e) {
+            return failed(e);
+        }
+        return request(request).thenApply(reply -> {
+            reply.setMessageKey(request.messageKey);
+            connection.ticketIssued(reply);
+            return reply;
+        });
+    }
+
+    public CompletableFuture<String> getTicket() {
+        return getTicket(null, 0, null, null).thenApply(WWPassReply::getData);
+    }
+
+    public CompletableFuture<String> getTicket(int ttl) {
+        return getTicket(null, ttl, null, null).thenApply(WWPassReply::getData);
+    }
+
+    public CompletableFuture<WWPassReply> getTicket(String message) {
+        return getTicket(null, 0, message, null);
+    }
+
+    public CompletableFuture<WWPassReply> getTicket(int ttl, String message) {
+        return getTicket(null, ttl, message, null);
+    }
+
+    public CompletableFuture<WWPassReply> getTicket(String auth_type, int ttl) {
+        return getTicket(auth_type, ttl, null, null);
+    }
+
+    public CompletableFuture<WWPassReply> getTicket(String auth_type, int ttl, String message) {
+        return getTicket(auth_type, ttl, message, null);
+    }
+
+    public CompletableFuture<WWPassReply> getTicket(String message, String qas_uri) {
+        return getTicket(null, 0, message, qas_uri);
+    }
+
+    public CompletableFuture<WWPassReply> getTicket(int ttl, String message, String qas_uri) {
+        return getTicket(null, ttl, message, qas_uri);
+    }
+
+    public CompletableFuture<String> getName() {
+        return getTicket(0).thenApply(ticket -> {
+            try {
+                return WWPassConnection.nameFromTicket(ticket);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    public CompletableFuture<String> putTicket(String ticket, String auth_type, int ttl) {
+        return request(WWPassConnection.putRequest(ticket, auth_type, ttl)).thenApply(reply -> {
+            connection.ticketIssued(reply);
+            return reply.getData();
+        });
+    }
+
+    public CompletableFuture<String> putTicket(String ticket, String auth_type) {
+        return putTicket(ticket, auth_type, 0);
+    }
+
+    public CompletableFuture<String> putTicket(String ticket, int ttl) {
+        return putTicket(ticket, null, ttl);
+    }
+
+    public CompletableFuture<String> putTicket(String ticket) {
+        return putTicket(ticket, null, 0);
+    }
+
+    /**
+     * Non-blocking {@link WWPassConnection#authenticate(String, String)}: both steps go to the same endpoint and
+     * connection, and the PUID is looked up as soon as the new ticket arrives.
+     */
+    public CompletableFuture<WWPassAuthentication> authenticate(String ticket, String auth_type) {
+        SPFESession session = new SPFESession();
+        long start = System.nanoTime();
+        SPFERequest put = WWPassConnection.putRequest(ticket, auth_type, 0);
+        put.session = session;
+        CompletableFuture<WWPassAuthentication> result = request(put).thenCompose(reply -> {
+            connection.ticketIssued(reply);
+            String newTicket = reply.getData();
+            long issued = System.nanoTime();
+            return lookupPUID(newTicket, auth_type, session).thenApply(puid -> new WWPassAuthentication(
+                    newTicket, reply.getTtl(), puid, issued - start, System.nanoTime() - issued));
+        });
+        result.whenComplete((authentication, error) -> session.close());
+        return result;
+    }
+
+    public CompletableFuture<WWPassAuthentication> authenticate(String ticket) {
+        return authenticate(ticket, null);
+    }
+
+    private CompletableFuture<String> lookupPUID(String ticket, String auth_type, SPFESession session) {
+        WWPassPUIDCache cache = connection.getPUIDCache();
+        if (cache != null) {
+            String cached = cache.getIfPresent(ticket, auth_type);
+            if (cached != null) {
+                return CompletableFuture.completedFuture(cached);
+            }
+        }
+        SPFERequest lookup = WWPassConnection.puidRequest(ticket, auth_type);
+        lookup.session = session;
+        CompletableFuture<String> puid = data(lookup);
+        return cache == null ? puid : puid.thenApply(value -> {
+            cache.loaded(ticket, auth_type, value);
+            return value;
+        });
+    }
+
+    public CompletableFuture<String> readData(String ticket, String container) {
+        return data(WWPassConnection.readRequest(ticket, container));
+    }
+
+    public CompletableFuture<String> readData(String ticket) {
+        return readData(ticket, null);
+    }
+
+    public CompletableFuture<Void> readData(String ticket, String container, OutputStream output) {
+        return streamed(WWPassConnection.readRequest(ticket, container, output));
+    }
+
+    public CompletableFuture<byte[]> readDataBytes(String ticket, String container) {
+        return rawData(WWPassConnection.readBytesRequest(ticket, container));
+    }
+
+    public CompletableFuture<byte[]> readDataBytes(String ticket) {
+        return readDataBytes(ticket, null);
+    }
+
+    /** See {@link WWPassConnection#readDataBytes(String, String, ByteBuffer)}; {@code target} is filled on completion. */
+    public CompletableFuture<Integer> readDataBytes(String ticket, String container, ByteBuffer target) {
+        return rawData(WWPassConnection.readBytesRequest(ticket, container)).thenApply(data -> WWPassConnection.put(data, target));
+    }
+
+    public CompletableFuture<String> readDataAndLock(String ticket, String container, int lockTimeout) {
+        return data(WWPassConnection.readAndLockRequest(ticket, container, lockTimeout));
+    }
+
+    public CompletableFuture<String> readDataAndLock(String ticket, int lockTimeout) {
+        return readDataAndLock(ticket, null, lockTimeout);
+    }
+
+    public CompletableFuture<String> writeData(String ticket, String data, String container) {
+        return data(WWPassConnection.writeRequest(ticket, data, container));
+    }
+
+    public CompletableFuture<String> writeData(String ticket, String data) {
+        return writeData(ticket, data, null);
+    }
+
+    public CompletableFuture<String> writeData(String ticket, InputStream data, String container) {
+        return data(WWPassConnection.writeRequest(ticket, data, container));
+    }
+
+    public CompletableFuture<String> writeData(String ticket, InputStream data) {
+        return writeData(ticket, data, null);
+    }
+
+    public CompletableFuture<String> writeData(String ticket, byte[] data, String container) {
+        return data(WWPassConnection.writeRequest(ticket, ByteBuffer.wrap(data), container));
+    }
+
+    public CompletableFuture<String> writeData(String ticket, byte[] data) {
+        return writeData(ticket, data, null);
+    }
+
+    public CompletableFuture<String> writeData(String ticket, ByteBuffer data, String container) {
+        return data(WWPassConnection.writeRequest(ticket, data, container));
+    }
+
+    public CompletableFuture<String> writeData(String ticket, ByteBuffer data) {
+        return writeData(ticket, data, null);
+    }
+
+    public CompletableFuture<String> writeDataAndUnlock(String ticket, String data, String container) {
+        return data(WWPassConnection.writeAndUnlockRequest(ticket, data, container));
+    }
+
+    public CompletableFuture<String> writeDataAndUnlock(String ticket, String data) {
+        return writeDataAndUnlock(ticket, data, null);
+    }
+
+    public CompletableFuture<String> lock(String ticket, int lockTimeout, String lockid) {
+        return data(WWPassConnection.lockRequest(ticket, lockTimeout, lockid));
+    }
+
+    public CompletableFuture<String> lock(String ticket, int lockTimeout) {
+        return lock(ticket, lockTimeout, null);
+    }
+
+    public CompletableFuture<String> unlock(String ticket, String lockid) {
+        return data(WWPassConnection.unlockRequest(ticket, lockid));
+    }
+
+    public CompletableFuture<String> unlock(String ticket) {
+        return unlock(ticket, null);
+    }
+
+    // Functions to work with SP-only containers
+
+    public CompletableFuture<String> createPFID(String data) {
+        return data(WWPassConnection.createPFIDRequest(data));
+    }
+
+    public CompletableFuture<String> createPFID() {
+        return createPFID(null);
+    }
+
+    public CompletableFuture<String> createPFIDBytes(byte[] data) {
+        return data(WWPassConnection.createPFIDRequest(data != null ? ByteBuffer.wrap(data) : null));
+    }
+
+    public CompletableFuture<String> createPFIDBytes(ByteBuffer data) {
+        return data(WWPassConnection.createPFIDRequest(data));
+    }
+
+    public CompletableFuture<String> removePFID(String pfid) {
+        return data(WWPassConnection.removePFIDRequest(pfid));
+    }
+
+    public CompletableFuture<String> readDataSP(String pfid) {
+        return data(WWPassConnection.readSPRequest(pfid));
+    }
+
+    public CompletableFuture<Void> readDataSP(String pfid, OutputStream output) {
+        return streamed(WWPassConnection.readSPRequest(pfid, output));
+    }
+
+    public CompletableFuture<byte[]> readDataSPBytes(String pfid) {
+        return rawData(WWPassConnection.readSPBytesRequest(pfid));
+    }
+
+    public CompletableFuture<Integer> readDataSPBytes(String pfid, ByteBuffer target) {
+        return rawData(WWPassConnection.readSPBytesRequest(pfid)).thenApply(data -> WWPassConnection.put(data, target));
+    }
+
+    public CompletableFuture<String> readDataSPandLock(String pfid, int lockTimeout) {
+        return data(WWPassConnection.readSPAndLockRequest(pfid, lockTimeout));
+    }
+
+    public CompletableFuture<String> writeDataSP(String pfid, String data) {
+        return data(WWPassConnection.writeSPRequest(pfid, data));
+    }
+
+    public CompletableFuture<String> writeDataSP(String pfid, InputStream data) {
+        return data(WWPassConnection.writeSPRequest(pfid, data));
+    }
+
+    public CompletableFuture<String> writeDataSP(String pfid, byte[] data) {
+        return data(WWPassConnection.writeSPRequest(pfid, ByteBuffer.wrap(data)));
+    }
+
+    public CompletableFuture<String> writeDataSP(String pfid, ByteBuffer data) {
+        return data(WWPassConnection.writeSPRequest(pfid, data));
+    }
+
+    public CompletableFuture<String> writeDataSPandUnlock(String pfid, String data) {
+        return data(WWPassConnection.writeSPAndUnlockRequest(pfid, data));
+    }
+
+    public CompletableFuture<String> lockSP(String lockid, int lockTimeout) {
+        return data(WWPassConnection.lockSPRequest(lockid, lockTimeout));
+    }
+
+    public CompletableFuture<String> unlockSP(String lockid) {
+        return data(WWPassConnection.unlockSPRequest(lockid));
+    }
+}
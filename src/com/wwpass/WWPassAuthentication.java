@@ -0,0 +1,79 @@
+/**
+ * WWPassAuthentication.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outcome of {@link WWPassConnection#authenticate}: the ticket {@code putTicket} issued, the user's PUID, and how
+ * long each of the two steps took.
+ */
+public final class WWPassAuthentication {
+
+    private final String ticket;
+    private final Integer ttl;
+    private final String puid;
+    private final long putTicketNanos;
+    private final long getPUIDNanos;
+
+    WWPassAuthentication(String ticket, Integer ttl, String puid, long putTicketNanos, long getPUIDNanos) {
+        this.ticket = ticket;
+        this.ttl = ttl;
+        this.puid = puid;
+        this.putTicketNanos = putTicketNanos;
+        this.getPUIDNanos = getPUIDNanos;
+    }
+
+    /** The ticket issued by {@code putTicket}, for further calls on behalf of the user. */
+    public String getTicket() {
+        return ticket;
+    }
+
+    /** Seconds the ticket is valid for, {@code null} if SPFE didn't tell. */
+    public Integer getTtl() {
+        return ttl;
+    }
+
+    public String getPUID() {
+        return puid;
+    }
+
+    public long getPutTicketNanos() {
+        return putTicketNanos;
+    }
+
+    /** Time of the {@code getPUID} step, next to nothing when the PUID came from a {@link WWPassPUIDCache}. */
+    public long getPUIDNanos() {
+        return getPUIDNanos;
+    }
+
+    /** Time of the whole login, both steps. */
+    public long getTotalNanos() {
+        return putTicketNanos + getPUIDNanos;
+    }
+
+    /** The timings only: tickets and PUIDs stay out of logs. */
+    @Override
+    public String toString() {
+        double nanosPerMs = TimeUnit.MILLISECONDS.toNanos(1);
+        return String.format("putTicket=%.3fms, getPUID=%.3fms, ttl=%s", putTicketNanos / nanosPerMs,
+                getPUIDNanos / nanosPerMs, ttl);
+    }
+}
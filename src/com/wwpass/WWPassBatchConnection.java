@@ -0,0 +1,233 @@
+/**
+ * WWPassBatchConnection.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bulk SP-only container operations over {@link WWPassConnection}, e.g. for migrating or re-encrypting many
+ * containers.
+ * <p>
+ * Every method takes a collection of PFIDs (or lock ids), runs up to {@code concurrency} calls at a time and
+ * returns one {@link WWPassBatchResult} per element, in the order of the input. A failing element does not stop
+ * the others. The calling thread takes part in the work and returns when every element is done.
+ * <p>
+ * Without a connection pool every call pays for its own TLS handshake; set a {@link SPFEConnectionPool} with at
+ * least {@code concurrency} connections per host on the connection to keep them open between calls.
+ * <p>
+ * On Java 21, {@link WWPassExecutors#virtualThreads()} makes a large {@code concurrency} cheap: every call
+ * then waits on SPFE in a virtual thread rather than a platform thread.
+ */
+public class WWPassBatchConnection {
+
+    public static final int DEFAULT_CONCURRENCY = 16;
+
+    private static final class DefaultExecutorHolder {
+        static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactoryImpl());
+    }
+
+    private static final class ThreadFactoryImpl implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "WWPass batch " + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /** Computes the new content of a container from its current one. */
+    public interface Update {
+        /**
+         * @return the data to write back, or {@code null} to leave the container as it is
+         */
+        String apply(String pfid, String data) throws IOException;
+    }
+
+    private interface Call<T> {
+        T run(String key) throws IOException;
+    }
+
+    protected final WWPassConnection connection;
+    protected final int concurrency;
+    protected final Executor executor;
+
+    public WWPassBatchConnection(WWPassConnection connection, int concurrency, Executor executor) {
+        if (connection == null || executor == null) {
+            throw new NullPointerException("connection and executor are required");
+        }
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be positive");
+        }
+        this.connection = connection;
+        this.concurrency = concurrency;
+        this.executor = executor;
+    }
+
+    public WWPassBatchConnection(WWPassConnection connection, int concurrency) {
+        this(connection, concurrency, DefaultExecutorHolder.EXECUTOR);
+    }
+
+    public WWPassBatchConnection(WWPassConnection connection) {
+        this(connection, DEFAULT_CONCURRENCY, DefaultExecutorHolder.EXECUTOR);
+    }
+
+    public WWPassConnection getConnection() {
+        return connection;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    private <T> List<WWPassBatchResult<T>> run(Collection<String> keys, Call<T> call) {
+        String[] items = keys.toArray(new String[0]);
+        AtomicReferenceArray<WWPassBatchResult<T>> results = new AtomicReferenceArray<>(items.length);
+        AtomicInteger next = new AtomicInteger();
+        AtomicBoolean cancelled = new AtomicBoolean();
+        Runnable worker = () -> {
+            int i;
+            while ((i = next.getAndIncrement()) < items.length) {
+                if (cancelled.get()) {
+                    results.set(i, WWPassBatchResult.failure(items[i], new InterruptedIOException("Batch was interrupted")));
+                    continue;
+                }
+                try {
+                    results.set(i, WWPassBatchResult.success(items[i], call.run(items[i])));
+                } catch (IOException | RuntimeException e) {
+                    results.set(i, WWPassBatchResult.failure(items[i], e));
+                }
+            }
+        };
+
+        int helpers = Math.min(concurrency, items.length) - 1;
+        CountDownLatch done = new CountDownLatch(helpers);
+        for (int h = 0; h < helpers; h++) {
+            try {
+                executor.execute(() -> {
+                    try {
+                        worker.run();
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                done.countDown();  // The remaining workers pick up the slack
+            }
+        }
+        worker.run();
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                // Calls in flight finish, elements not started yet fail
+                interrupted = true;
+                cancelled.set(true);
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        List<WWPassBatchResult<T>> list = new ArrayList<>(items.length);
+        for (int i = 0; i < items.length; i++) {
+            list.add(results.get(i));
+        }
+        return list;
+    }
+
+    public List<WWPassBatchResult<String>> readDataSP(Collection<String> pfids) {
+        return run(pfids, pfid -> connection.readDataSP(pfid));
+    }
+
+    /**
+     * Writes every entry of {@code data}, PFID to new content. Results follow the iteration order of the map.
+     */
+    public List<WWPassBatchResult<String>> writeDataSP(Map<String, String> data) {
+        return run(data.keySet(), pfid -> connection.writeDataSP(pfid, data.get(pfid)));
+    }
+
+    /** Creates one container per element of {@code data}; the result keys are the data, the values the new PFIDs. */
+    public List<WWPassBatchResult<String>> createPFID(List<String> data) {
+        return run(data, d -> connection.createPFID(d));
+    }
+
+    public List<WWPassBatchResult<String>> removePFID(Collection<String> pfids) {
+        return run(pfids, pfid -> connection.removePFID(pfid));
+    }
+
+    public List<WWPassBatchResult<String>> lockSP(Collection<String> lockids, int lockTimeout) {
+        return run(lockids, lockid -> connection.lockSP(lockid, lockTimeout));
+    }
+
+    public List<WWPassBatchResult<String>> unlockSP(Collection<String> lockids) {
+        return run(lockids, lockid -> connection.unlockSP(lockid));
+    }
+
+    /**
+     * Read-modify-write of every container under its lock: reads and locks the container, computes the new content
+     * with {@code update} and writes it back, releasing the lock. Once the lock is held, a failing update or write
+     * releases it with {@code sp/unlock} before the element is reported as failed. Should that release fail as well,
+     * or the locking read itself end without a reply, the lock expires after {@code lockTimeout} seconds.
+     *
+     * @return the result of the write, or of the release when {@code update} returned {@code null}
+     */
+    public List<WWPassBatchResult<String>> updateDataSP(Collection<String> pfids, int lockTimeout, Update update) {
+        return run(pfids, pfid -> {
+            String current = connection.readDataSPandLock(pfid, lockTimeout);
+            boolean unlocked = false;
+            try {
+                String updated = update.apply(pfid, current);
+                String result = updated != null ? connection.writeDataSPandUnlock(pfid, updated) : connection.unlockSP(pfid);
+                unlocked = true;
+                return result;
+            } finally {
+                if (!unlocked) {
+                    release(pfid);
+                }
+            }
+        });
+    }
+
+    private void release(String pfid) {
+        try {
+            connection.unlockSP(pfid);
+        } catch (IOException | RuntimeException e) {
+            // The original failure is what gets reported
+        }
+    }
+}
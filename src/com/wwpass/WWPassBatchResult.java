@@ -0,0 +1,69 @@
+/**
+ * WWPassBatchResult.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+/**
+ * Outcome of one element of a {@link WWPassBatchConnection} call: the value SPFE returned or the exception the
+ * call failed with.
+ */
+public final class WWPassBatchResult<T> {
+
+    private final String key;
+    private final T value;
+    private final Exception error;
+
+    private WWPassBatchResult(String key, T value, Exception error) {
+        this.key = key;
+        this.value = value;
+        this.error = error;
+    }
+
+    static <T> WWPassBatchResult<T> success(String key, T value) {
+        return new WWPassBatchResult<>(key, value, null);
+    }
+
+    static <T> WWPassBatchResult<T> failure(String key, Exception error) {
+        return new WWPassBatchResult<>(key, null, error);
+    }
+
+    /** The PFID or lock id this result belongs to. */
+    public String getKey() {
+        return key;
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    /** The value SPFE returned, {@code null} if the call failed. */
+    public T getValue() {
+        return value;
+    }
+
+    /** Why the call failed, {@code null} if it succeeded. */
+    public Exception getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return isSuccess() ? key + ": " + value : key + ": " + error;
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * WWPassCallOptions.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+/**
+ * Time limits of SPFE calls, see {@link WWPassConnection#withCallOptions(WWPassCallOptions)}.
+ * <p>
+ * The connect timeout bounds opening the TCP connection, the read timeout bounds every single wait for data
+ * from SPFE, and the deadline bounds the whole call: waiting for a connection, TLS handshake, sending, a reply
+ * that trickles in slowly, and retries on other SPFE endpoints. A call past its deadline is aborted and fails with
+ * {@link java.net.SocketTimeoutException}. Zero means no limit.
+ * <p>
+ * Instances are immutable; the {@code with} methods return modified copies.
+ */
+public final class WWPassCallOptions {
+
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+    private final long deadlineMs;
+
+    public WWPassCallOptions(int connectTimeoutMs, int readTimeoutMs, long deadlineMs) {
+        if (connectTimeoutMs < 0 || readTimeoutMs < 0 || deadlineMs < 0) {
+            throw new IllegalArgumentException("Timeouts must not be negative");
+        }
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+        this.deadlineMs = deadlineMs;
+    }
+
+    public int getConnectTimeoutMs() {
+        return connectTimeoutMs;
+    }
+
+    public int getReadTimeoutMs() {
+        return readTimeoutMs;
+    }
+
+    public long getDeadlineMs() {
+        return deadlineMs;
+    }
+
+    public WWPassCallOptions withConnectTimeoutMs(int connectTimeoutMs) {
+        return new WWPassCallOptions(connectTimeoutMs, readTimeoutMs, deadlineMs);
+    }
+
+    public WWPassCallOptions withReadTimeoutMs(int readTimeoutMs) {
+        return new WWPassCallOptions(connectTimeoutMs, readTimeoutMs, deadlineMs);
+    }
+
+    public WWPassCallOptions withDeadlineMs(long deadlineMs) {
+        return new WWPassCallOptions(connectTimeoutMs, readTimeoutMs, deadlineMs);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof WWPassCallOptions)) {
+            return false;
+        }
+        WWPassCallOptions other = (WWPassCallOptions) o;
+        return connectTimeoutMs == other.connectTimeoutMs && readTimeoutMs == other.readTimeoutMs && deadlineMs == other.deadlineMs;
+    }
+
+    @Override
+    public int hashCode() {
+        return (connectTimeoutMs * 31 + readTimeoutMs) * 31 + Long.hashCode(deadlineMs);
+    }
+
+    @Override
+    public String toString() {
+        return "connectTimeoutMs=" + connectTimeoutMs + ", readTimeoutMs=" + readTimeoutMs + ", deadlineMs=" + deadlineMs;
+    }
+}
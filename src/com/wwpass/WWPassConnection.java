@@ -20,59 +20,50 @@
  */
 package com.wwpass;
 
-import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.StringReader;
+import java.io.OutputStream;
 import java.net.ProtocolException;
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.net.URLEncoder;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
-import java.security.KeyFactory;
-import java.security.KeyStore;
-import java.security.PrivateKey;
-import java.security.SecureRandom;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Base64;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
-import javax.crypto.Cipher;
-import javax.crypto.SecretKey;
-import javax.crypto.spec.GCMParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManagerFactory;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
 
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
 
-import org.json.simple.JSONObject;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 
+/**
+ * Client for the WWPass Service Provider Front End (SPFE).
+ * <p>
+ * Instances are thread-safe. The SSL setup is done once in the constructor and never changes afterwards, unless
+ * the credentials come from a {@link WWPassCredentialSource}; optional settings are published through volatile
+ * fields, and every call keeps its state on the stack.
+ * Building a connection is expensive, so create one per set of SP credentials and share it between threads,
+ * e.g. through {@link WWPassConnectionRegistry}.
+ * <p>
+ * The SP key may be RSA or EC; an EC key makes every TLS handshake cheaper for both sides.
+ * <p>
+ * {@code spfeAddr} may list several SPFE front ends separated by commas, e.g.
+ * {@code "spfe1.example.com,spfe2.example.com:8443"}. Calls are then balanced between them by measured latency,
+ * failing front ends are taken out of rotation until they recover, and calls that are safe to repeat
+ * ({@code get}, {@code puid}, and {@code read} and {@code sp/read} without a lock) are retried on another front
+ * end when one fails. Other calls are never sent twice.
+ */
 public class WWPassConnection {
 
     private static byte[] hexToBytes(String s) {
@@ -93,12 +84,14 @@ public class WWPassConnection {
     private static final byte[] WWPassCA_DER = hexToBytes("30820601308203e9a003020102020900dec96549609469f8300d06092a864886f70d01010b05003057310b3009060355040613025553311b3019060355040a131257575061737320436f72706f726174696f6e312b30290603550403132257575061737320436f72706f726174696f6e205072696d61727920526f6f742043413022180f32303132313132383039303030305a180f32303532313132383038353935395a3057310b3009060355040613025553311b3019060355040a131257575061737320436f72706f726174696f6e312b30290603550403132257575061737320436f72706f726174696f6e205072696d61727920526f6f7420434130820222300d06092a864886f70d01010105000382020f003082020a0282020100c985a65d565fcd28b32816c78657f311b261f1f1f1ca73dbd979b3fee68102180ab99448b2bd2ad4abc80d299b3ace164c8d06e4f4394e6e702bafd9636052b88967bf1bf2c7a45b5a17cb64179dd652b3e080f94a07170d18a931033bae7dfd38e436a944e47317758bc86fb8e170e0310bc83000916002441ba1a30892e5ac027a4eb4aceb9e45871b3e39aa8c880a3ab37de0dc374761dc84cc1d7ad88b0915ab97c65c73dbb893dbb8137eba79da91b2f73a0937c8f9c4726e9857e1ebc50ed22b2f37abad006ddcbc7edd11a5225e524063255c221eee32e23e62282d6d360b55f2a13d65fda0e6f007ccbde86ea9ee20cafc269996a7432bad46bd8d83ad2979362e76677f1bab27be0d564d919ae37923f1f46bfb54ac75ad084e697153646f7be6a2a785b1b4ecd8a0c232afe0cd4847537d65e19ae5cfef437c153195be5f358079945e059d1fb9fe12a0a3be7e39a3638927e9f604c7e987c50a94b43a51e62a1b112654766882a94d4106f618d28373a1ed7969247856a25410d8178bfbedd43b244c4c34936756c66bdda8cf99d2f9452c1399e85194a32ccf8a6da2636460b1ccef72db088505b4526e12f6cd7a540f674c0751b7d23670cad8e7d795403043988b30681c4a7635ff4f361b0319adf601ca49d9ad27f3da5b48e96ecabfef1336232760d9fd359041beeea62d06da4457d7b50867965f8639810203010001a381cb3081c8301d0603551d0e041604146bbf1f86ff827f11ccbed7287053e8ae0141c97b3081880603551d23048180307e80146bbf1f86ff827f11ccbed7287053e8ae0141c97ba15ba4593057310b3009060355040613025553311b3019060355040a131257575061737320436f72706f726174696f6e312b30290603550403132257575061737320436f72706f726174696f6e205072696d61727920526f6f74204341820900dec96549609469f8300f0603551d130101ff040530030101ff300b0603551d0f040403020106300d06092a864886f70d01010b05000382020100138e82322908ef7efc9a40b7a99c8a715c6435f2d17b7783e21d3838edbbae67d98ff70cac30c2b74067dadf4b0541817577d9127d7782a9f9f7c17a9662e839bb4de1062a9725eb15c3f3162c106ab6dafb1abcb688318cc919db2ef4325577fcf6e42a4c2fe1b06339c2d94350ec61e84f76caf9ec2e8877811e90442cfda32d29c33365a4a2a644ee5c5c5fc56e2e0627e41fefad500483e38383dabee6d54952439be28afde5d2abc007cf5d3e27d59c8780bcf71defe198d915d3642c37e998a99c588e593f539324c3a41ff08d640d16b826990bf140b79605621449a5c9c25573333b5db53867b7f6cd64d18f3117da67be8e963601f41282ed6526b2cd9ff2da078b2b3e1111f3d317c24d5868c25cfc5edc167dbdc0d7b8f32419be280950b073e078112ab68731bc125caa13a22833a9b0a1c7cfe9e07b120edde96bd53095bad3d313e51ccd84c146c2fe8c87682319ba680f6bacddea0d5c0c9ee1d3852aec8b0caa3970b3ce309a09fe25e7e286e5536260fcad88689cbfc3c2063c0593322bf8b452c94898cc066e8b245c869753fb24407cbeeaa8706e2076211b7138edadc682ec14c1419c5d1f8d8eb4a6b5e1d10ce34e5185021f8d61c3adb8d0ca3594be05faba6b2c4041f38937faff80b5b5de3c4c2fa7ea359eeffed6c46486a94d14737aeef6a4a82e314f18ae3f1bba3dbfee0de3488a9d3e13d2");
 
     private static final byte[] MESSAGE_NONCE = hexToBytes("7c0bb4d60d8bc2c90d90d957bd2d21fd");
+    private static final SPFEMessageSealer MESSAGE_SEALER = new SPFEMessageSealer(MESSAGE_NONCE);
 
     public static class WWPassReply {
         private String data;
         private Integer ttl = null;
         private byte[] messageKey = null;
         private String originalTicket = null;
+        private byte[] rawData = null;
 
         public WWPassReply(String data) {
             this.data = data;
@@ -139,6 +132,15 @@ public class WWPassConnection {
         public void setOriginalTicket(String originalTicket) {
             this.originalTicket = originalTicket;
         }
+
+        /** Container data as SPFE sent it, set instead of {@link #getData()} by the binary read calls. */
+        public byte[] getRawData() {
+            return rawData;
+        }
+
+        public void setRawData(byte[] rawData) {
+            this.rawData = rawData;
+        }
     }
 
     public static class WWPassProtocolException extends ProtocolException {
@@ -149,133 +151,157 @@ public class WWPassConnection {
         }
     }
 
-    private static PKCS8EncodedKeySpec readKeyFile(String path) throws IOException {
-        try (FileInputStream stream = new FileInputStream(path)) {
-            FileChannel fileChannel = stream.getChannel();
-            MappedByteBuffer byteBuffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
-            String pem = Charset.defaultCharset().decode(byteBuffer).toString();
-            pem = pem.replaceFirst("-----BEGIN (RSA )?PRIVATE KEY-----", "")
-                     .replaceFirst("-----END (RSA )?PRIVATE KEY-----", "")
-                     .replaceAll("\r", "")
-                     .replaceAll("\n", "");
-            return new PKCS8EncodedKeySpec(Base64.getDecoder().decode(pem));
+    /**
+     * The call was not sent because of {@link SPFEAdmissionControl}: there is no point in waiting for SPFE now.
+     */
+    public static class WWPassRejectedException extends IOException {
+        private static final long serialVersionUID = 1;
+
+        public enum Reason {
+            /** Too many calls in flight, and no slot freed up within the queue timeout. */
+            BULKHEAD_FULL,
+            /** SPFE has been failing, calls are not sent until the circuit breaker lets a trial call through. */
+            CIRCUIT_OPEN
         }
-    }
 
-    private static X509Certificate readCertificate(String certFile) throws IOException, GeneralSecurityException {
-        X509Certificate cert;
-        try (FileInputStream certInput = new FileInputStream(certFile)) {
-            cert = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(certInput);
+        private final Reason reason;
+
+        public WWPassRejectedException(Reason reason, String message) {
+            super(message);
+            this.reason = reason;
         }
-        return cert;
-    }
 
-    private static String getDataFromElement(Element el) {
-        String encoding = el.getAttributes().getNamedItem("encoding").getTextContent();
-        String ret;
-        if ("base64".equalsIgnoreCase(encoding)) {
-            byte[] buffer = Base64.getDecoder().decode(el.getTextContent());
-            ret = new String(buffer, StandardCharsets.UTF_8);
-        } else {
-            ret = el.getTextContent();
+        public Reason getReason() {
+            return reason;
         }
-        return ret;
     }
 
-    private static WWPassReply getReplyData(InputStream rawXMLInput) throws IOException {
-        DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
-        Document dom;
-        try {
-            documentBuilderFactory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);  // To prevent XXE
-            DocumentBuilder documentBuilder = documentBuilderFactory.newDocumentBuilder();
-            InputStreamReader streamReader = new InputStreamReader(rawXMLInput);
-            StringBuilder stringBuilder = new StringBuilder();
-            BufferedReader bufferedReader = new BufferedReader(streamReader);
-            String line = bufferedReader.readLine();
-
-            while (line != null) {
-                stringBuilder.append(line);
-                line = bufferedReader.readLine();
-            }
-
-            String reply = stringBuilder.toString();
-            dom = documentBuilder.parse(new InputSource(new StringReader(reply)));
-            Element element = dom.getDocumentElement();
-            Node node = element.getElementsByTagName("result").item(0);
-            boolean result = node.getTextContent().equalsIgnoreCase("true");
-            Element data = (Element) element.getElementsByTagName("data").item(0);
-            String strData = getDataFromElement(data);
-
-            if (!result) {
-                throw new WWPassProtocolException("SPFE returned error: " + strData);
-            }
-
-            WWPassReply replyObject = new WWPassReply(strData);
-            NodeList ttlElements = element.getElementsByTagName("ttl");
+    private static PKCS8EncodedKeySpec readKeyFile(String path) throws IOException {
+        return SPFEKeyFiles.readKey(path);
+    }
 
-            if (ttlElements.getLength() > 0) {
-                try {
-                    replyObject.setTtl(getDataFromElement((Element) (ttlElements.item(0))));
-                } catch (NumberFormatException e) {
-                    throw new WWPassProtocolException("unable to convert ttl to int");
-                }
-            }
+    private static X509Certificate readCertificate(String certFile) throws IOException, GeneralSecurityException {
+        return SPFEKeyFiles.readCertificate(certFile);
+    }
 
-            NodeList originalTicketElements = element.getElementsByTagName("originalTicket");
-            if (originalTicketElements.getLength() > 0) {
-                replyObject.setOriginalTicket(getDataFromElement((Element) (originalTicketElements.item(0))));
-            }
+    private static X509Certificate readRootCA() throws GeneralSecurityException {
+        // Making root CA certificate
+        InputStream inputStream = new ByteArrayInputStream(WWPassCA_DER);
+        CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
+        return (X509Certificate) certificateFactory.generateCertificate(inputStream);
+    }
 
-            return replyObject;
-        } catch (ParserConfigurationException | SAXException e) {
-            throw new WWPassProtocolException("Malformed SPFE reply: " + e.getMessage());
-        }
+    static WWPassReply getReplyData(InputStream rawXMLInput) throws IOException {
+        return SPFEReplyParser.parse(rawXMLInput);
     }
 
     public static final String DEFAULT_SPFE_ADDRESS = "spfe.wwpass.com";
     public static final int DEFAULT_TIMEOUT_SEC = 10;
 
-    protected SSLContext SPFEContext;
+    /**
+     * The SSL setup the connection was built with. With a {@link WWPassCredentialSource}, calls are sent with
+     * newer ones once the credentials change.
+     */
+    final protected SSLContext SPFEContext;
     final protected int timeoutMs;
-    final protected String SpfeURL;
+    final protected String SpfeURL;  // First of the endpoints
+
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final SPFECredentials credentials;  // Fixed, or the first ones of the rotation
+    private final SPFECredentialRotation rotation;  // null for fixed credentials
+    private final WWPassTlsOptions tlsOptions;
+    private final SPFEEndpoints endpoints;
+    private final WWPassCallOptions callOptions;
+    private final boolean plainCallsOverridden;  // makeRequest(method, command, parameters) is overridden
+
+    // Settings below are read from the connection the instance was derived from, see withCallOptions()
+    private final WWPassConnection root;
+    private volatile SPFETransport transport = SPFETransport.urlConnection();
+    private volatile WWPassMetrics metrics = WWPassMetrics.NOOP;
+    private volatile SPFEAdmissionControl admissionControl = null;
+    private volatile WWPassPUIDCache puidCache = null;
+    private volatile boolean requestCoalescing = false;
+    private volatile SPFEHedging hedging = null;
+    private final SingleFlight<List<?>, WWPassReply> flights = new SingleFlight<>();  // Used on the root only
+
+    /**
+     * Connects to an SPFE whose certificate is issued by {@code spfeCA} rather than by the WWPass root CA,
+     * e.g. a local stand-in for load tests.
+     */
+    public WWPassConnection(X509Certificate cert, PKCS8EncodedKeySpec key, int timeoutSec, String spfeAddr, X509Certificate spfeCA) throws IOException, GeneralSecurityException {
+        this(cert, key, timeoutSec, spfeAddr, spfeCA, null);
+    }
 
-    public WWPassConnection(X509Certificate cert, PKCS8EncodedKeySpec key, int timeoutSec, String spfeAddr) throws IOException, GeneralSecurityException {
-        timeoutMs = timeoutSec * 1000;
-        SpfeURL = "https://" + spfeAddr + "/";
+    /**
+     * Connects with the given TLS settings, see {@link WWPassTlsOptions}. A {@code null} {@code spfeCA} stands
+     * for the WWPass root CA, {@code null} {@code tlsOptions} for the JDK's defaults.
+     * <p>
+     * The key may be RSA, EC (e.g. P-256 or P-384) or of any other type the JDK supports for TLS client
+     * authentication; its type is taken from the certificate. EC keys make handshakes cheaper.
+     */
+    public WWPassConnection(X509Certificate cert, PKCS8EncodedKeySpec key, int timeoutSec, String spfeAddr, X509Certificate spfeCA,
+                            WWPassTlsOptions tlsOptions) throws IOException, GeneralSecurityException {
+        this(SPFECredentials.build(cert, key, spfeCA(spfeCA), tlsOptions(tlsOptions), 0), null, tlsOptions(tlsOptions),
+                timeoutSec, spfeAddr);
+    }
 
-        // Setting up client certificate and key
-        X509Certificate[] chain = { cert };
-        KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-        PrivateKey privateKey = keyFactory.generatePrivate(key);
-        KeyStore.PrivateKeyEntry privateKeyEntry = new KeyStore.PrivateKeyEntry(privateKey, chain);
+    /**
+     * Takes the SP credentials from {@code credentialSource} and follows it when they change, see
+     * {@link WWPassCredentialSource}. SPFE's certificate must be issued by {@code spfeCA}; {@code null} stands
+     * for the WWPass root CA, and {@code null} {@code tlsOptions} for the JDK's defaults.
+     */
+    public WWPassConnection(WWPassCredentialSource credentialSource, int timeoutSec, String spfeAddr, X509Certificate spfeCA,
+                            WWPassTlsOptions tlsOptions) throws IOException, GeneralSecurityException {
+        this(new SPFECredentialRotation(credentialSource, spfeCA(spfeCA), tlsOptions(tlsOptions)), tlsOptions(tlsOptions),
+                timeoutSec, spfeAddr);
+    }
 
-        // This provides no additional security, but Java requires to password-protect the key
-        byte[] passwordBytes = new byte[16];
-        new SecureRandom().nextBytes(passwordBytes);
-        String password = Base64.getEncoder().encodeToString(passwordBytes);
+    public WWPassConnection(WWPassCredentialSource credentialSource, int timeoutSec, String spfeAddr, X509Certificate spfeCA) throws IOException, GeneralSecurityException {
+        this(credentialSource, timeoutSec, spfeAddr, spfeCA, null);
+    }
 
-        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance("SunX509");
-        KeyStore pkcs12 = KeyStore.getInstance("PKCS12");
-        pkcs12.load(null);
-        pkcs12.setEntry("WWPass client key", privateKeyEntry, new KeyStore.PasswordProtection(password.toCharArray()));
-        keyManagerFactory.init(pkcs12, password.toCharArray());
+    public WWPassConnection(WWPassCredentialSource credentialSource, int timeoutSec, String spfeAddr) throws IOException, GeneralSecurityException {
+        this(credentialSource, timeoutSec, spfeAddr, null, null);
+    }
 
-        // Making root CA certificate
-        InputStream inputStream = new ByteArrayInputStream(WWPassCA_DER);
-        CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
-        X509Certificate rootCA = (X509Certificate) certificateFactory.generateCertificate(inputStream);
+    public WWPassConnection(WWPassCredentialSource credentialSource) throws IOException, GeneralSecurityException {
+        this(credentialSource, DEFAULT_TIMEOUT_SEC, DEFAULT_SPFE_ADDRESS);
+    }
+
+    private WWPassConnection(SPFECredentialRotation rotation, WWPassTlsOptions tlsOptions, int timeoutSec, String spfeAddr) {
+        this(rotation.initial(), rotation, tlsOptions, timeoutSec, spfeAddr);
+    }
+
+    private WWPassConnection(SPFECredentials credentials, SPFECredentialRotation rotation, WWPassTlsOptions tlsOptions,
+                             int timeoutSec, String spfeAddr) {
+        timeoutMs = timeoutSec * 1000;
+        endpoints = SPFEEndpoints.parse(spfeAddr);
+        SpfeURL = endpoints.first().url;
+        callOptions = new WWPassCallOptions(timeoutMs, timeoutMs, 0);
+        root = this;
+        this.credentials = credentials;
+        this.rotation = rotation;
+        this.tlsOptions = tlsOptions;
+        SPFEContext = credentials.context;
+        plainCallsOverridden = overridesMakeRequest(getClass());
+    }
 
-        // Creating TrustManager for this CA
-        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+    /** The credentials for the next call. */
+    SPFECredentials credentials() {
+        return rotation != null ? rotation.select() : credentials;
+    }
 
-        KeyStore jks = KeyStore.getInstance("JKS");
-        jks.load(null);
-        jks.setCertificateEntry("WWPass Root CA", rootCA);
+    private static X509Certificate spfeCA(X509Certificate spfeCA) throws GeneralSecurityException {
+        return spfeCA != null ? spfeCA : readRootCA();
+    }
 
-        trustManagerFactory.init(jks);
+    private static WWPassTlsOptions tlsOptions(WWPassTlsOptions tlsOptions) {
+        return tlsOptions != null ? tlsOptions : new WWPassTlsOptions();
+    }
 
-        SPFEContext = SSLContext.getInstance("TLS");
-        SPFEContext.init(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(), new SecureRandom());
+    public WWPassConnection(X509Certificate cert, PKCS8EncodedKeySpec key, int timeoutSec, String spfeAddr) throws IOException, GeneralSecurityException {
+        this(cert, key, timeoutSec, spfeAddr, readRootCA());
     }
 
     public WWPassConnection(X509Certificate cert, PKCS8EncodedKeySpec key, String spfeAddr) throws IOException, GeneralSecurityException {
@@ -306,32 +332,877 @@ public class WWPassConnection {
         this(readCertificate(certFile), readKeyFile(keyFile), DEFAULT_TIMEOUT_SEC, DEFAULT_SPFE_ADDRESS);
     }
 
+    private WWPassConnection(WWPassConnection root, WWPassCallOptions callOptions) {
+        SPFEContext = root.SPFEContext;
+        timeoutMs = callOptions.getReadTimeoutMs();
+        SpfeURL = root.SpfeURL;
+        credentials = root.credentials;
+        rotation = root.rotation;
+        tlsOptions = root.tlsOptions;
+        endpoints = root.endpoints;
+        this.callOptions = callOptions;
+        this.plainCallsOverridden = false;
+        this.root = root;
+    }
+
+    private static boolean overridesMakeRequest(Class<?> type) {
+        for (Class<?> current = type; current != WWPassConnection.class; current = current.getSuperclass()) {
+            try {
+                current.getDeclaredMethod("makeRequest", String.class, String.class, Map.class);
+                return true;
+            } catch (NoSuchMethodException ignored) {
+                // Inherited
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A connection that makes the same calls with different time limits, e.g. a tight deadline for
+     * {@link #getPUID} on the login path. It shares the SSL setup and all settings with this one, so it costs
+     * next to nothing and may be created per call. Setters called on it change this connection.
+     * <p>
+     * The new connection is a plain {@code WWPassConnection}: methods overridden in a subclass are not carried over.
+     */
+    public WWPassConnection withCallOptions(WWPassCallOptions callOptions) {
+        if (callOptions == null) {
+            throw new NullPointerException("callOptions");
+        }
+        return new WWPassConnection(root, callOptions);
+    }
+
+    /**
+     * Time limits of calls made through this connection. For a connection built from {@code timeoutSec}
+     * both the connect and the read timeout are {@code timeoutSec}, and there is no deadline.
+     */
+    public WWPassCallOptions getCallOptions() {
+        return callOptions;
+    }
+
+    /** TLS settings the connection was built with. */
+    public WWPassTlsOptions getTlsOptions() {
+        return tlsOptions;
+    }
+
+    /** The source the SP credentials are taken from, {@code null} if they were given to the constructor. */
+    public WWPassCredentialSource getCredentialSource() {
+        return rotation != null ? rotation.getSource() : null;
+    }
+
+    /**
+     * Sends SPFE calls with {@code transport}, see {@link SPFETransport}.
+     * Pass {@code null} to go back to {@link SPFETransport#urlConnection()}.
+     */
+    public void setTransport(SPFETransport transport) {
+        root.transport = transport != null ? transport : SPFETransport.urlConnection();
+    }
+
+    public SPFETransport getTransport() {
+        return root.transport;
+    }
+
+    /**
+     * Routes SPFE calls through {@code pool} instead of the JDK's own {@code HttpsURLConnection} keep-alive cache.
+     * Pass {@code null} to go back to {@code HttpsURLConnection}. Same as {@link #setTransport(SPFETransport)}.
+     */
+    public void setConnectionPool(SPFEConnectionPool pool) {
+        setTransport(pool);
+    }
+
+    /** The transport if it is a connection pool, {@code null} otherwise. */
+    public SPFEConnectionPool getConnectionPool() {
+        SPFETransport current = root.transport;
+        return current instanceof SPFEConnectionPool ? (SPFEConnectionPool) current : null;
+    }
+
+    /**
+     * Reports every SPFE call made through this connection to {@code metrics}.
+     * Pass {@code null} to go back to {@link WWPassMetrics#NOOP}.
+     */
+    public void setMetrics(WWPassMetrics metrics) {
+        root.metrics = metrics != null ? metrics : WWPassMetrics.NOOP;
+    }
+
+    public WWPassMetrics getMetrics() {
+        return root.metrics;
+    }
+
+    /**
+     * Limits concurrent SPFE calls and stops calling a failing SPFE, see {@link SPFEAdmissionControl}.
+     * Pass {@code null} to admit every call.
+     */
+    public void setAdmissionControl(SPFEAdmissionControl admissionControl) {
+        root.admissionControl = admissionControl;
+    }
+
+    public SPFEAdmissionControl getAdmissionControl() {
+        return root.admissionControl;
+    }
+
+    /**
+     * Answers {@link #getPUID} from {@code cache} when possible, see {@link WWPassPUIDCache}.
+     * Pass {@code null} to always ask SPFE.
+     */
+    public void setPUIDCache(WWPassPUIDCache cache) {
+        root.puidCache = cache;
+    }
+
+    public WWPassPUIDCache getPUIDCache() {
+        return root.puidCache;
+    }
+
+    /**
+     * Lets concurrent identical reads share one SPFE round trip: a {@link #getPUID}, {@link #readData} or
+     * {@link #readDataSP} call that finds the very same call in flight waits for its reply instead of sending its
+     * own, within its own deadline. Reads that take a lock, writes, lock operations and {@link #getTicket} are
+     * always sent on their own, and a read that starts after a write or lock operation on the same container has
+     * started never joins a read that was already in flight. Joined calls are not reported to {@link WWPassMetrics}. Off by default.
+     */
+    public void setRequestCoalescing(boolean enabled) {
+        root.requestCoalescing = enabled;
+    }
+
+    public boolean isRequestCoalescing() {
+        return root.requestCoalescing;
+    }
+
+    /**
+     * Sends a second copy of a read that has no reply after the usual time, see {@link SPFEHedging}: of
+     * {@link #getPUID}, {@link #readData}, {@link #readDataSP} and {@link #getTicket} calls, but never of reads that
+     * take a lock, writes, lock operations or {@link #putTicket}. Pass {@code null} to send every call once.
+     */
+    public void setHedging(SPFEHedging hedging) {
+        root.hedging = hedging;
+    }
+
+    public SPFEHedging getHedging() {
+        return root.hedging;
+    }
+
+    /** Lets the PUID cache know how long a ticket SPFE has just issued is valid. */
+    void ticketIssued(WWPassReply reply) {
+        WWPassPUIDCache cache = root.puidCache;
+        if (cache != null) {
+            cache.ticketIssued(reply.getData(), reply.getTtl());
+        }
+    }
+
     protected WWPassReply makeRequest(String method, String command, Map<String, String> parameters) throws IOException {
-        String commandUrl= SpfeURL + command + ".xml";
-        StringBuilder paramsString = new StringBuilder();
-        for (Map.Entry<String, String> entry : parameters.entrySet()) {
-            paramsString.append(URLEncoder.encode(entry.getKey(), "UTF-8")).append("=").append(URLEncoder.encode(entry.getValue(), "UTF-8")).append("&");
-        }
-        if ("GET".equalsIgnoreCase(method)) {
-            commandUrl += "?" + paramsString;
-        } else if (!"POST".equalsIgnoreCase(method)) {
+        return call(new SPFERequest(method, command, parameters));
+    }
+
+    private WWPassReply call(SPFERequest request) throws IOException {
+        SPFEDeadline deadline = callOptions.getDeadlineMs() > 0 ? new SPFEDeadline(callOptions.getDeadlineMs()) : null;
+        try {
+            return root.requestCoalescing ? coalesce(request, deadline) : measure(request, deadline);
+        } catch (IOException e) {
+            throw deadline != null ? deadline.translate(e) : e;
+        } finally {
+            if (deadline != null) {
+                deadline.cancel();
+            }
+        }
+    }
+
+    /** {@link #measure}, sharing the reply of an identical call in flight, see {@link #setRequestCoalescing}. */
+    private WWPassReply coalesce(SPFERequest request, SPFEDeadline deadline) throws IOException {
+        if (!isCoalescable(request)) {
+            forgetReadsChangedBy(request);  // Reads starting from now on may see what this call changes
+            return measure(request, deadline);
+        }
+        boolean[] sent = { false };
+        WWPassReply reply = root.flights.execute(coalescingKey(request), () -> {
+            sent[0] = true;
+            try {
+                return measure(request, deadline);
+            } catch (IOException e) {
+                throw deadline != null ? deadline.translate(e) : e;  // So that joiners tell our deadline from SPFE's
+            }
+        }, deadline);
+        return sent[0] ? reply : copyOf(reply);
+    }
+
+    private WWPassReply measure(SPFERequest request, SPFEDeadline deadline) throws IOException {
+        WWPassMetrics metrics = root.metrics;
+        if (metrics == WWPassMetrics.NOOP) {
+            return hedge(request, null, deadline);
+        }
+        String command = request.command;
+        long start = System.nanoTime();
+        metrics.requestStarted(command);
+        WWPassMetrics.Outcome outcome = WWPassMetrics.Outcome.IO_ERROR;
+        try {
+            WWPassReply reply = hedge(request, new SPFECallTimer(metrics, command, start), deadline);
+            outcome = WWPassMetrics.Outcome.SUCCESS;
+            return reply;
+        } catch (WWPassProtocolException e) {
+            outcome = WWPassMetrics.Outcome.PROTOCOL_ERROR;
+            throw e;
+        } catch (WWPassRejectedException e) {
+            outcome = WWPassMetrics.Outcome.REJECTED;
+            throw e;
+        } finally {
+            metrics.requestCompleted(command, outcome, System.nanoTime() - start);
+        }
+    }
+
+    /** {@link #route}, with a duplicate sent if the connection hedges and the call may be hedged, see {@link #setHedging}. */
+    private WWPassReply hedge(SPFERequest request, SPFECallTimer timer, SPFEDeadline deadline) throws IOException {
+        SPFEHedging hedging = root.hedging;
+        if (hedging == null || !isHedgeable(request)) {
+            return route(request, timer, deadline, null);
+        }
+        SPFEHedging.Race race = hedging.race(request.command, deadline);
+        if (race == null) {
+            long start = System.nanoTime();
+            WWPassReply reply = route(request, timer, deadline, null);
+            hedging.record(request.command, System.nanoTime() - start);
+            return reply;
+        }
+        race.schedule(() -> {
+            try {
+                SPFEHedging.execute(() -> {
+                    try {
+                        SPFEEndpoints.Endpoint endpoint = duplicateEndpoint(request, race);
+                        race.duplicateCompleted(attempt(endpoint, request, race.duplicateDeadline), null);
+                    } catch (Throwable e) {
+                        race.duplicateCompleted(null, e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                race.duplicateCompleted(null, e);
+            }
+        });
+        try {
+            race.primaryCompleted(route(request, timer, race.primaryDeadline, race), null);
+        } catch (Throwable e) {
+            race.primaryCompleted(null, e);
+        }
+        return race.await();
+    }
+
+    /**
+     * Sends the call to one of the SPFE endpoints. Calls that are safe to repeat are retried on another endpoint
+     * if the first one fails before answering; everything else is sent exactly once. So are streamed calls,
+     * whose streams cannot be rewound. The endpoints tried are reported to {@code race} if the call is hedged.
+     */
+    private WWPassReply route(SPFERequest request, SPFECallTimer timer, SPFEDeadline deadline, SPFEHedging.Race race)
+            throws IOException {
+        if (endpoints.size() == 1) {
+            return admit(endpoints.first(), request, timer, deadline);
+        }
+        boolean repeatable = request.dataStream == null && request.dataSink == null
+                && isIdempotent(request.method, request.command, request.parameters);
+        int attempts = repeatable ? Math.min(endpoints.size(), MAX_ATTEMPTS) : 1;
+        List<SPFEEndpoints.Endpoint> failed = new ArrayList<>(attempts);
+        IOException failure = null;
+        for (int attempt = 0; attempt < attempts; attempt++) {
+            if (deadline != null && attempt > 0 && deadline.isExpired()) {
+                break;
+            }
+            SPFEEndpoints.Endpoint endpoint = select(request, failed);
+            if (race != null) {
+                race.primaryEndpoint = endpoint;
+            }
+            long start = System.nanoTime();
+            endpoint.started();
+            boolean answered = false;
+            try {
+                WWPassReply reply = admit(endpoint, request, timer, deadline);
+                answered = true;
+                return reply;
+            } catch (WWPassProtocolException e) {
+                answered = true;  // SPFE is up and said no, another endpoint will say the same
+                throw e;
+            } catch (WWPassRejectedException e) {
+                endpoint.abandoned();
+                SPFEAdmissionControl control = root.admissionControl;
+                if (control == null || !control.isPerEndpoint()) {
+                    throw e;  // Any other endpoint would be rejected just the same
+                }
+                failed.add(endpoint);
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            } catch (IOException e) {
+                if (deadline != null && deadline.isExpired()) {
+                    endpoint.abandoned();  // Our deadline, not the endpoint's fault
+                    throw e;
+                }
+                endpoint.failed(System.nanoTime() - start);
+                failed.add(endpoint);
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+                if (timer != null) {
+                    timer.skip();
+                }
+            } catch (RuntimeException e) {
+                endpoint.abandoned();
+                throw e;
+            } finally {
+                if (answered) {
+                    endpoint.succeeded(System.nanoTime() - start);
+                    if (request.session != null) {
+                        request.session.answeredBy(endpoint);
+                    }
+                }
+            }
+        }
+        throw failure;
+    }
+
+    /** The endpoint for the next attempt: the one that answered the previous call of the session, if any. */
+    private SPFEEndpoints.Endpoint select(SPFERequest request, List<SPFEEndpoints.Endpoint> failed) {
+        SPFESession session = request.session;
+        return session != null ? endpoints.select(failed, session.getEndpoint()) : endpoints.select(failed);
+    }
+
+    /**
+     * Where the duplicate of a hedged call goes: an endpoint other than the primary attempt's, if there is one, but
+     * the session's endpoint, or the primary attempt's before the session has one, for a call of a session.
+     */
+    private SPFEEndpoints.Endpoint duplicateEndpoint(SPFERequest request, SPFEHedging.Race race) {
+        if (endpoints.size() == 1) {
+            return endpoints.first();
+        }
+        if (request.session != null) {
+            SPFEEndpoints.Endpoint endpoint = request.session.getEndpoint();
+            if (endpoint == null) {
+                endpoint = race.primaryEndpoint;
+            }
+            if (endpoint != null) {
+                return endpoint;
+            }
+        }
+        return endpoints.selectOther(race.primaryEndpoint);
+    }
+
+    /** Lets the session of a hedged call know the duplicate answered, unless another endpoint answered the session. */
+    private static void duplicateAnsweredBy(SPFERequest request, SPFEEndpoints.Endpoint endpoint) {
+        SPFESession session = request.session;
+        if (session != null) {
+            SPFEEndpoints.Endpoint current = session.getEndpoint();
+            if (current == null || current == endpoint) {
+                session.answeredBy(endpoint);
+            }
+        }
+    }
+
+    /** The duplicate of a hedged call: a single attempt on {@code endpoint}, accounted for like those of {@link #route}. */
+    private WWPassReply attempt(SPFEEndpoints.Endpoint endpoint, SPFERequest request, SPFEDeadline deadline)
+            throws IOException {
+        if (endpoints.size() == 1) {
+            return admit(endpoint, request, null, deadline);
+        }
+        long start = System.nanoTime();
+        endpoint.started();
+        boolean answered = false;
+        boolean failed = false;
+        try {
+            WWPassReply reply = admit(endpoint, request, null, deadline);
+            answered = true;
+            return reply;
+        } catch (WWPassProtocolException e) {
+            answered = true;
+            throw e;
+        } catch (WWPassRejectedException e) {
+            throw e;
+        } catch (IOException e) {
+            failed = !deadline.isExpired();
+            throw e;
+        } finally {
+            if (answered) {
+                endpoint.succeeded(System.nanoTime() - start);
+                duplicateAnsweredBy(request, endpoint);
+            } else if (failed) {
+                endpoint.failed(System.nanoTime() - start);
+            } else {
+                endpoint.abandoned();
+            }
+        }
+    }
+
+    private WWPassReply admit(SPFEEndpoints.Endpoint endpoint, SPFERequest request, SPFECallTimer timer,
+                              SPFEDeadline deadline) throws IOException {
+        SPFEAdmissionControl control = root.admissionControl;
+        if (control == null) {
+            return send(endpoint, request, timer, deadline);
+        }
+        SPFEAdmissionControl.Gate gate = control.gate(endpoint.address);
+        gate.acquire(deadline);
+        boolean answered = false;
+        boolean failed = false;
+        try {
+            WWPassReply reply = send(endpoint, request, timer, deadline);
+            answered = true;
+            return reply;
+        } catch (WWPassProtocolException e) {
+            answered = true;
+            throw e;
+        } catch (IOException e) {
+            failed = deadline == null || !deadline.isExpired();
+            throw e;
+        } finally {
+            if (answered) {
+                gate.succeeded();
+            } else if (failed) {
+                gate.failed();
+            } else {
+                gate.abandoned();
+            }
+        }
+    }
+
+    /**
+     * Whether the call can be sent again after a failure without side effects on the SPFE: reads and ticket
+     * lookups. Reads that take a lock, writes, lock operations and {@code put} are not.
+     */
+    static boolean isIdempotent(String method, String command, Map<String, String> parameters) {
+        if (!"GET".equalsIgnoreCase(method)) {
+            return false;
+        }
+        switch (command) {
+            case "get":
+            case "puid":
+                return true;
+            case "read":
+            case "sp/read":
+                return !"1".equals(parameters.get("lock"));
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Whether a duplicate of the call may be sent while it is in flight, see {@link #setHedging}: calls that are
+     * retried after a failure, see {@link #isIdempotent}, unless they are streamed.
+     */
+    static boolean isHedgeable(SPFERequest request) {
+        return request.dataStream == null && request.dataSink == null
+                && isIdempotent(request.method, request.command, request.parameters);
+    }
+
+    /**
+     * Whether concurrent identical calls may share one SPFE round trip and its reply, see
+     * {@link #setRequestCoalescing}: PUID lookups and reads that take no lock. Not {@code get}, every call of which
+     * issues a new ticket, and not streamed or binary calls, whose replies cannot be handed to several callers.
+     */
+    static boolean isCoalescable(SPFERequest request) {
+        if (!request.isPlain() || !"GET".equalsIgnoreCase(request.method)) {
+            return false;
+        }
+        switch (request.command) {
+            case "puid":
+                return true;
+            case "read":
+            case "sp/read":
+                return !"1".equals(request.parameters.get("lock"));
+            default:
+                return false;
+        }
+    }
+
+    private static List<?> coalescingKey(SPFERequest request) {
+        return Arrays.asList(request.command, new HashMap<>(request.parameters));  // Parameters as they are now
+    }
+
+    /**
+     * Keeps coalesced reads that were in flight before {@code request} from being joined by reads that start after
+     * it: reads of the same ticket's container for writes and lock operations, reads of the same PFID for writes
+     * and removals of SP containers, and every SP container read for SP lock operations, which name no PFID.
+     */
+    private void forgetReadsChangedBy(SPFERequest request) {
+        String read;
+        String parameter;
+        switch (request.command) {
+            case "write":
+            case "lock":
+            case "unlock":
+                read = "read";
+                parameter = "ticket";
+                break;
+            case "sp/write":
+            case "sp/remove":
+                read = "sp/read";
+                parameter = "pfid";
+                break;
+            case "sp/lock":
+            case "sp/unlock":
+                read = "sp/read";
+                parameter = null;
+                break;
+            default:
+                return;
+        }
+        String value = parameter != null ? request.parameters.get(parameter) : null;
+        root.flights.forget(key -> read.equals(key.get(0))
+                && (value == null || value.equals(((Map<?, ?>) key.get(1)).get(parameter))));
+    }
+
+    /** A reply of a call that joined another one: its own object, so that callers can't see each other's changes. */
+    private static WWPassReply copyOf(WWPassReply reply) {
+        WWPassReply copy = new WWPassReply(reply.getData());
+        copy.setTtl(reply.getTtl());
+        copy.setOriginalTicket(reply.getOriginalTicket());
+        return copy;
+    }
+
+    private WWPassReply send(SPFEEndpoints.Endpoint endpoint, SPFERequest request, SPFECallTimer timer,
+                             SPFEDeadline deadline) throws IOException {
+        SPFETransport transport = root.transport;
+        SPFERequestEncoder encoder = SPFERequestEncoder.acquire();
+        try {
+            return transport.execute(exchange(endpoint, request, encoder, timer, deadline), replyReader(request));
+        } finally {
+            encoder.release();
+        }
+    }
+
+    /** Encodes {@code request} with {@code encoder}; the exchange is only valid until the encoder is released. */
+    private SPFEExchange exchange(SPFEEndpoints.Endpoint endpoint, SPFERequest request, SPFERequestEncoder encoder,
+                                  SPFECallTimer timer, SPFEDeadline deadline) throws IOException {
+        String method = request.method;
+        boolean post = "POST".equalsIgnoreCase(method);
+        if (!post && !"GET".equalsIgnoreCase(method)) {
             throw new IllegalArgumentException("Method " + method + " not supported");
         }
 
+        int connectTimeoutMs = callOptions.getConnectTimeoutMs();
+        int readTimeoutMs = callOptions.getReadTimeoutMs();
+        if (deadline != null) {
+            connectTimeoutMs = deadline.limit(connectTimeoutMs);
+            readTimeoutMs = deadline.limit(readTimeoutMs);
+        }
+
+        encoder.parameters(request.parameters);
+        SPFEFormBody body = null;
+        if (post) {
+            if (request.dataBuffer != null) {
+                encoder.data(request.dataBuffer);
+            } else if (request.dataStream != null) {
+                encoder.dataPrefix();
+            }
+            body = new SPFEFormBody(encoder.array(), encoder.length(), request.dataStream);
+        }
+        SPFECredentials sentWith = credentials();
+        if (request.session != null) {
+            sentWith = request.session.credentials(sentWith);
+        }
+        return new SPFEExchange(endpoint.target(request.command), post ? null : encoder.array(), encoder.length(), body,
+                sentWith, connectTimeoutMs, readTimeoutMs, timer, deadline, request.session,
+                isIdempotent(method, request.command, request.parameters));
+    }
+
+    private static SPFETransport.ReplyReader<WWPassReply> replyReader(SPFERequest request) {
+        OutputStream sink = request.dataSink;
+        if (sink != null) {
+            return input -> SPFEReplyParser.parse(input, sink);
+        }
+        if (request.binaryReply) {
+            return SPFEReplyParser::parseBinary;
+        }
+        return WWPassConnection::getReplyData;
+    }
+
+    WWPassReply makeRequest(SPFERequest request) throws IOException {
+        if (plainCallsOverridden && request.isPlain()) {
+            return makeRequest(request.method, request.command, request.parameters);
+        }
         try {
-            HttpsURLConnection connection = (HttpsURLConnection) new URI(commandUrl).toURL().openConnection();
-            connection.setReadTimeout(timeoutMs);
-            connection.setSSLSocketFactory(SPFEContext.getSocketFactory());
-            if ("POST".equalsIgnoreCase(method)) {
-                connection.setDoOutput(true);
-                OutputStreamWriter writer = new OutputStreamWriter(connection.getOutputStream());
-                writer.write(paramsString.toString());
-                writer.flush();
+            return call(request);
+        } catch (SPFEStreams.CallerStreamException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Runs {@link #makeRequest(String, String, Map)} for {@code request} on {@code executor}.
+     * The future fails with the same exception the blocking call would have thrown.
+     * <p>
+     * With a transport that doesn't block, see {@link SPFETransport#isAsync()}, the call is sent right away and no
+     * thread waits for the reply; the future is still completed on {@code executor}. Streamed calls, and plain calls
+     * of a subclass that overrides {@link #makeRequest(String, String, Map)}, always take the blocking way.
+     */
+    CompletableFuture<WWPassReply> makeRequestAsync(SPFERequest request, Executor executor) {
+        SPFETransport transport = root.transport;
+        if (transport.isAsync() && request.dataStream == null && request.dataSink == null
+                && !(plainCallsOverridden && request.isPlain())) {
+            return completeOn(callAsync(transport, request, executor), executor);
+        }
+        CompletableFuture<WWPassReply> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(makeRequest(request));
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /** {@link #call} on a transport that doesn't block, coalesced the same way. */
+    private CompletableFuture<WWPassReply> callAsync(SPFETransport transport, SPFERequest request, Executor executor) {
+        if (!root.requestCoalescing) {
+            return measureAsync(transport, request, executor);
+        }
+        if (!isCoalescable(request)) {
+            forgetReadsChangedBy(request);
+            return measureAsync(transport, request, executor);
+        }
+        boolean[] sent = { false };
+        CompletableFuture<WWPassReply> shared = root.flights.executeAsync(coalescingKey(request), () -> {
+            sent[0] = true;
+            return measureAsync(transport, request, executor);
+        });
+        if (sent[0]) {
+            return shared;
+        }
+        CompletableFuture<WWPassReply> joined = shared.thenApply(WWPassConnection::copyOf);
+        if (callOptions.getDeadlineMs() > 0) {
+            SPFEDeadline deadline = new SPFEDeadline(callOptions.getDeadlineMs());
+            deadline.attach(() -> joined.completeExceptionally(deadline.exceeded()));
+            joined.whenComplete((reply, error) -> deadline.cancel());
+        }
+        return joined;
+    }
+
+    /** {@link #call} without coalescing, chained on the transport's reply future: the same deadline, metrics, retries and admission. */
+    private CompletableFuture<WWPassReply> measureAsync(SPFETransport transport, SPFERequest request, Executor executor) {
+        SPFEDeadline deadline = callOptions.getDeadlineMs() > 0 ? new SPFEDeadline(callOptions.getDeadlineMs()) : null;
+        WWPassMetrics metrics = root.metrics;
+        String command = request.command;
+        long start = System.nanoTime();
+        SPFECallTimer timer = null;
+        if (metrics != WWPassMetrics.NOOP) {
+            metrics.requestStarted(command);
+            timer = new SPFECallTimer(metrics, command, start);
+        }
+        SPFEHedging hedging = root.hedging;
+        CompletableFuture<WWPassReply> routed = hedging != null && isHedgeable(request)
+                ? hedgeAsync(hedging, transport, request, timer, deadline, executor)
+                : routeAsync(transport, request, timer, deadline, executor, null);
+        return routed.handle((reply, error) -> {
+            if (deadline != null) {
+                deadline.cancel();
             }
-            return getReplyData(connection.getInputStream());
-        } catch (URISyntaxException e) {
-            throw new IllegalArgumentException("Command-parameters combination is invalid: " + e.getMessage());
+            Throwable failure = unwrap(error);
+            if (metrics != WWPassMetrics.NOOP) {
+                WWPassMetrics.Outcome outcome = failure == null ? WWPassMetrics.Outcome.SUCCESS
+                        : failure instanceof WWPassProtocolException ? WWPassMetrics.Outcome.PROTOCOL_ERROR
+                        : failure instanceof WWPassRejectedException ? WWPassMetrics.Outcome.REJECTED
+                        : WWPassMetrics.Outcome.IO_ERROR;
+                metrics.requestCompleted(command, outcome, System.nanoTime() - start);
+            }
+            if (failure == null) {
+                return reply;
+            }
+            if (deadline != null && failure instanceof IOException) {
+                failure = deadline.translate((IOException) failure);
+            }
+            throw new CompletionException(failure);
+        });
+    }
+
+    /** {@link #hedge} on a transport that doesn't block: the duplicate is sent from the timer thread. */
+    private CompletableFuture<WWPassReply> hedgeAsync(SPFEHedging hedging, SPFETransport transport, SPFERequest request,
+                                                      SPFECallTimer timer, SPFEDeadline deadline, Executor executor) {
+        SPFEHedging.Race race = hedging.race(request.command, deadline);
+        if (race == null) {
+            long start = System.nanoTime();
+            return routeAsync(transport, request, timer, deadline, executor, null).whenComplete((reply, error) -> {
+                if (error == null) {
+                    hedging.record(request.command, System.nanoTime() - start);
+                }
+            });
         }
+        race.schedule(() -> {
+            try {
+                attemptAsync(transport, duplicateEndpoint(request, race), request, race.duplicateDeadline, executor)
+                        .whenComplete((reply, error) -> race.duplicateCompleted(reply, unwrap(error)));
+            } catch (RuntimeException e) {
+                race.duplicateCompleted(null, e);
+            }
+        });
+        routeAsync(transport, request, timer, race.primaryDeadline, executor, race)
+                .whenComplete((reply, error) -> race.primaryCompleted(reply, unwrap(error)));
+        return race.reply();
+    }
+
+    /** {@link #route} on a transport that doesn't block. */
+    private CompletableFuture<WWPassReply> routeAsync(SPFETransport transport, SPFERequest request, SPFECallTimer timer,
+                                                      SPFEDeadline deadline, Executor executor, SPFEHedging.Race race) {
+        if (endpoints.size() == 1) {
+            return admitAsync(transport, endpoints.first(), request, timer, deadline, executor);
+        }
+        int attempts = isIdempotent(request.method, request.command, request.parameters)
+                ? Math.min(endpoints.size(), MAX_ATTEMPTS) : 1;
+        return routeAsync(transport, request, timer, deadline, executor, attempts, new ArrayList<>(attempts), null, race);
+    }
+
+    /** One attempt of {@link #route}, followed by the next one if it failed and another endpoint may be tried. */
+    private CompletableFuture<WWPassReply> routeAsync(SPFETransport transport, SPFERequest request, SPFECallTimer timer,
+                                                      SPFEDeadline deadline, Executor executor, int attempts,
+                                                      List<SPFEEndpoints.Endpoint> failed, IOException failure,
+                                                      SPFEHedging.Race race) {
+        SPFEEndpoints.Endpoint endpoint = select(request, failed);
+        if (race != null) {
+            race.primaryEndpoint = endpoint;
+        }
+        long start = System.nanoTime();
+        endpoint.started();
+        CompletableFuture<WWPassReply> attempt = admitAsync(transport, endpoint, request, timer, deadline, executor);
+        return attempt.<CompletableFuture<WWPassReply>>handle((reply, error) -> {
+            Throwable cause = unwrap(error);
+            if (cause == null || cause instanceof WWPassProtocolException) {
+                endpoint.succeeded(System.nanoTime() - start);
+                if (request.session != null) {
+                    request.session.answeredBy(endpoint);
+                }
+                return error == null ? CompletableFuture.completedFuture(reply) : failedFuture(cause);
+            }
+            if (cause instanceof WWPassRejectedException) {
+                endpoint.abandoned();
+                SPFEAdmissionControl control = root.admissionControl;
+                if (control == null || !control.isPerEndpoint()) {
+                    return failedFuture(cause);
+                }
+            } else if (cause instanceof IOException && (deadline == null || !deadline.isExpired())) {
+                endpoint.failed(System.nanoTime() - start);
+                if (timer != null) {
+                    timer.skip();
+                }
+            } else {
+                endpoint.abandoned();
+                return failedFuture(cause);
+            }
+            failed.add(endpoint);
+            IOException failures = failure;
+            if (failures == null) {
+                failures = (IOException) cause;
+            } else {
+                failures.addSuppressed(cause);
+            }
+            if (failed.size() >= attempts || (deadline != null && deadline.isExpired())) {
+                return failedFuture(failures);
+            }
+            return routeAsync(transport, request, timer, deadline, executor, attempts, failed, failures, race);
+        }).thenCompose(next -> next);
+    }
+
+    /** {@link #attempt} on a transport that doesn't block. */
+    private CompletableFuture<WWPassReply> attemptAsync(SPFETransport transport, SPFEEndpoints.Endpoint endpoint,
+                                                        SPFERequest request, SPFEDeadline deadline, Executor executor) {
+        if (endpoints.size() == 1) {
+            return admitAsync(transport, endpoint, request, null, deadline, executor);
+        }
+        long start = System.nanoTime();
+        endpoint.started();
+        return admitAsync(transport, endpoint, request, null, deadline, executor).whenComplete((reply, error) -> {
+            Throwable cause = unwrap(error);
+            if (cause == null || cause instanceof WWPassProtocolException) {
+                endpoint.succeeded(System.nanoTime() - start);
+                duplicateAnsweredBy(request, endpoint);
+            } else if (cause instanceof IOException && !(cause instanceof WWPassRejectedException)
+                    && !deadline.isExpired()) {
+                endpoint.failed(System.nanoTime() - start);
+            } else {
+                endpoint.abandoned();
+            }
+        });
+    }
+
+    private CompletableFuture<WWPassReply> admitAsync(SPFETransport transport, SPFEEndpoints.Endpoint endpoint,
+                                                      SPFERequest request, SPFECallTimer timer, SPFEDeadline deadline,
+                                                      Executor executor) {
+        SPFEAdmissionControl control = root.admissionControl;
+        if (control == null) {
+            return sendAsync(transport, endpoint, request, timer, deadline);
+        }
+        SPFEAdmissionControl.Gate gate = control.gate(endpoint.address);
+        CompletableFuture<Void> admitted;
+        if (control.getQueueTimeoutMs() == 0) {
+            try {
+                gate.acquire(deadline);  // Never waits
+            } catch (IOException e) {
+                return failedFuture(e);
+            }
+            admitted = CompletableFuture.completedFuture(null);
+        } else {
+            // Waiting for a free slot blocks, and must not block the caller
+            try {
+                admitted = CompletableFuture.runAsync(() -> {
+                    try {
+                        gate.acquire(deadline);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }, executor);
+            } catch (RejectedExecutionException e) {
+                return failedFuture(e);
+            }
+        }
+        return admitted.thenCompose(ignored -> sendAsync(transport, endpoint, request, timer, deadline)
+                .whenComplete((reply, error) -> {
+                    Throwable cause = unwrap(error);
+                    if (cause == null || cause instanceof WWPassProtocolException) {
+                        gate.succeeded();
+                    } else if (cause instanceof IOException && (deadline == null || !deadline.isExpired())) {
+                        gate.failed();
+                    } else {
+                        gate.abandoned();
+                    }
+                }));
+    }
+
+    private CompletableFuture<WWPassReply> sendAsync(SPFETransport transport, SPFEEndpoints.Endpoint endpoint,
+                                                     SPFERequest request, SPFECallTimer timer, SPFEDeadline deadline) {
+        SPFERequestEncoder encoder = SPFERequestEncoder.acquire();
+        try {
+            return transport.executeAsync(exchange(endpoint, request, encoder, timer, deadline), replyReader(request));
+        } catch (IOException | RuntimeException e) {
+            return failedFuture(e);
+        } finally {
+            encoder.release();
+        }
+    }
+
+    /** {@code source}, completed on {@code executor} so that the caller's stages never run on the transport's threads. */
+    private static <T> CompletableFuture<T> completeOn(CompletableFuture<T> source, Executor executor) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        source.whenComplete((value, error) -> {
+            Runnable complete = () -> {
+                if (error != null) {
+                    future.completeExceptionally(unwrap(error));
+                } else {
+                    future.complete(value);
+                }
+            };
+            try {
+                executor.execute(complete);
+            } catch (RejectedExecutionException e) {
+                complete.run();
+            }
+        });
+        return future;
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    }
+
+    private static <T> CompletableFuture<T> failedFuture(Throwable e) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
     }
 
 
@@ -339,20 +1210,41 @@ public class WWPassConnection {
 
     // Functions to work with user containers
 
-    public String getPUID(String ticket, String auth_type) throws IOException {
+    static SPFERequest puidRequest(String ticket, String auth_type) {
         Map<String, String> parameters = new HashMap<>();
         parameters.put("ticket", ticket);
         if (auth_type != null && !auth_type.isEmpty()) {
             parameters.put("auth_type", auth_type);
         }
-        return makeRequest("GET", "puid", parameters).getData();
+        return new SPFERequest("GET", "puid", parameters);
+    }
+
+    public String getPUID(String ticket, String auth_type) throws IOException {
+        WWPassPUIDCache cache = root.puidCache;
+        if (cache != null) {
+            return cachedPUID(cache, ticket, auth_type, () -> makeRequest(puidRequest(ticket, auth_type)).getData());
+        }
+        return makeRequest(puidRequest(ticket, auth_type)).getData();
     }
 
     public String getPUID(String ticket) throws IOException {
         return getPUID(ticket, null);
     }
 
-    public WWPassReply getTicket(String auth_type, int ttl, String message, String qas_uri) throws IOException {
+    /** {@link WWPassPUIDCache#get}, waiting for a lookup of the same PUID in flight no longer than the call deadline. */
+    private String cachedPUID(WWPassPUIDCache cache, String ticket, String auth_type, SingleFlight.Loader<String> loader)
+            throws IOException {
+        SPFEDeadline deadline = callOptions.getDeadlineMs() > 0 ? new SPFEDeadline(callOptions.getDeadlineMs()) : null;
+        try {
+            return cache.get(ticket, auth_type, loader, deadline);
+        } finally {
+            if (deadline != null) {
+                deadline.cancel();
+            }
+        }
+    }
+
+    static SPFERequest getTicketRequest(String auth_type, int ttl, String message, String qas_uri) throws IOException {
         Map<String, String> parameters = new HashMap<>();
         if (auth_type != null && !auth_type.isEmpty()) {
             parameters.put("auth_type", auth_type);
@@ -362,33 +1254,22 @@ public class WWPassConnection {
         }
         byte[] messageKey = null;
         if (message != null && !message.isEmpty()) {
-            final int TAG_LENGTH = 16;
-            messageKey = new byte[TAG_LENGTH];
-            new SecureRandom().nextBytes(messageKey);
-            SecretKey secretKey = new SecretKeySpec(messageKey, "AES");
-            byte[] result;
-            try {
-                Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-                GCMParameterSpec gcmParameterSpec = new GCMParameterSpec(TAG_LENGTH * 8, MESSAGE_NONCE);
-                cipher.init(Cipher.ENCRYPT_MODE, secretKey, gcmParameterSpec);
-                result = cipher.doFinal(message.getBytes(StandardCharsets.UTF_8));
-            } catch (GeneralSecurityException e) {
-                throw new IOException(e);
-            }
-            byte[] cipherText = Arrays.copyOfRange(result, 0, result.length - TAG_LENGTH);
-            byte[] tag = Arrays.copyOfRange(result, result.length - TAG_LENGTH, result.length);
-            Map<String, String> map = new HashMap<>();
-            Base64.Encoder base64encoder = Base64.getEncoder();
-            map.put("ciphertext", base64encoder.encodeToString(cipherText));
-            map.put("tag", base64encoder.encodeToString(tag));
-            map.put("nonce", base64encoder.encodeToString(MESSAGE_NONCE));
-            parameters.put("message", new JSONObject(map).toJSONString());
+            messageKey = SPFEMessageSealer.newKey();
+            parameters.put("message", MESSAGE_SEALER.seal(message, messageKey));
         }
         if (qas_uri != null && !qas_uri.isEmpty()) {
             parameters.put("qasUri", qas_uri);
         }
-        WWPassReply ret = makeRequest("GET", "get", parameters);
-        ret.setMessageKey(messageKey);
+        SPFERequest request = new SPFERequest("GET", "get", parameters);
+        request.messageKey = messageKey;
+        return request;
+    }
+
+    public WWPassReply getTicket(String auth_type, int ttl, String message, String qas_uri) throws IOException {
+        SPFERequest request = getTicketRequest(auth_type, ttl, message, qas_uri);
+        WWPassReply ret = makeRequest(request);
+        ret.setMessageKey(request.messageKey);
+        ticketIssued(ret);
         return ret;
     }
 
@@ -425,7 +1306,10 @@ public class WWPassConnection {
     }
 
     public String getName() throws IOException {
-        String ticket = getTicket(0);
+        return nameFromTicket(getTicket(0));
+    }
+
+    static String nameFromTicket(String ticket) throws WWPassProtocolException {
         int colon = ticket.indexOf(':');
         if (colon == -1) {
             throw new WWPassProtocolException("SPFE returned ticket without a colon");
@@ -433,7 +1317,7 @@ public class WWPassConnection {
         return ticket.substring(0, colon);
     }
 
-    public String putTicket(String ticket, String auth_type, int ttl) throws IOException {
+    static SPFERequest putRequest(String ticket, String auth_type, int ttl) {
         Map<String, String> parameters = new HashMap<>();
         parameters.put("ticket", ticket);
         if (auth_type != null && !auth_type.isEmpty()) {
@@ -442,7 +1326,13 @@ public class WWPassConnection {
         if (ttl != 0) {
             parameters.put("ttl", Integer.toString(ttl));
         }
-        return makeRequest("GET", "put", parameters).getData();
+        return new SPFERequest("GET", "put", parameters);
+    }
+
+    public String putTicket(String ticket, String auth_type, int ttl) throws IOException {
+        WWPassReply reply = makeRequest(putRequest(ticket, auth_type, ttl));
+        ticketIssued(reply);
+        return reply.getData();
     }
 
     public String putTicket(String ticket, String auth_type) throws IOException {
@@ -457,20 +1347,105 @@ public class WWPassConnection {
         return putTicket(ticket, null, 0);
     }
 
-    public String readData(String ticket, String container) throws IOException {
+    /**
+     * Logs a user in with the ticket their token obtained: {@link #putTicket} followed by {@link #getPUID} for the
+     * ticket it issues, the two calls every login makes. The second call goes to the SPFE endpoint that answered
+     * the first and, with {@link SPFEConnectionPool}, over the very same connection, so it never waits for a free
+     * connection or a new TLS handshake. The result tells how long each step took.
+     */
+    public WWPassAuthentication authenticate(String ticket, String auth_type) throws IOException {
+        try (SPFESession session = new SPFESession()) {
+            long start = System.nanoTime();
+            SPFERequest put = putRequest(ticket, auth_type, 0);
+            put.session = session;
+            WWPassReply reply = makeRequest(put);
+            ticketIssued(reply);
+            String newTicket = reply.getData();
+            long issued = System.nanoTime();
+
+            SPFERequest lookup = puidRequest(newTicket, auth_type);
+            lookup.session = session;
+            WWPassPUIDCache cache = root.puidCache;
+            String puid = cache != null
+                    ? cachedPUID(cache, newTicket, auth_type, () -> makeRequest(lookup).getData())
+                    : makeRequest(lookup).getData();
+            return new WWPassAuthentication(newTicket, reply.getTtl(), puid, issued - start, System.nanoTime() - issued);
+        }
+    }
+
+    public WWPassAuthentication authenticate(String ticket) throws IOException {
+        return authenticate(ticket, null);
+    }
+
+    static SPFERequest readRequest(String ticket, String container) {
         Map<String, String> parameters = new HashMap<>();
         parameters.put("ticket", ticket);
         if (container != null && !container.isEmpty()) {
             parameters.put("container", container);
         }
-        return makeRequest("GET", "read", parameters).getData();
+        return new SPFERequest("GET", "read", parameters);
+    }
+
+    public String readData(String ticket, String container) throws IOException {
+        return makeRequest(readRequest(ticket, container)).getData();
     }
 
     public String readData(String ticket) throws IOException {
         return readData(ticket, null);
     }
 
-    public String readDataAndLock(String ticket, String container, int lockTimeout) throws IOException {
+    static SPFERequest readRequest(String ticket, String container, OutputStream output) {
+        SPFERequest request = readRequest(ticket, container);
+        request.dataSink = SPFEStreams.sink(output);
+        return request;
+    }
+
+    /**
+     * Writes the container data to {@code output} as it arrives, without holding it in memory. If the call fails
+     * part of the data may already have been written. The stream is not closed. Pass a {@code null} container
+     * for the default one.
+     */
+    public void readData(String ticket, String container, OutputStream output) throws IOException {
+        makeRequest(readRequest(ticket, container, output));
+    }
+
+    static SPFERequest readBytesRequest(String ticket, String container) {
+        SPFERequest request = readRequest(ticket, container);
+        request.binaryReply = true;
+        return request;
+    }
+
+    /** Container data as bytes, exactly as they were written, without a detour through {@code String}. */
+    public byte[] readDataBytes(String ticket, String container) throws IOException {
+        return makeRequest(readBytesRequest(ticket, container)).getRawData();
+    }
+
+    public byte[] readDataBytes(String ticket) throws IOException {
+        return readDataBytes(ticket, null);
+    }
+
+    /**
+     * Container data put into {@code target} at its position, e.g. a reused or direct buffer. Returns the number of
+     * bytes, by which the position has advanced.
+     *
+     * @throws java.nio.BufferOverflowException if the data does not fit; nothing is put into {@code target} then
+     */
+    public int readDataBytes(String ticket, String container, ByteBuffer target) throws IOException {
+        return put(makeRequest(readBytesRequest(ticket, container)).getRawData(), target);
+    }
+
+    static int put(byte[] data, ByteBuffer target) {
+        if (data == null) {
+            return 0;
+        }
+        if (data.length > target.remaining()) {
+            throw new BufferOverflowException();
+        }
+        target.put(data);
+        return data.length;
+    }
+
+    static SPFERequest readAndLockRequest(String ticket, String container, int lockTimeout) {
         Map<String, String> parameters = new HashMap<>();
         parameters.put("ticket", ticket);
         if (container != null && !container.isEmpty()) {
@@ -478,28 +1453,93 @@ public class WWPassConnection {
         }
         parameters.put("to", Integer.toString(lockTimeout));
         parameters.put("lock", "1");
-        return makeRequest("GET", "read", parameters).getData();
+        return new SPFERequest("GET", "read", parameters);
+    }
+
+    public String readDataAndLock(String ticket, String container, int lockTimeout) throws IOException {
+        return makeRequest(readAndLockRequest(ticket, container, lockTimeout)).getData();
     }
 
     public String readDataAndLock(String ticket, int lockTimeout) throws IOException {
         return readDataAndLock(ticket, null, lockTimeout);
     }
 
-    public String writeData(String ticket, String data, String container) throws IOException {
+    static SPFERequest writeRequest(String ticket, String data, String container) {
         Map<String, String> parameters = new HashMap<>();
         parameters.put("ticket", ticket);
         parameters.put("data", data);
         if (container != null && !container.isEmpty()) {
             parameters.put("container", container);
         }
-        return makeRequest("POST", "write", parameters).getData();
+        return new SPFERequest("POST", "write", parameters);
+    }
+
+    public String writeData(String ticket, String data, String container) throws IOException {
+        return makeRequest(writeRequest(ticket, data, container)).getData();
     }
 
     public String writeData(String ticket, String data) throws IOException {
         return writeData(ticket, data, null);
     }
 
-    public String writeDataAndUnlock(String ticket, String data, String container) throws IOException {
+    static SPFERequest writeRequest(String ticket, InputStream data, String container) {
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("ticket", ticket);
+        if (container != null && !container.isEmpty()) {
+            parameters.put("container", container);
+        }
+        SPFERequest request = new SPFERequest("POST", "write", parameters);
+        request.dataStream = SPFEStreams.source(data);
+        return request;
+    }
+
+    /**
+     * Sends the container data from {@code data} as it is read, without holding it in memory. The bytes are
+     * stored as they are; {@link #writeData(String, String, String)} stores the UTF-8 encoding of its string.
+     * The stream is read to the end but not closed.
+     */
+    public String writeData(String ticket, InputStream data, String container) throws IOException {
+        return makeRequest(writeRequest(ticket, data, container)).getData();
+    }
+
+    public String writeData(String ticket, InputStream data) throws IOException {
+        return writeData(ticket, data, null);
+    }
+
+    static SPFERequest writeRequest(String ticket, ByteBuffer data, String container) {
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("ticket", ticket);
+        if (container != null && !container.isEmpty()) {
+            parameters.put("container", container);
+        }
+        SPFERequest request = new SPFERequest("POST", "write", parameters);
+        request.dataBuffer = data.duplicate();
+        return request;
+    }
+
+    /**
+     * Stores {@code data} as it is, with no charset conversion; read it back with {@link #readDataBytes}.
+     */
+    public String writeData(String ticket, byte[] data, String container) throws IOException {
+        return makeRequest(writeRequest(ticket, ByteBuffer.wrap(data), container)).getData();
+    }
+
+    public String writeData(String ticket, byte[] data) throws IOException {
+        return writeData(ticket, data, null);
+    }
+
+    /**
+     * Stores the remaining bytes of {@code data}. The position of the buffer is left as it is.
+     */
+    public String writeData(String ticket, ByteBuffer data, String container) throws IOException {
+        return makeRequest(writeRequest(ticket, data, container)).getData();
+    }
+
+    public String writeData(String ticket, ByteBuffer data) throws IOException {
+        return writeData(ticket, data, null);
+    }
+
+    static SPFERequest writeAndUnlockRequest(String ticket, String data, String container) {
         Map<String, String> parameters = new HashMap<>();
         parameters.put("ticket", ticket);
         parameters.put("data", data);
@@ -507,34 +1547,46 @@ public class WWPassConnection {
             parameters.put("container", container);
         }
         parameters.put("unlock", "1");
-        return makeRequest("POST", "write", parameters).getData();
+        return new SPFERequest("POST", "write", parameters);
+    }
+
+    public String writeDataAndUnlock(String ticket, String data, String container) throws IOException {
+        return makeRequest(writeAndUnlockRequest(ticket, data, container)).getData();
     }
 
     public String writeDataAndUnlock(String ticket, String data) throws IOException {
         return writeDataAndUnlock(ticket, data, null);
     }
 
-    public String lock(String ticket, int lockTimeout, String lockid) throws IOException {
+    static SPFERequest lockRequest(String ticket, int lockTimeout, String lockid) {
         Map<String, String> parameters = new HashMap<>();
         parameters.put("ticket", ticket);
         parameters.put("to", Integer.toString(lockTimeout));
         if (lockid != null && !lockid.isEmpty()) {
             parameters.put("lockid", lockid);
         }
-        return makeRequest("GET", "lock", parameters).getData();
+        return new SPFERequest("GET", "lock", parameters);
+    }
+
+    public String lock(String ticket, int lockTimeout, String lockid) throws IOException {
+        return makeRequest(lockRequest(ticket, lockTimeout, lockid)).getData();
     }
 
     public String lock(String ticket, int lockTimeout) throws IOException {
         return lock(ticket, lockTimeout, null);
     }
 
-    public String unlock(String ticket, String lockid) throws IOException {
+    static SPFERequest unlockRequest(String ticket, String lockid) {
         Map<String, String> parameters = new HashMap<>();
         parameters.put("ticket", ticket);
         if (lockid != null && !lockid.isEmpty()) {
             parameters.put("lockid", lockid);
         }
-        return makeRequest("GET", "unlock", parameters).getData();
+        return new SPFERequest("GET", "unlock", parameters);
+    }
+
+    public String unlock(String ticket, String lockid) throws IOException {
+        return makeRequest(unlockRequest(ticket, lockid)).getData();
     }
 
     public String unlock(String ticket) throws IOException {
@@ -543,63 +1595,171 @@ public class WWPassConnection {
 
     // Functions to work with SP-only containers
 
-    public String createPFID(String data) throws IOException {
+    static SPFERequest createPFIDRequest(String data) {
         Map<String, String> parameters = new HashMap<>();
         if (data != null && !data.isEmpty()) {
             parameters.put("data", data);
         }
-        return makeRequest("POST", "sp/create", parameters).getData();
+        return new SPFERequest("POST", "sp/create", parameters);
+    }
+
+    public String createPFID(String data) throws IOException {
+        return makeRequest(createPFIDRequest(data)).getData();
     }
 
     public String createPFID() throws IOException {
         return createPFID(null);
     }
 
+    static SPFERequest createPFIDRequest(ByteBuffer data) {
+        SPFERequest request = new SPFERequest("POST", "sp/create", new HashMap<>());
+        if (data != null && data.hasRemaining()) {
+            request.dataBuffer = data.duplicate();
+        }
+        return request;
+    }
+
+    /** Binary variant of {@link #createPFID(String)}: {@code data} is stored as it is. */
+    public String createPFIDBytes(byte[] data) throws IOException {
+        return makeRequest(createPFIDRequest(data != null ? ByteBuffer.wrap(data) : null)).getData();
+    }
+
+    /** Stores the remaining bytes of {@code data}, see {@link #writeData(String, ByteBuffer, String)}. */
+    public String createPFIDBytes(ByteBuffer data) throws IOException {
+        return makeRequest(createPFIDRequest(data)).getData();
+    }
+
+    static SPFERequest removePFIDRequest(String pfid) {
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("pfid", pfid);
+        return new SPFERequest("GET", "sp/remove", parameters);
+    }
+
     public String removePFID(String pfid) throws IOException {
+        return makeRequest(removePFIDRequest(pfid)).getData();
+    }
+
+    static SPFERequest readSPRequest(String pfid) {
         Map<String, String> parameters = new HashMap<>();
         parameters.put("pfid", pfid);
-        return makeRequest("GET", "sp/remove", parameters).getData();
+        return new SPFERequest("GET", "sp/read", parameters);
     }
 
     public String readDataSP(String pfid) throws IOException {
+        return makeRequest(readSPRequest(pfid)).getData();
+    }
+
+    static SPFERequest readSPRequest(String pfid, OutputStream output) {
+        SPFERequest request = readSPRequest(pfid);
+        request.dataSink = SPFEStreams.sink(output);
+        return request;
+    }
+
+    /** Streaming variant of {@link #readDataSP(String)}, see {@link #readData(String, String, OutputStream)}. */
+    public void readDataSP(String pfid, OutputStream output) throws IOException {
+        makeRequest(readSPRequest(pfid, output));
+    }
+
+    static SPFERequest readSPBytesRequest(String pfid) {
+        SPFERequest request = readSPRequest(pfid);
+        request.binaryReply = true;
+        return request;
+    }
+
+    /** Binary variant of {@link #readDataSP(String)}, see {@link #readDataBytes(String, String)}. */
+    public byte[] readDataSPBytes(String pfid) throws IOException {
+        return makeRequest(readSPBytesRequest(pfid)).getRawData();
+    }
+
+    /** Binary variant of {@link #readDataSP(String)}, see {@link #readDataBytes(String, String, ByteBuffer)}. */
+    public int readDataSPBytes(String pfid, ByteBuffer target) throws IOException {
+        return put(makeRequest(readSPBytesRequest(pfid)).getRawData(), target);
+    }
+
+    static SPFERequest readSPAndLockRequest(String pfid, int lockTimeout) {
         Map<String, String> parameters = new HashMap<>();
         parameters.put("pfid", pfid);
-        return makeRequest("GET", "sp/read", parameters).getData();
+        parameters.put("to", Integer.toString(lockTimeout));
+        parameters.put("lock", "1");
+        return new SPFERequest("GET", "sp/read", parameters);
     }
 
     public String readDataSPandLock(String pfid, int lockTimeout) throws IOException {
+        return makeRequest(readSPAndLockRequest(pfid, lockTimeout)).getData();
+    }
+
+    static SPFERequest writeSPRequest(String pfid, String data) {
         Map<String, String> parameters = new HashMap<>();
         parameters.put("pfid", pfid);
-        parameters.put("to", Integer.toString(lockTimeout));
-        parameters.put("lock", "1");
-        return makeRequest("GET", "sp/read", parameters).getData();
+        parameters.put("data", data);
+        return new SPFERequest("POST", "sp/write", parameters);
     }
 
     public String writeDataSP(String pfid, String data) throws IOException {
+        return makeRequest(writeSPRequest(pfid, data)).getData();
+    }
+
+    static SPFERequest writeSPRequest(String pfid, InputStream data) {
         Map<String, String> parameters = new HashMap<>();
         parameters.put("pfid", pfid);
-        parameters.put("data", data);
-        return makeRequest("POST", "sp/write", parameters).getData();
+        SPFERequest request = new SPFERequest("POST", "sp/write", parameters);
+        request.dataStream = SPFEStreams.source(data);
+        return request;
     }
 
-    public String writeDataSPandUnlock(String pfid, String data) throws IOException {
+    /** Streaming variant of {@link #writeDataSP(String, String)}, see {@link #writeData(String, InputStream, String)}. */
+    public String writeDataSP(String pfid, InputStream data) throws IOException {
+        return makeRequest(writeSPRequest(pfid, data)).getData();
+    }
+
+    static SPFERequest writeSPRequest(String pfid, ByteBuffer data) {
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("pfid", pfid);
+        SPFERequest request = new SPFERequest("POST", "sp/write", parameters);
+        request.dataBuffer = data.duplicate();
+        return request;
+    }
+
+    /** Binary variant of {@link #writeDataSP(String, String)}, see {@link #writeData(String, byte[], String)}. */
+    public String writeDataSP(String pfid, byte[] data) throws IOException {
+        return makeRequest(writeSPRequest(pfid, ByteBuffer.wrap(data))).getData();
+    }
+
+    /** Binary variant of {@link #writeDataSP(String, String)}, see {@link #writeData(String, ByteBuffer, String)}. */
+    public String writeDataSP(String pfid, ByteBuffer data) throws IOException {
+        return makeRequest(writeSPRequest(pfid, data)).getData();
+    }
+
+    static SPFERequest writeSPAndUnlockRequest(String pfid, String data) {
         Map<String, String> parameters = new HashMap<>();
         parameters.put("pfid", pfid);
         parameters.put("data", data);
         parameters.put("unlock", "1");
-        return makeRequest("POST", "sp/write", parameters).getData();
+        return new SPFERequest("POST", "sp/write", parameters);
     }
 
-    public String lockSP(String lockid, int lockTimeout) throws IOException {
+    public String writeDataSPandUnlock(String pfid, String data) throws IOException {
+        return makeRequest(writeSPAndUnlockRequest(pfid, data)).getData();
+    }
+
+    static SPFERequest lockSPRequest(String lockid, int lockTimeout) {
         Map<String, String> parameters = new HashMap<>();
         parameters.put("lockid", lockid);
         parameters.put("to", Integer.toString(lockTimeout));
-        return makeRequest("GET", "sp/lock", parameters).getData();
+        return new SPFERequest("GET", "sp/lock", parameters);
     }
 
-    public String unlockSP(String lockid) throws IOException {
+    public String lockSP(String lockid, int lockTimeout) throws IOException {
+        return makeRequest(lockSPRequest(lockid, lockTimeout)).getData();
+    }
+
+    static SPFERequest unlockSPRequest(String lockid) {
         Map<String, String> parameters = new HashMap<>();
         parameters.put("lockid", lockid);
-        return makeRequest("GET", "sp/unlock", parameters).getData();
+        return new SPFERequest("GET", "sp/unlock", parameters);
+    }
+
+    public String unlockSP(String lockid) throws IOException {
+        return makeRequest(unlockSPRequest(lockid)).getData();
     }
 }
@@ -0,0 +1,167 @@
+/**
+ * WWPassConnectionRegistry.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Process-wide cache of {@link WWPassConnection} instances.
+ * <p>
+ * Building a connection reads the key and certificate and sets up a fresh {@code SSLContext}, which is far too
+ * expensive to do per HTTP request. The registry builds one connection per combination of certificate, key,
+ * SPFE address and timeout and hands the same instance to every caller. Connections are thread-safe, so the
+ * returned instance can be kept in a servlet field and used from any request thread.
+ */
+public final class WWPassConnectionRegistry {
+
+    private static final ConcurrentMap<Key, CompletableFuture<WWPassConnection>> CONNECTIONS = new ConcurrentHashMap<>();
+
+    private WWPassConnectionRegistry() {
+    }
+
+    private interface Factory {
+        WWPassConnection create() throws IOException, GeneralSecurityException;
+    }
+
+    private static final class Key {
+        private final String certificate;
+        private final String key;
+        private final byte[] certificateEncoded;
+        private final byte[] keyDigest;  // Key material itself is not kept around
+        private final int timeoutSec;
+        private final String spfeAddr;
+
+        Key(String certificate, String key, byte[] certificateEncoded, byte[] keyDigest, int timeoutSec, String spfeAddr) {
+            this.certificate = certificate;
+            this.key = key;
+            this.certificateEncoded = certificateEncoded;
+            this.keyDigest = keyDigest;
+            this.timeoutSec = timeoutSec;
+            this.spfeAddr = spfeAddr;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return timeoutSec == other.timeoutSec && spfeAddr.equals(other.spfeAddr)
+                    && Objects.equals(certificate, other.certificate) && Objects.equals(key, other.key)
+                    && Arrays.equals(certificateEncoded, other.certificateEncoded) && Arrays.equals(keyDigest, other.keyDigest);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = Objects.hash(certificate, key, timeoutSec, spfeAddr);
+            hash = hash * 31 + Arrays.hashCode(certificateEncoded);
+            return hash * 31 + Arrays.hashCode(keyDigest);
+        }
+    }
+
+    private static WWPassConnection get(Key key, Factory factory) throws IOException, GeneralSecurityException {
+        CompletableFuture<WWPassConnection> existing = CONNECTIONS.get(key);
+        if (existing == null) {
+            CompletableFuture<WWPassConnection> created = new CompletableFuture<>();
+            existing = CONNECTIONS.putIfAbsent(key, created);
+            if (existing == null) {
+                // This thread builds the connection, concurrent callers with the same key wait for it
+                try {
+                    WWPassConnection connection = factory.create();
+                    created.complete(connection);
+                    return connection;
+                } catch (IOException | GeneralSecurityException | RuntimeException e) {
+                    CONNECTIONS.remove(key, created);
+                    created.completeExceptionally(e);
+                    throw e;
+                }
+            }
+        }
+        try {
+            return existing.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a WWPass connection", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    public static WWPassConnection get(String certFile, String keyFile, int timeoutSec, String spfeAddr) throws IOException, GeneralSecurityException {
+        Key key = new Key(certFile, keyFile, null, null, timeoutSec, spfeAddr);
+        return get(key, () -> new WWPassConnection(certFile, keyFile, timeoutSec, spfeAddr));
+    }
+
+    public static WWPassConnection get(String certFile, String keyFile, String spfeAddr) throws IOException, GeneralSecurityException {
+        return get(certFile, keyFile, WWPassConnection.DEFAULT_TIMEOUT_SEC, spfeAddr);
+    }
+
+    public static WWPassConnection get(String certFile, String keyFile, int timeoutSec) throws IOException, GeneralSecurityException {
+        return get(certFile, keyFile, timeoutSec, WWPassConnection.DEFAULT_SPFE_ADDRESS);
+    }
+
+    public static WWPassConnection get(String certFile, String keyFile) throws IOException, GeneralSecurityException {
+        return get(certFile, keyFile, WWPassConnection.DEFAULT_TIMEOUT_SEC, WWPassConnection.DEFAULT_SPFE_ADDRESS);
+    }
+
+    public static WWPassConnection get(X509Certificate cert, PKCS8EncodedKeySpec key, int timeoutSec, String spfeAddr) throws IOException, GeneralSecurityException {
+        byte[] keyDigest = MessageDigest.getInstance("SHA-256").digest(key.getEncoded());
+        Key registryKey = new Key(null, null, cert.getEncoded(), keyDigest, timeoutSec, spfeAddr);
+        return get(registryKey, () -> new WWPassConnection(cert, key, timeoutSec, spfeAddr));
+    }
+
+    public static WWPassConnection get(X509Certificate cert, PKCS8EncodedKeySpec key, String spfeAddr) throws IOException, GeneralSecurityException {
+        return get(cert, key, WWPassConnection.DEFAULT_TIMEOUT_SEC, spfeAddr);
+    }
+
+    public static WWPassConnection get(X509Certificate cert, PKCS8EncodedKeySpec key, int timeoutSec) throws IOException, GeneralSecurityException {
+        return get(cert, key, timeoutSec, WWPassConnection.DEFAULT_SPFE_ADDRESS);
+    }
+
+    public static WWPassConnection get(X509Certificate cert, PKCS8EncodedKeySpec key) throws IOException, GeneralSecurityException {
+        return get(cert, key, WWPassConnection.DEFAULT_TIMEOUT_SEC, WWPassConnection.DEFAULT_SPFE_ADDRESS);
+    }
+
+    /**
+     * Forgets all cached connections, e.g. after the SP credentials were replaced on disk.
+     * Connections already handed out keep working. To have connections follow the files instead, build them
+     * from a {@link WWPassCredentialSource}.
+     */
+    public static void clear() {
+        CONNECTIONS.clear();
+    }
+}
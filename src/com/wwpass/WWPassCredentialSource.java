@@ -0,0 +1,300 @@
+/**
+ * WWPassCredentialSource.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * SP certificate and key that may be replaced while connections are in use.
+ * <p>
+ * A {@link WWPassConnection} built from a source takes new credentials as soon as they show up, without being
+ * rebuilt: it sets up a new {@code SSLContext} for them and moves calls over gradually. Over the
+ * {@linkplain #setDrainMs drain time} the share of new calls sent with the old credentials falls from all to
+ * none, so that connections are reopened with the new ones a few at a time instead of in one burst of
+ * handshakes. Calls already under way always finish with the credentials they started with. Pooled connections
+ * of the old credentials are closed once the drain time is over.
+ * <p>
+ * Credentials come from files, see {@link #files} and {@link #pkcs12}, or are pushed with {@link #update}. Files
+ * are checked for changes (modification time, size and identity, so that a symbolic link switched to another
+ * file counts) at most once per {@linkplain #setCheckIntervalMs check interval}, by the first call made after
+ * the interval has passed: no thread is started, and a call that finds the files changed takes a few
+ * milliseconds longer. New credentials are only taken if the key matches the certificate and the certificate is
+ * valid, so a certificate written before its key, or one that is not valid yet, is simply picked up at a later
+ * check; the reason it was not is kept in {@link #getLastFailure()}. Files should be replaced by renaming rather
+ * than rewritten in place.
+ * <p>
+ * A source is thread-safe and may be shared by several connections.
+ */
+public final class WWPassCredentialSource {
+
+    public static final long DEFAULT_CHECK_INTERVAL_MS = 10_000;
+    public static final long DEFAULT_DRAIN_MS = 60_000;
+
+    /** One version of the credentials. {@code generation} goes up by one with each replacement. */
+    static final class Credentials {
+        final X509Certificate certificate;
+        final PKCS8EncodedKeySpec key;
+        final long generation;
+
+        Credentials(X509Certificate certificate, PKCS8EncodedKeySpec key, long generation) {
+            this.certificate = certificate;
+            this.key = key;
+            this.generation = generation;
+        }
+    }
+
+    private interface Loader {
+        KeyStore.PrivateKeyEntry load() throws IOException, GeneralSecurityException;
+    }
+
+    private final Path[] files;  // Empty when credentials are only pushed
+    private final Loader loader;  // null when credentials are only pushed
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile Credentials current;
+    private volatile long checkIntervalNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_CHECK_INTERVAL_MS);
+    private volatile long drainNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_DRAIN_MS);
+    private volatile long nextCheckNanos;
+    private volatile Exception lastFailure = null;
+    private List<Object> loadedStamp;  // Guarded by lock
+
+    private WWPassCredentialSource(Path[] files, Loader loader) throws IOException, GeneralSecurityException {
+        this.files = files;
+        this.loader = loader;
+        loadedStamp = stamp();
+        KeyStore.PrivateKeyEntry entry = loader.load();
+        current = new Credentials(certificate(entry), new PKCS8EncodedKeySpec(entry.getPrivateKey().getEncoded()), 0);
+        nextCheckNanos = System.nanoTime() + checkIntervalNanos;
+    }
+
+    private WWPassCredentialSource(X509Certificate cert, PKCS8EncodedKeySpec key) throws GeneralSecurityException {
+        check(cert, key);
+        this.files = new Path[0];
+        this.loader = null;
+        current = new Credentials(cert, key, 0);
+    }
+
+    /** Credentials that only change when {@link #update} is called. */
+    public static WWPassCredentialSource of(X509Certificate cert, PKCS8EncodedKeySpec key) throws GeneralSecurityException {
+        return new WWPassCredentialSource(cert, key);
+    }
+
+    /**
+     * Credentials read from a certificate file, PEM or DER, and a key file, PEM (PKCS#8, PKCS#1 or SEC 1) or
+     * PKCS#8 DER, and read again when either file changes. The key may be RSA, EC or of any other type the JDK
+     * supports for TLS client authentication.
+     */
+    public static WWPassCredentialSource files(String certFile, String keyFile) throws IOException, GeneralSecurityException {
+        return new WWPassCredentialSource(new Path[] { Paths.get(certFile), Paths.get(keyFile) }, () -> {
+            X509Certificate cert = SPFEKeyFiles.readCertificate(certFile);
+            PKCS8EncodedKeySpec key = SPFEKeyFiles.readKey(keyFile);
+            return new KeyStore.PrivateKeyEntry(check(cert, key), new X509Certificate[] { cert });
+        });
+    }
+
+    /** Credentials read from a PKCS#12 file holding one key and its certificate, and read again when it changes. */
+    public static WWPassCredentialSource pkcs12(String file, char[] password) throws IOException, GeneralSecurityException {
+        char[] copy = password.clone();
+        return new WWPassCredentialSource(new Path[] { Paths.get(file) }, () -> {
+            KeyStore.PrivateKeyEntry entry = SPFEKeyFiles.readPKCS12(file, copy);
+            check(certificate(entry), new PKCS8EncodedKeySpec(entry.getPrivateKey().getEncoded()));
+            return entry;
+        });
+    }
+
+    /**
+     * Replaces the credentials. Connections take them with their next call. With file sources, the files are
+     * read again only once they change after this.
+     *
+     * @throws GeneralSecurityException if the key does not match the certificate or the certificate is not valid
+     */
+    public void update(X509Certificate cert, PKCS8EncodedKeySpec key) throws GeneralSecurityException {
+        check(cert, key);
+        lock.lock();
+        try {
+            install(cert, key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks the files now rather than at the next interval, and takes new credentials if they changed. Returns
+     * whether they were replaced; always {@code false} for credentials that are only pushed.
+     */
+    public boolean refresh() throws IOException, GeneralSecurityException {
+        if (loader == null) {
+            return false;
+        }
+        lock.lock();
+        try {
+            nextCheckNanos = System.nanoTime() + checkIntervalNanos;
+            return reloadIfChanged();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** The certificate currently in use. */
+    public X509Certificate getCertificate() {
+        return current.certificate;
+    }
+
+    /** Number of times the credentials have been replaced. */
+    public long getGeneration() {
+        return current.generation;
+    }
+
+    /**
+     * Why the last check of the files or the last setup of new credentials failed, {@code null} if it didn't.
+     * The credentials in use are kept when it does.
+     */
+    public Exception getLastFailure() {
+        return lastFailure;
+    }
+
+    public void setCheckIntervalMs(long checkIntervalMs) {
+        if (checkIntervalMs < 0) {
+            throw new IllegalArgumentException("checkIntervalMs must not be negative");
+        }
+        checkIntervalNanos = TimeUnit.MILLISECONDS.toNanos(checkIntervalMs);
+        nextCheckNanos = System.nanoTime() + checkIntervalNanos;
+    }
+
+    public long getCheckIntervalMs() {
+        return TimeUnit.NANOSECONDS.toMillis(checkIntervalNanos);
+    }
+
+    /** How long calls take to move over to new credentials. 0 moves them all at once. */
+    public void setDrainMs(long drainMs) {
+        if (drainMs < 0) {
+            throw new IllegalArgumentException("drainMs must not be negative");
+        }
+        drainNanos = TimeUnit.MILLISECONDS.toNanos(drainMs);
+    }
+
+    public long getDrainMs() {
+        return TimeUnit.NANOSECONDS.toMillis(drainNanos);
+    }
+
+    long getDrainNanos() {
+        return drainNanos;
+    }
+
+    /** The current credentials, after checking the files if it is time to. Never blocks on another check. */
+    Credentials current() {
+        if (loader != null && System.nanoTime() - nextCheckNanos >= 0 && lock.tryLock()) {
+            try {
+                if (System.nanoTime() - nextCheckNanos >= 0) {
+                    nextCheckNanos = System.nanoTime() + checkIntervalNanos;
+                    reloadIfChanged();
+                }
+            } catch (IOException | GeneralSecurityException | RuntimeException e) {
+                lastFailure = e;
+            } finally {
+                lock.unlock();
+            }
+        }
+        return current;
+    }
+
+    /** Records that a connection could not set up the current credentials. */
+    void failed(Exception e) {
+        lastFailure = e;
+    }
+
+    private boolean reloadIfChanged() throws IOException, GeneralSecurityException {
+        List<Object> stamp = stamp();
+        if (stamp.equals(loadedStamp)) {
+            return false;
+        }
+        KeyStore.PrivateKeyEntry entry = loader.load();  // Throws until both files are in place
+        loadedStamp = stamp;
+        return install(certificate(entry), new PKCS8EncodedKeySpec(entry.getPrivateKey().getEncoded()));
+    }
+
+    /** Takes {@code cert} and {@code key} unless they are the ones in use. Called with the lock held. */
+    private boolean install(X509Certificate cert, PKCS8EncodedKeySpec key) {
+        Credentials previous = current;
+        lastFailure = null;
+        if (previous.certificate.equals(cert) && Arrays.equals(previous.key.getEncoded(), key.getEncoded())) {
+            return false;
+        }
+        current = new Credentials(cert, key, previous.generation + 1);
+        return true;
+    }
+
+    /** What tells a file apart from its next version. */
+    private List<Object> stamp() throws IOException {
+        List<Object> stamp = new ArrayList<>(files.length * 3);
+        for (Path file : files) {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            stamp.add(attributes.lastModifiedTime());
+            stamp.add(attributes.size());
+            stamp.add(attributes.fileKey());
+        }
+        return stamp;
+    }
+
+    private static X509Certificate certificate(KeyStore.PrivateKeyEntry entry) {
+        return (X509Certificate) entry.getCertificate();
+    }
+
+    /**
+     * Checks that {@code key} belongs to {@code cert} and that {@code cert} is valid now. Keys of types with no
+     * known signature algorithm are only checked to be of the certificate's type.
+     */
+    private static PrivateKey check(X509Certificate cert, PKCS8EncodedKeySpec key) throws GeneralSecurityException {
+        cert.checkValidity();
+        PublicKey publicKey = cert.getPublicKey();
+        PrivateKey privateKey = SPFECredentials.privateKey(cert, key);
+        String algorithm = SPFECredentials.signatureAlgorithm(publicKey.getAlgorithm());
+        if (algorithm == null) {
+            return privateKey;
+        }
+        byte[] probe = cert.getEncoded();
+        Signature signer = Signature.getInstance(algorithm);
+        signer.initSign(privateKey);
+        signer.update(probe);
+        byte[] signature = signer.sign();
+        Signature verifier = Signature.getInstance(algorithm);
+        verifier.initVerify(publicKey);
+        verifier.update(probe);
+        if (!verifier.verify(signature)) {
+            throw new GeneralSecurityException("The key does not match the certificate");
+        }
+        return privateKey;
+    }
+}
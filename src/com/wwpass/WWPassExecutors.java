@@ -0,0 +1,66 @@
+/**
+ * WWPassExecutors.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Ready-made executors for {@link WWPassAsyncConnection}, {@link WWPassBatchConnection} and
+ * {@link WWPassTicketPool}.
+ */
+public final class WWPassExecutors {
+
+    private static final class VirtualThreadsHolder {
+        static final Executor EXECUTOR = newVirtualThreadExecutor();
+    }
+
+    private WWPassExecutors() {
+    }
+
+    private static Executor newVirtualThreadExecutor() {
+        ThreadFactory factory = SPFEThreads.virtualThreadFactory("WWPass virtual ");
+        return runnable -> factory.newThread(runnable).start();
+    }
+
+    /** Whether {@link #virtualThreads()} is usable, i.e. the JVM is Java 21 or newer. */
+    public static boolean isVirtualThreadsAvailable() {
+        return SPFEThreads.isVirtualThreadsAvailable();
+    }
+
+    /**
+     * Runs every task on a virtual thread of its own.
+     * <p>
+     * A call blocked on SPFE then parks a virtual thread and frees its carrier, so thousands of calls can be in
+     * flight on a few platform threads, e.g. with
+     * {@code new WWPassBatchConnection(connection, 1000, WWPassExecutors.virtualThreads())}. Nothing in the
+     * library blocks while holding a monitor, so calls don't pin their carriers; give the connection an
+     * {@link SPFEConnectionPool} or the {@link SPFETransport#httpClient() HttpClient transport} sized for the
+     * concurrency. The executor is shared and needs no shutdown.
+     *
+     * @throws UnsupportedOperationException before Java 21
+     */
+    public static Executor virtualThreads() {
+        if (!isVirtualThreadsAvailable()) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or newer");
+        }
+        return VirtualThreadsHolder.EXECUTOR;
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * WWPassLoginFilter.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.io.IOException;
+
+import jakarta.servlet.Filter;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.FilterConfig;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
+
+/**
+ * Lets through requests of users logged in with WWPass and logs in the ones that bring a ticket.
+ * <p>
+ * A request whose session holds {@link WWPassLoginServlet#PUID_ATTRIBUTE} goes down the chain. One with a
+ * {@code ticket} parameter is logged in asynchronously, as by {@link WWPassLoginServlet}, and redirected back to
+ * the same URL without the ticket. Anything else is redirected to the {@code loginPage} init parameter, relative
+ * to the context path, or gets a 401 when there is none.
+ * <p>
+ * Register it in {@code web.xml} with {@code <async-supported>true</async-supported>}. The other init parameters
+ * are those of {@link WWPassLoginServlet}: {@code certFile}, {@code keyFile}, {@code spfeAddress},
+ * {@code timeoutSec} and {@code deadlineMs}.
+ */
+public class WWPassLoginFilter implements Filter {
+
+    private AsyncLogin login;
+    private String loginPage;
+
+    @Override
+    public void init(FilterConfig config) throws ServletException {
+        login = AsyncLogin.configure(config);
+        loginPage = config.getInitParameter("loginPage");
+    }
+
+    @Override
+    public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse, FilterChain chain)
+            throws IOException, ServletException {
+        HttpServletRequest request = (HttpServletRequest) servletRequest;
+        HttpServletResponse response = (HttpServletResponse) servletResponse;
+        HttpSession session = request.getSession(false);
+        if (session != null && session.getAttribute(WWPassLoginServlet.PUID_ATTRIBUTE) != null) {
+            chain.doFilter(request, response);
+            return;
+        }
+        String ticket = request.getParameter("ticket");
+        if (ticket != null && !ticket.isEmpty()) {
+            login.start(request, response, ticket, (req, resp, authentication) ->
+                    resp.sendRedirect(resp.encodeRedirectURL(withoutTicket(req))));
+        } else if (loginPage != null) {
+            response.sendRedirect(response.encodeRedirectURL(request.getContextPath() + loginPage));
+        } else {
+            response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+        }
+    }
+
+    /** The request URL with the {@code ticket} parameter dropped from the query string. */
+    static String withoutTicket(HttpServletRequest request) {
+        StringBuilder url = new StringBuilder(request.getRequestURI());
+        String query = request.getQueryString();
+        if (query != null) {
+            char separator = '?';
+            for (String parameter : query.split("&")) {
+                if (parameter.isEmpty() || parameter.equals("ticket") || parameter.startsWith("ticket=")) {
+                    continue;
+                }
+                url.append(separator).append(parameter);
+                separator = '&';
+            }
+        }
+        return url.toString();
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
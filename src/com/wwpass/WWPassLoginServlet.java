@@ -0,0 +1,103 @@
+/**
+ * WWPassLoginServlet.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.io.IOException;
+
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Logs users in with the ticket WWPass hands back to the browser, without holding a container thread while SPFE
+ * answers.
+ * <p>
+ * A GET with a {@code ticket} parameter puts the request into asynchronous mode, runs {@code putTicket} and
+ * {@code getPUID} through {@link WWPassAsyncConnection#authenticate} and, once both are done, stores the PUID and
+ * the new ticket in the session under {@link #PUID_ATTRIBUTE} and {@link #TICKET_ATTRIBUTE} and redirects to the
+ * success page. The whole login is bounded by a deadline: when it passes, the response is a 504. See
+ * {@link WWPassLoginFilter} for guarding pages instead.
+ * <p>
+ * Register it in {@code web.xml} with {@code <async-supported>true</async-supported>}, on the servlet and on the
+ * filters in front of it. Init parameters:
+ * <ul>
+ * <li>{@code certFile} and {@code keyFile}, the Service Provider certificate and key. Required.</li>
+ * <li>{@code spfeAddress}, {@code timeoutSec}: as for {@link WWPassConnection}.</li>
+ * <li>{@code deadlineMs}, the deadline of the whole login, 5000 by default.</li>
+ * <li>{@code successPath}, where to redirect after the login, relative to the context path. {@code /} by default.</li>
+ * </ul>
+ * The connection is taken from {@link WWPassConnectionRegistry}, so servlets and filters configured with the same
+ * files share one. Needs a Jakarta Servlet 6 container.
+ */
+public class WWPassLoginServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+
+    /** The session attribute the PUID is stored under. */
+    public static final String PUID_ATTRIBUTE = "puid";
+    /** The session attribute the ticket returned by {@code putTicket} is stored under. */
+    public static final String TICKET_ATTRIBUTE = "ticket";
+
+    private transient WWPassAsyncConnection connection;  // Set when constructed in code
+    private long deadlineMs;
+    private String successPath;
+    private transient AsyncLogin login;
+
+    /** Configured from the init parameters. */
+    public WWPassLoginServlet() {
+    }
+
+    /**
+     * Configured in code, for containers set up programmatically. Init parameters other than {@code successPath}
+     * are not read.
+     */
+    public WWPassLoginServlet(WWPassAsyncConnection connection, long deadlineMs, String successPath) {
+        if (deadlineMs <= 0) {
+            throw new IllegalArgumentException("deadlineMs must be positive");
+        }
+        this.connection = connection;
+        this.deadlineMs = deadlineMs;
+        this.successPath = successPath;
+    }
+
+    @Override
+    public void init() throws ServletException {
+        if (connection != null) {
+            login = new AsyncLogin(connection, deadlineMs, getServletContext());
+        } else {
+            login = AsyncLogin.configure(getServletConfig());
+        }
+        if (successPath == null) {
+            String path = getInitParameter("successPath");
+            successPath = path != null ? path : "/";
+        }
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        String ticket = request.getParameter("ticket");
+        if (ticket == null || ticket.isEmpty()) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "No ticket");
+            return;
+        }
+        login.start(request, response, ticket, (req, resp, authentication) ->
+                resp.sendRedirect(resp.encodeRedirectURL(req.getContextPath() + successPath)));
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * WWPassMetrics.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+/**
+ * Instrumentation sink for SPFE calls, see {@link WWPassConnection#setMetrics(WWPassMetrics)}.
+ * <p>
+ * Every call reports {@link #requestStarted}, then the phases it went through, then {@link #requestCompleted}.
+ * Commands are the SPFE command names, e.g. {@code "puid"}, {@code "put"} or {@code "sp/read"}. Methods are
+ * called on the thread making the call and must be thread-safe and cheap; they must not throw.
+ * <p>
+ * {@link #NOOP} is the default. With it the connection does not even read the clock. For an in-memory sink
+ * with per-command counters and latency histograms use {@link WWPassMetricsRecorder}.
+ */
+public interface WWPassMetrics {
+
+    WWPassMetrics NOOP = new WWPassMetrics() {
+    };
+
+    enum Phase {
+        /** Waiting for a free connection in {@link SPFEConnectionPool}. */
+        ACQUIRE,
+        /** TCP connect. With {@code HttpsURLConnection} this also includes the TLS handshake. */
+        CONNECT,
+        /** TLS handshake on a new connection. */
+        HANDSHAKE,
+        /** Sending the request. With {@code HttpsURLConnection} a GET is sent as part of {@link #FIRST_BYTE}. */
+        WRITE,
+        /** Waiting for the reply status line and headers. */
+        FIRST_BYTE,
+        /** Reading and parsing the reply body. */
+        PARSE
+    }
+
+    enum Outcome {
+        SUCCESS,
+        /** SPFE replied with an error or with something that is not an SPFE reply. */
+        PROTOCOL_ERROR,
+        /** The call failed before a reply could be read: network error, timeout, HTTP error status. */
+        IO_ERROR,
+        /** The call was not sent, see {@link SPFEAdmissionControl}. */
+        REJECTED
+    }
+
+    default void requestStarted(String command) {
+    }
+
+    default void phaseCompleted(String command, Phase phase, long nanos) {
+    }
+
+    default void requestCompleted(String command, Outcome outcome, long nanos) {
+    }
+}
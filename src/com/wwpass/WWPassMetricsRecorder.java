@@ -0,0 +1,168 @@
+/**
+ * WWPassMetricsRecorder.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory {@link WWPassMetrics}: per-command outcome counters, in-flight gauges and a {@link LatencyHistogram}
+ * for the whole call and for each {@link WWPassMetrics.Phase}.
+ * <p>
+ * Meant to be scraped periodically, e.g. from a monitoring endpoint: {@link #getCommands()} for the raw numbers,
+ * {@link #toString()} for a human-readable report. One recorder may be shared by several connections.
+ */
+public final class WWPassMetricsRecorder implements WWPassMetrics {
+
+    public static final class CommandMetrics {
+        private final LongAdder successes = new LongAdder();
+        private final LongAdder protocolErrors = new LongAdder();
+        private final LongAdder ioErrors = new LongAdder();
+        private final LongAdder rejections = new LongAdder();
+        private final AtomicLong inFlight = new AtomicLong();
+        private final LatencyHistogram total = new LatencyHistogram();
+        private final Map<Phase, LatencyHistogram> phases = new EnumMap<>(Phase.class);
+
+        CommandMetrics() {
+            for (Phase phase : Phase.values()) {
+                phases.put(phase, new LatencyHistogram());
+            }
+        }
+
+        public long getSuccessCount() {
+            return successes.sum();
+        }
+
+        public long getProtocolErrorCount() {
+            return protocolErrors.sum();
+        }
+
+        public long getIOErrorCount() {
+            return ioErrors.sum();
+        }
+
+        public long getRejectedCount() {
+            return rejections.sum();
+        }
+
+        /** Calls started but not completed yet. */
+        public long getInFlight() {
+            return inFlight.get();
+        }
+
+        /** Whole-call latency, from {@code requestStarted} to {@code requestCompleted}, whatever the outcome. */
+        public LatencyHistogram getLatency() {
+            return total;
+        }
+
+        public LatencyHistogram getLatency(Phase phase) {
+            return phases.get(phase);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder report = new StringBuilder();
+            report.append("success=").append(getSuccessCount())
+                    .append(", protocolError=").append(getProtocolErrorCount())
+                    .append(", ioError=").append(getIOErrorCount())
+                    .append(", rejected=").append(getRejectedCount())
+                    .append(", inFlight=").append(getInFlight())
+                    .append("\n  total: ").append(total);
+            for (Map.Entry<Phase, LatencyHistogram> entry : phases.entrySet()) {
+                if (entry.getValue().getCount() > 0) {
+                    report.append("\n  ").append(entry.getKey().name().toLowerCase()).append(": ").append(entry.getValue());
+                }
+            }
+            return report.toString();
+        }
+    }
+
+    private final ConcurrentMap<String, CommandMetrics> commands = new ConcurrentHashMap<>();
+
+    private CommandMetrics command(String command) {
+        CommandMetrics metrics = commands.get(command);
+        return metrics != null ? metrics : commands.computeIfAbsent(command, c -> new CommandMetrics());
+    }
+
+    @Override
+    public void requestStarted(String command) {
+        command(command).inFlight.incrementAndGet();
+    }
+
+    @Override
+    public void phaseCompleted(String command, Phase phase, long nanos) {
+        command(command).phases.get(phase).record(nanos);
+    }
+
+    @Override
+    public void requestCompleted(String command, Outcome outcome, long nanos) {
+        CommandMetrics metrics = command(command);
+        metrics.inFlight.decrementAndGet();
+        metrics.total.record(nanos);
+        switch (outcome) {
+            case SUCCESS:
+                metrics.successes.increment();
+                break;
+            case PROTOCOL_ERROR:
+                metrics.protocolErrors.increment();
+                break;
+            case REJECTED:
+                metrics.rejections.increment();
+                break;
+            default:
+                metrics.ioErrors.increment();
+                break;
+        }
+    }
+
+    /** Metrics of every command called so far, by command name. */
+    public Map<String, CommandMetrics> getCommands() {
+        return Collections.unmodifiableMap(commands);
+    }
+
+    /** Metrics of one command, or {@code null} if it was never called. */
+    public CommandMetrics getCommand(String command) {
+        return commands.get(command);
+    }
+
+    /** Calls in flight over all commands. */
+    public long getInFlight() {
+        long inFlight = 0;
+        for (CommandMetrics metrics : commands.values()) {
+            inFlight += metrics.getInFlight();
+        }
+        return inFlight;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<String, CommandMetrics> entry : new TreeMap<>(commands).entrySet()) {
+            report.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+        }
+        return report.toString();
+    }
+}
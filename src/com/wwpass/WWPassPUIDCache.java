@@ -0,0 +1,264 @@
+/**
+ * WWPassPUIDCache.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded in-memory cache of PUIDs by ticket, in front of {@link WWPassConnection#getPUID(String, String)}.
+ * <p>
+ * A PUID is kept for as long as its ticket is valid. The ticket's lifetime is known when the ticket was issued
+ * by {@code getTicket} or {@code putTicket} on a connection using this cache; for other tickets
+ * {@code defaultTtlMs} is assumed. When the cache is full the least recently used entry goes. Concurrent
+ * lookups of a ticket that is not cached yet make a single SPFE call. Failed lookups are not cached.
+ * <p>
+ * The cache is thread-safe and may be shared by several connections as long as they are for the same SP,
+ * since PUIDs are SP-specific.
+ *
+ * @see WWPassConnection#setPUIDCache(WWPassPUIDCache)
+ */
+public final class WWPassPUIDCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 10_000;
+    /** Lifetime SPFE gives tickets when none is requested. */
+    public static final long DEFAULT_TTL_MS = 600_000;
+
+    private static final class CachedPUID {
+        final String puid;
+        final long expiresAtNanos;
+
+        CachedPUID(String puid, long expiresAtNanos) {
+            this.puid = puid;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+
+    private static final class Key {
+        final String ticket;
+        final String authType;
+
+        Key(String ticket, String authType) {
+            this.ticket = ticket;
+            this.authType = authType != null ? authType : "";
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return ticket.equals(other.ticket) && authType.equals(other.authType);
+        }
+
+        @Override
+        public int hashCode() {
+            return ticket.hashCode() * 31 + authType.hashCode();
+        }
+    }
+
+    private final int maxEntries;
+    private final long defaultTtlNanos;
+
+    // Access-ordered, so iteration starts at the least recently used entry. Both maps are guarded by lock.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<Key, CachedPUID> puids;
+    private final LinkedHashMap<String, Long> ticketExpiry;
+    private final SingleFlight<Key, String> loads = new SingleFlight<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public WWPassPUIDCache(int maxEntries, long defaultTtlMs) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        if (defaultTtlMs < 1) {
+            throw new IllegalArgumentException("defaultTtlMs must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.defaultTtlNanos = TimeUnit.MILLISECONDS.toNanos(defaultTtlMs);
+        this.puids = new LinkedHashMap<Key, CachedPUID>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CachedPUID> eldest) {
+                return size() > WWPassPUIDCache.this.maxEntries;
+            }
+        };
+        this.ticketExpiry = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > WWPassPUIDCache.this.maxEntries;
+            }
+        };
+    }
+
+    public WWPassPUIDCache(int maxEntries) {
+        this(maxEntries, DEFAULT_TTL_MS);
+    }
+
+    public WWPassPUIDCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MS);
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getDefaultTtlMs() {
+        return TimeUnit.NANOSECONDS.toMillis(defaultTtlNanos);
+    }
+
+    /** Lookups answered from the cache, including the ones that waited for a concurrent lookup of the same ticket. */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /** Lookups that called SPFE. */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return puids.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Forgets the PUIDs of {@code ticket}, e.g. after the user logged out. */
+    public void invalidate(String ticket) {
+        lock.lock();
+        try {
+            puids.keySet().removeIf(key -> key.ticket.equals(ticket));
+            ticketExpiry.remove(ticket);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void clear() {
+        lock.lock();
+        try {
+            puids.clear();
+            ticketExpiry.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Remembers how long a ticket just issued by SPFE is valid. */
+    void ticketIssued(String ticket, Integer ttlSec) {
+        if (ticket == null || ttlSec == null) {
+            return;
+        }
+        long expiresAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(ttlSec);
+        lock.lock();
+        try {
+            ticketExpiry.put(ticket, expiresAt);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** The cached PUID, or {@code null}. */
+    String getIfPresent(String ticket, String authType) {
+        Key key = new Key(ticket, authType);
+        String puid = lookup(key, System.nanoTime());
+        if (puid != null) {
+            hits.increment();
+        }
+        return puid;
+    }
+
+    /**
+     * The cached PUID, or the one {@code loader} looks up. A caller that finds the same lookup in flight waits for
+     * it instead, but no longer than {@code deadline}, if any.
+     */
+    String get(String ticket, String authType, SingleFlight.Loader<String> loader, SPFEDeadline deadline)
+            throws IOException {
+        Key key = new Key(ticket, authType);
+        String puid = lookup(key, System.nanoTime());
+        if (puid != null) {
+            hits.increment();
+            return puid;
+        }
+        boolean[] loaded = { false };
+        puid = loads.execute(key, () -> {
+            loaded[0] = true;
+            String value = loader.load();
+            store(key, value);
+            return value;
+        }, deadline);
+        if (loaded[0]) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return puid;
+    }
+
+    /** Remembers a PUID that was looked up without {@link #get}, by a call that doesn't block; a miss. */
+    void loaded(String ticket, String authType, String puid) {
+        misses.increment();
+        store(new Key(ticket, authType), puid);
+    }
+
+    private String lookup(Key key, long now) {
+        lock.lock();
+        try {
+            CachedPUID entry = puids.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (now - entry.expiresAtNanos >= 0) {
+                puids.remove(key);
+                return null;
+            }
+            return entry.puid;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void store(Key key, String puid) {
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            Long ticketExpiresAt = ticketExpiry.get(key.ticket);
+            long expiresAt = ticketExpiresAt != null ? ticketExpiresAt : now + defaultTtlNanos;
+            if (expiresAt - now > 0) {
+                puids.put(key, new CachedPUID(puid, expiresAt));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,340 @@
+/**
+ * WWPassTicketPool.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.wwpass.WWPassConnection.WWPassReply;
+
+/**
+ * Supplier of fresh SPFE tickets from a pool that is refilled in the background, so that rendering a login page
+ * does not wait for a {@code get} round trip.
+ * <p>
+ * There is one pool of up to {@code poolSize} tickets per combination of {@code auth_type} and {@code ttl},
+ * created on the first request for it or by {@link #prefill}. A ticket is handed out at most once; tickets with
+ * less than {@code minRemainingTtlMs} left are thrown away rather than handed out. When a pool is empty the ticket
+ * is fetched synchronously, exactly as {@link WWPassConnection#getTicket} would.
+ * <p>
+ * Keeping tickets ready costs SPFE calls even when nobody logs in: every pooled ticket is replaced once it gets
+ * too old, i.e. about every {@code ttl - minRemainingTtlMs}. Tickets that live no longer than
+ * {@code minRemainingTtlMs} would be too old as soon as they arrive; they are not pooled but fetched on every
+ * request, and so is a {@code ttl} for which SPFE hands out such tickets. Tickets carrying a transaction message
+ * cannot be pooled; get those from the connection directly.
+ */
+public final class WWPassTicketPool implements Closeable {
+
+    public static final int DEFAULT_POOL_SIZE = 8;
+    public static final long DEFAULT_MIN_REMAINING_TTL_MS = 60_000;
+    // Ticket lifetime SPFE uses when none is requested and none is reported
+    private static final long DEFAULT_TICKET_TTL_MS = WWPassPUIDCache.DEFAULT_TTL_MS;
+    private static final long MAINTENANCE_PERIOD_MS = 1_000;
+
+    private static final ScheduledExecutorService MAINTENANCE = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "WWPass ticket pool maintenance");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final class DefaultExecutorHolder {
+        static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactoryImpl());
+    }
+
+    private static final class ThreadFactoryImpl implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "WWPass ticket pool refill " + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    private static final class Key {
+        final String authType;
+        final int ttl;
+
+        Key(String authType, int ttl) {
+            this.authType = authType != null && !authType.isEmpty() ? authType : null;
+            this.ttl = ttl;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return ttl == other.ttl && Objects.equals(authType, other.authType);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(authType) * 31 + ttl;
+        }
+    }
+
+    private static final class PooledTicket {
+        final WWPassReply reply;
+        final long expiresAtNanos;
+
+        PooledTicket(WWPassReply reply, long expiresAtNanos) {
+            this.reply = reply;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+
+    private final class Bucket {
+        final Key key;
+        final ConcurrentLinkedQueue<PooledTicket> tickets = new ConcurrentLinkedQueue<>();
+        final AtomicInteger size = new AtomicInteger();  // Pooled plus being fetched
+        final AtomicBoolean refilling = new AtomicBoolean();
+        volatile boolean unpoolable = false;  // SPFE's tickets are too old on arrival, see refill()
+
+        Bucket(Key key) {
+            this.key = key;
+        }
+
+        PooledTicket poll(long now) {
+            PooledTicket ticket;
+            while ((ticket = tickets.poll()) != null) {
+                size.decrementAndGet();
+                if (ticket.expiresAtNanos - now > minRemainingNanos) {
+                    return ticket;
+                }
+                discarded.increment();
+            }
+            return null;
+        }
+
+        void dropStale(long now) {
+            for (Iterator<PooledTicket> iterator = tickets.iterator(); iterator.hasNext(); ) {
+                PooledTicket ticket = iterator.next();
+                if (ticket.expiresAtNanos - now <= minRemainingNanos && tickets.remove(ticket)) {
+                    size.decrementAndGet();
+                    discarded.increment();
+                }
+            }
+        }
+
+        void refillAsync() {
+            if (closed || unpoolable || size.get() >= poolSize || !refilling.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                executor.execute(this::refill);
+            } catch (RejectedExecutionException e) {
+                refilling.set(false);
+            }
+        }
+
+        private void refill() {
+            try {
+                while (!closed && size.get() < poolSize) {
+                    WWPassReply reply;
+                    try {
+                        reply = fetch(key);
+                    } catch (IOException | RuntimeException e) {
+                        refillFailures.increment();
+                        return;  // Next maintenance run tries again
+                    }
+                    long expiresAtNanos = expiry(reply, key);
+                    if (expiresAtNanos - System.nanoTime() <= minRemainingNanos) {
+                        // Would be thrown away right away, and so would every replacement
+                        discarded.increment();
+                        unpoolable = true;
+                        return;
+                    }
+                    size.incrementAndGet();
+                    tickets.add(new PooledTicket(reply, expiresAtNanos));
+                }
+            } finally {
+                refilling.set(false);
+            }
+        }
+    }
+
+    private final WWPassConnection connection;
+    private final int poolSize;
+    private final long minRemainingNanos;
+    private final Executor executor;
+    private final ConcurrentMap<Key, Bucket> buckets = new ConcurrentHashMap<>();
+    private final ScheduledFuture<?> maintenance;
+    private volatile boolean closed = false;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder discarded = new LongAdder();
+    private final LongAdder refillFailures = new LongAdder();
+
+    /**
+     * @param executor runs the background {@code get} calls
+     */
+    public WWPassTicketPool(WWPassConnection connection, int poolSize, long minRemainingTtlMs, Executor executor) {
+        if (connection == null || executor == null) {
+            throw new NullPointerException("connection and executor are required");
+        }
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("poolSize must be positive");
+        }
+        if (minRemainingTtlMs < 0) {
+            throw new IllegalArgumentException("minRemainingTtlMs must not be negative");
+        }
+        this.connection = connection;
+        this.poolSize = poolSize;
+        this.minRemainingNanos = TimeUnit.MILLISECONDS.toNanos(minRemainingTtlMs);
+        this.executor = executor;
+        maintenance = MAINTENANCE.scheduleWithFixedDelay(this::maintain, MAINTENANCE_PERIOD_MS, MAINTENANCE_PERIOD_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public WWPassTicketPool(WWPassConnection connection, int poolSize, long minRemainingTtlMs) {
+        this(connection, poolSize, minRemainingTtlMs, DefaultExecutorHolder.EXECUTOR);
+    }
+
+    public WWPassTicketPool(WWPassConnection connection) {
+        this(connection, DEFAULT_POOL_SIZE, DEFAULT_MIN_REMAINING_TTL_MS, DefaultExecutorHolder.EXECUTOR);
+    }
+
+    public WWPassConnection getConnection() {
+        return connection;
+    }
+
+    /** Tickets handed out from a pool. */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /** Tickets fetched synchronously because the pool was empty or the tickets asked for cannot be pooled. */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /** Pooled tickets thrown away for being too close to expiry. */
+    public long getDiscardedCount() {
+        return discarded.sum();
+    }
+
+    public long getRefillFailureCount() {
+        return refillFailures.sum();
+    }
+
+    /**
+     * Starts filling the pool for {@code auth_type} and {@code ttl} ahead of the first request.
+     *
+     * @throws IllegalArgumentException if {@code ttl} is no longer than {@code minRemainingTtlMs}
+     */
+    public void prefill(String auth_type, int ttl) {
+        if (!isPoolable(ttl)) {
+            throw new IllegalArgumentException("Tickets living " + ttl + " s would be too old for the pool on arrival");
+        }
+        bucket(new Key(auth_type, ttl)).refillAsync();
+    }
+
+    public WWPassReply getTicket(String auth_type, int ttl) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Ticket pool is closed");
+        }
+        Key key = new Key(auth_type, ttl);
+        if (!isPoolable(ttl)) {
+            misses.increment();
+            return fetch(key);
+        }
+        Bucket bucket = bucket(key);
+        if (bucket.unpoolable) {
+            misses.increment();
+            return fetch(key);
+        }
+        PooledTicket ticket = bucket.poll(System.nanoTime());
+        bucket.refillAsync();
+        if (ticket != null) {
+            hits.increment();
+            return ticket.reply;
+        }
+        misses.increment();
+        return fetch(key);
+    }
+
+    public String getTicket() throws IOException {
+        return getTicket(null, 0).getData();
+    }
+
+    public String getTicket(int ttl) throws IOException {
+        return getTicket(null, ttl).getData();
+    }
+
+    /** Stops refilling. Pooled tickets are dropped; they simply expire at SPFE. */
+    @Override
+    public void close() {
+        closed = true;
+        maintenance.cancel(false);
+        buckets.clear();
+    }
+
+    /** Whether tickets of {@code ttl} seconds, 0 for SPFE's default, outlive {@code minRemainingTtlMs}. */
+    private boolean isPoolable(int ttl) {
+        return ttl <= 0 || TimeUnit.SECONDS.toNanos(ttl) > minRemainingNanos;
+    }
+
+    private Bucket bucket(Key key) {
+        Bucket bucket = buckets.get(key);
+        return bucket != null ? bucket : buckets.computeIfAbsent(key, Bucket::new);
+    }
+
+    private WWPassReply fetch(Key key) throws IOException {
+        return connection.getTicket(key.authType, key.ttl, null, null);
+    }
+
+    private static long expiry(WWPassReply reply, Key key) {
+        long ttlMs;
+        if (reply.getTtl() != null) {
+            ttlMs = TimeUnit.SECONDS.toMillis(reply.getTtl());
+        } else if (key.ttl > 0) {
+            ttlMs = TimeUnit.SECONDS.toMillis(key.ttl);
+        } else {
+            ttlMs = DEFAULT_TICKET_TTL_MS;
+        }
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttlMs);
+    }
+
+    private void maintain() {
+        long now = System.nanoTime();
+        for (Bucket bucket : buckets.values()) {
+            bucket.dropStale(now);
+            bucket.refillAsync();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * WWPassTlsOptions.java
+ * <p>
+ * WWPass Service Provider SDK
+ *
+ * @copyright (c) WWPass Corporation, 2012
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wwpass;
+
+import java.util.Arrays;
+
+/**
+ * TLS settings of the connections to SPFE, given to the {@link WWPassConnection} constructor.
+ * <p>
+ * By default the JDK's own choices apply. {@link #withTls13Preferred()} enables TLS 1.3 ahead of TLS 1.2 where the
+ * JDK has it, which Java 8 doesn't do on the client side by default; a TLS 1.3 handshake takes one round trip less.
+ * {@link #withProtocols} names the protocols outright instead. The session cache size and timeout bound how many
+ * TLS sessions are kept for resumption and for how long: a resumed handshake skips the certificate exchange and
+ * the signatures. A negative value keeps the JDK's default.
+ * <p>
+ * Instances are immutable; the {@code with} methods return modified copies.
+ */
+public final class WWPassTlsOptions {
+
+    private static final String[] TLS_1_3_PREFERRED = { "TLSv1.3", "TLSv1.2" };
+
+    private final String[] protocols;  // null for the JDK's defaults
+    private final boolean tls13Preferred;
+    private final int sessionCacheSize;
+    private final int sessionTimeoutSec;
+
+    /** The JDK's defaults. */
+    public WWPassTlsOptions() {
+        this(null, false, -1, -1);
+    }
+
+    private WWPassTlsOptions(String[] protocols, boolean tls13Preferred, int sessionCacheSize, int sessionTimeoutSec) {
+        this.protocols = protocols;
+        this.tls13Preferred = tls13Preferred;
+        this.sessionCacheSize = sessionCacheSize;
+        this.sessionTimeoutSec = sessionTimeoutSec;
+    }
+
+    /** The protocols given to {@link #withProtocols}, {@code null} if none were. */
+    public String[] getProtocols() {
+        return protocols != null ? protocols.clone() : null;
+    }
+
+    public boolean isTls13Preferred() {
+        return tls13Preferred;
+    }
+
+    public int getSessionCacheSize() {
+        return sessionCacheSize;
+    }
+
+    public int getSessionTimeoutSec() {
+        return sessionTimeoutSec;
+    }
+
+    /**
+     * Enables exactly {@code protocols}, e.g. {@code "TLSv1.3", "TLSv1.2"}. Setting up the connection fails if the
+     * JDK doesn't support one of them. Pass nothing to go back to the defaults.
+     */
+    public WWPassTlsOptions withProtocols(String... protocols) {
+        String[] copy = protocols != null && protocols.length > 0 ? protocols.clone() : null;
+        return new WWPassTlsOptions(copy, tls13Preferred, sessionCacheSize, sessionTimeoutSec);
+    }
+
+    /** Enables TLS 1.3 and TLS 1.2, 1.3 first, or only TLS 1.2 on a JDK without 1.3. Ignored with {@link #withProtocols}. */
+    public WWPassTlsOptions withTls13Preferred() {
+        return new WWPassTlsOptions(protocols, true, sessionCacheSize, sessionTimeoutSec);
+    }
+
+    /** Maximum number of TLS sessions kept for resumption, 0 for no limit. */
+    public WWPassTlsOptions withSessionCacheSize(int sessionCacheSize) {
+        return new WWPassTlsOptions(protocols, tls13Preferred, sessionCacheSize, sessionTimeoutSec);
+    }
+
+    /** How long a TLS session may be resumed, 0 for no limit. */
+    public WWPassTlsOptions withSessionTimeoutSec(int sessionTimeoutSec) {
+        return new WWPassTlsOptions(protocols, tls13Preferred, sessionCacheSize, sessionTimeoutSec);
+    }
+
+    /** The protocols to enable out of those the JDK {@code supported}, {@code null} for its defaults. */
+    String[] enabledProtocols(String[] supported) {
+        if (protocols != null) {
+            return protocols.clone();
+        }
+        if (!tls13Preferred) {
+            return null;
+        }
+        return Arrays.asList(supported).contains(TLS_1_3_PREFERRED[0]) ? TLS_1_3_PREFERRED.clone()
+                : new String[] { TLS_1_3_PREFERRED[1] };
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof WWPassTlsOptions)) {
+            return false;
+        }
+        WWPassTlsOptions other = (WWPassTlsOptions) o;
+        return Arrays.equals(protocols, other.protocols) && tls13Preferred == other.tls13Preferred
+                && sessionCacheSize == other.sessionCacheSize && sessionTimeoutSec == other.sessionTimeoutSec;
+    }
+
+    @Override
+    public int hashCode() {
+        return ((Arrays.hashCode(protocols) * 31 + Boolean.hashCode(tls13Preferred)) * 31 + sessionCacheSize) * 31
+                + sessionTimeoutSec;
+    }
+
+    @Override
+    public String toString() {
+        return "protocols=" + (protocols != null ? String.join(",", protocols) : "default")
+                + ", tls13Preferred=" + tls13Preferred + ", sessionCacheSize=" + sessionCacheSize
+                + ", sessionTimeoutSec=" + sessionTimeoutSec;
+    }
+}
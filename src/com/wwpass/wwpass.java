@@ -4,6 +4,7 @@ import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.util.Arrays;
 
 import jakarta.servlet.RequestDispatcher;
@@ -16,6 +17,9 @@ import jakarta.servlet.http.HttpSession;
 
 /**
  * Servlet implementation class wwpass
+ * <p>
+ * Logs in on the container thread, for clarity. {@link WWPassLoginServlet} and {@link WWPassLoginFilter} do the
+ * same without blocking it.
  */
 @SuppressWarnings("unused")
 @WebServlet("/wwpass")
@@ -28,9 +32,8 @@ public class wwpass extends HttpServlet {
     final String keyfile = "C:/sdk-test/SDK_Test.key";
     final String cafile = "C:/sdk-test/wwpass_sp_ca.crt";
 
-    String puid = null;
-    String ticket = null;
-    String newTicket = null;
+    // Shared by all requests: WWPassConnection is thread-safe and expensive to build
+    private transient WWPassConnection connection;
 
     //----------------------------------------------------------------------------------------------------------------------------------------------------------------------
 
@@ -42,6 +45,18 @@ public class wwpass extends HttpServlet {
         // TODO Auto-generated constructor stub
     }
 
+    /**
+     * @see HttpServlet#init()
+     */
+    @Override
+    public void init() throws ServletException {
+        try {
+            connection = WWPassConnectionRegistry.get(certfile, keyfile);     // Authenticate in WWPass once per application
+        } catch (IOException | GeneralSecurityException e) {
+            throw new ServletException("Unable to set up WWPass connection", e);
+        }
+    }
+
     /**
      * @see HttpServlet#doGet(HttpServletRequest request, HttpServletResponse response)
      */
@@ -68,14 +83,13 @@ public class wwpass extends HttpServlet {
                 Our app will authenticate itself in WWPass and send the ticket
                 On success the application will be allowed to obtain this user PUID
 --------------------------------------------------------------------------------------------------------------------------------------*/
-                ticket = request.getParameter("ticket");              // GET ticket and store in String
-                WWPassConnection cls;                                       // Load WWPass library
+                String ticket = request.getParameter("ticket");       // GET ticket and store in String
                 try {
-                    cls = new WWPassConnection(SP_name, SP_name, SP_name);  // Authenticate in WWPass
-                    newTicket = cls.putTicket(ticket);                      // Get new ticket from putTicket;
-                    puid = cls.getPUID(newTicket);                          // Get the PUID
+                    WWPassAuthentication login = connection.authenticate(ticket);  // putTicket and getPUID in one go
+                    String newTicket = login.getTicket();                   // New ticket from putTicket
+                    String puid = login.getPUID();                          // The PUID
                     session.setAttribute("puid", puid);               // Set PUID to the current session
-                    tester();                                               // Test read/write functions
+                    tester(newTicket);                                      // Test read/write functions
                     RequestDispatcher RequestDispatcherObj = request.getRequestDispatcher("/wwpass");
                     RequestDispatcherObj.forward(request, response);        // Refresh the current servlet while retaining the session
                 } catch (Exception e) {
@@ -112,8 +126,8 @@ public class wwpass extends HttpServlet {
     int i = 0;
 
     //----------------------------Function for read/write testing---------------------------------------------------------
-    public void tester() throws Exception {
-        WWPassConnection cls = new WWPassConnection(certfile, keyfile);
+    public void tester(String newTicket) throws Exception {
+        WWPassConnection cls = connection;
         BufferedWriter out = new BufferedWriter(new FileWriter("/file.txt"));
 
         //--------------------------------------Latin testing-------------------------------------------------------------